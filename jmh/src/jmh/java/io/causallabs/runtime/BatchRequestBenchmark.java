@@ -0,0 +1,88 @@
+package io.causallabs.runtime;
+
+import io.causallabs.stub.StubImpressionServer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to get features for many sessions from a stub impression server on localhost. batch sends
+ * them all in one /features call, single sends one call per session, all at once, and waits for
+ * them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class BatchRequestBenchmark {
+
+  @Param({"10", "100", "500"})
+  public int sessions;
+
+  @Setup
+  public void setup() throws IOException {
+    m_singleServer = StubImpressionServer.start(BenchResponse.stub(FEATURES, 4).build());
+    m_batchServer = StubImpressionServer.start(BenchResponse.stub(FEATURES, 4).build());
+    m_singleClient = CausalClient.create(m_singleServer.url());
+    m_batchClient = CausalClient.create(m_batchServer.url());
+    m_sessions = new BenchSession[sessions];
+    m_requests = new Requestable[sessions][];
+    for (int i = 0; i < sessions; ++i) {
+      m_sessions[i] = new BenchSession("device-" + i);
+      m_requests[i] = new Requestable[FEATURES];
+      for (int j = 0; j < FEATURES; ++j) m_requests[i][j] = new BenchFeature("Feature" + j);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_singleClient.close();
+    m_batchClient.close();
+    m_singleServer.close();
+    m_batchServer.close();
+  }
+
+  @Benchmark
+  public List<BatchRequest> batch() throws InterruptedException {
+    List<BatchRequest> batch = new ArrayList<>(sessions);
+    for (int i = 0; i < sessions; ++i) {
+      batch.add(BatchRequest.of(m_sessions[i], BenchResponse.IMPRESSION_ID, m_requests[i]));
+    }
+    m_batchClient.requestBatch(batch);
+    return batch;
+  }
+
+  @Benchmark
+  public void single() {
+    CompletableFuture<?>[] calls = new CompletableFuture<?>[sessions];
+    for (int i = 0; i < sessions; ++i) {
+      calls[i] =
+          m_singleClient.requestAsync(m_sessions[i], BenchResponse.IMPRESSION_ID, m_requests[i]);
+    }
+    CompletableFuture.allOf(calls).join();
+  }
+
+  private static final int FEATURES = 10;
+  private StubImpressionServer m_singleServer;
+  private StubImpressionServer m_batchServer;
+  private CausalClient m_singleClient;
+  private CausalClient m_batchClient;
+  private BenchSession[] m_sessions;
+  private Requestable[][] m_requests;
+}
@@ -0,0 +1,73 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+
+/** A feature shaped like the ones the FDL compiler generates: a few args and a few outputs. */
+public class BenchFeature extends Requestable {
+
+  public BenchFeature(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String featureName() {
+    return name;
+  }
+
+  @Override
+  public void serializeArgs(JsonGenerator gen) {
+    try {
+      gen.writeStartObject();
+      gen.writeStringField("productId", productId);
+      gen.writeNumberField("price", price);
+      gen.writeBooleanField("inStock", inStock);
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void deserializeResponse(JsonParser parser) throws ApiException {
+    try {
+      if (parser.currentToken() != JsonToken.START_OBJECT)
+        throw new ApiException(500, "Expected an object for " + name);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        parser.nextToken();
+        switch (field) {
+          case "_impressionId":
+            impressionId = parser.getText();
+            break;
+          case "title":
+            title = parser.getText();
+            break;
+          case "discount":
+            discount = parser.getDoubleValue();
+            break;
+          case "rank":
+            rank = parser.getIntValue();
+            break;
+          default:
+            parser.skipChildren();
+        }
+      }
+      parser.nextToken();
+      setComplete();
+    } catch (IOException e) {
+      throw new ApiException(500, "Error reading " + name, e);
+    }
+  }
+
+  private final String name;
+  public String productId = "sku-0012345";
+  public double price = 19.99;
+  public boolean inStock = true;
+  public String impressionId;
+  public String title;
+  public double discount;
+  public int rank;
+}
@@ -0,0 +1,96 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.causallabs.stub.StubOptions;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.message.BasicHttpResponse;
+
+/** /features responses for {@link BenchFeature}s, as the impression server would send them. */
+final class BenchResponse {
+
+  /**
+   * A response for the given number of features. If mixed, every fourth feature is OFF, the one
+   * after it UNKNOWN and the one after that has an entry in the errors array.
+   */
+  static byte[] features(JsonFactory factory, int features, boolean mixed) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonGenerator gen = factory.createGenerator(out);
+    gen.writeStartObject();
+    gen.writeObjectFieldStart("session");
+    gen.writeStringField("sessionId", "9a1c2b3d-4e5f-6a7b-8c9d-0e1f2a3b4c5d");
+    gen.writeEndObject();
+    gen.writeArrayFieldStart("impressions");
+    for (int i = 0; i < features; ++i) {
+      if (mixed && i % 4 == 1) {
+        gen.writeString("OFF");
+      } else if (mixed && i % 4 == 2) {
+        gen.writeString("UNKNOWN");
+      } else {
+        gen.writeStartObject();
+        gen.writeStringField("_impressionId", IMPRESSION_ID);
+        gen.writeStringField("title", "Free shipping on orders over $50");
+        gen.writeNumberField("discount", 0.15);
+        gen.writeNumberField("rank", i);
+        gen.writeEndObject();
+      }
+    }
+    gen.writeEndArray();
+    if (mixed) {
+      gen.writeArrayFieldStart("errors");
+      for (int i = 0; i < features; ++i) {
+        if (i % 4 == 3) gen.writeString("Feature" + i + " failed to evaluate");
+        else gen.writeNull();
+      }
+      gen.writeEndArray();
+    }
+    gen.writeEndObject();
+    gen.close();
+    return out.toByteArray();
+  }
+
+  /**
+   * Options for a stub impression server that answers {@link BenchFeature}s named Feature0 up to
+   * the given number with the same outputs as {@link #features}.
+   */
+  static StubOptions.Builder stub(int features, int threads) {
+    StubOptions.Builder ret =
+        StubOptions.builder()
+            .threads(threads)
+            .sessionOutput("sessionId", "9a1c2b3d-4e5f-6a7b-8c9d-0e1f2a3b4c5d");
+    for (int i = 0; i < features; ++i) {
+      ret.output("Feature" + i, "title", "Free shipping on orders over $50")
+          .output("Feature" + i, "discount", 0.15)
+          .output("Feature" + i, "rank", i);
+    }
+    return ret;
+  }
+
+  // tokenize a response the way the client does as it arrives from the reactor
+  static StreamingJsonConsumer.Response consume(byte[] body, ContentType contentType)
+      throws IOException {
+    return consume(body, contentType, 200);
+  }
+
+  static StreamingJsonConsumer.Response consume(byte[] body, ContentType contentType, int code)
+      throws IOException {
+    StreamingJsonConsumer consumer = new StreamingJsonConsumer();
+    consumer.start(new BasicHttpResponse(code), contentType);
+    for (int pos = 0; pos < body.length; pos += READ_SIZE) {
+      int n = Math.min(READ_SIZE, body.length - pos);
+      consumer.data(ByteBuffer.wrap(body, pos, n), pos + n == body.length);
+    }
+    StreamingJsonConsumer.Response ret = consumer.buildResult();
+    consumer.releaseResources();
+    return ret;
+  }
+
+  static final String IMPRESSION_ID = "5c8f1f9e-6a0b-4f3e-8d2c-1b2a3c4d5e6f";
+  // socket sized pieces
+  private static final int READ_SIZE = 8192;
+
+  private BenchResponse() {}
+}
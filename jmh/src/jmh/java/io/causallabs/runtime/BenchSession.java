@@ -0,0 +1,77 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+
+/** A session shaped like the ones the FDL compiler generates: a couple of ids and some args. */
+public class BenchSession extends SessionRequestable {
+
+  public BenchSession(String deviceId) {
+    this.deviceId = deviceId;
+  }
+
+  @Override
+  public void serializeArgs(JsonGenerator gen) {
+    try {
+      gen.writeStartObject();
+      gen.writeStringField("deviceId", deviceId);
+      gen.writeStringField("arrivalKey", arrivalKey);
+      gen.writeStringField("userAgent", userAgent);
+      gen.writeStringField("entryUrl", entryUrl);
+      gen.writeNumberField("visits", visits);
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void serializeIds(JsonGenerator gen) {
+    try {
+      gen.writeStartObject();
+      gen.writeStringField("deviceId", deviceId);
+      gen.writeStringField("arrivalKey", arrivalKey);
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void deserializeResponse(JsonParser parser) throws ApiException {
+    try {
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        parser.nextToken();
+        if (field.equals("sessionId")) sessionId = parser.getText();
+        else parser.skipChildren();
+      }
+      parser.nextToken();
+    } catch (IOException e) {
+      throw new ApiException(500, "Error reading session", e);
+    }
+  }
+
+  @Override
+  public boolean cacheEncoding() {
+    return cacheEncoding;
+  }
+
+  @Override
+  public void addHeaders(SimpleRequestBuilder builder) {
+    builder.addHeader("X-Forwarded-For", "10.0.0.1");
+  }
+
+  public String deviceId;
+  public String arrivalKey = "2f6b1c2e-5d0c-4b55-9a8e-7f2b3c4d5e6f";
+  public String userAgent =
+      "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko)";
+  public String entryUrl = "https://www.example.com/products/12345?utm_source=newsletter";
+  public long visits = 7;
+  public String sessionId;
+  // the fields above are set directly, so only cache when they won't change
+  public boolean cacheEncoding = false;
+}
@@ -0,0 +1,76 @@
+package io.causallabs.runtime;
+
+import io.causallabs.stub.StubImpressionServer;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * requestAsync throughput against a stub impression server on localhost, from several threads
+ * sharing one client, each waiting for its request before sending the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class EndToEndBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int features;
+
+  @State(Scope.Thread)
+  public static class Caller {
+
+    @Setup
+    public void setup(EndToEndBenchmark benchmark) {
+      m_session = new BenchSession("device-" + CALLERS.getAndIncrement());
+      m_requests = new Requestable[benchmark.features];
+      for (int i = 0; i < m_requests.length; ++i) m_requests[i] = new BenchFeature("Feature" + i);
+    }
+
+    BenchSession m_session;
+    Requestable[] m_requests;
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    m_server = StubImpressionServer.start(BenchResponse.stub(features, 8).build());
+    m_client = CausalClient.init(m_server.url());
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_client.close();
+    m_server.close();
+  }
+
+  @Benchmark
+  public Requestable[] requestAsync(Caller caller) {
+    CompletableFuture<Void> result =
+        m_client.requestAsync(caller.m_session, BenchResponse.IMPRESSION_ID, caller.m_requests);
+    result.join();
+    return caller.m_requests;
+  }
+
+  // gives each caller thread its own session
+  private static final AtomicInteger CALLERS = new AtomicInteger();
+  private StubImpressionServer m_server;
+  private CausalClient m_client;
+}
@@ -0,0 +1,81 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.core5.http.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What it costs to fall back to control values during an outage. features applies a failed
+ * /features response, either a 503 or a malformed body, and signal handles a 503 to a signal. No
+ * logger is bound, so anything allocated is for messages that nobody reads. Compare the gc
+ * profiler's alloc.rate.norm between versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FailurePathBenchmark {
+
+  @Param({"status", "malformed"})
+  public String failure;
+
+  @Setup
+  public void setup() throws IOException {
+    // never sends anything, it is only here for its methods
+    m_client = CausalClient.create("http://localhost:1/iserver");
+    m_session = new BenchSession("device-000042");
+    m_requests = new Requestable[FEATURES];
+    for (int i = 0; i < FEATURES; ++i) m_requests[i] = new BenchFeature("Feature" + i);
+    m_response =
+        failure.equals("status")
+            ? BenchResponse.consume(UNAVAILABLE, ContentType.TEXT_PLAIN, 503)
+            : BenchResponse.consume(MALFORMED, ContentType.APPLICATION_JSON, 200);
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_client.close();
+  }
+
+  @Benchmark
+  public ApiException features() {
+    try {
+      m_client.handleResponse(m_response, m_session, m_requests, null);
+      throw new IllegalStateException("expected a failure");
+    } catch (ApiException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public CompletableFuture<Void> signal() {
+    CompletableFuture<Void> ret = new CompletableFuture<>();
+    m_client.completeSignal(
+        "signal", MetricsSink.Endpoint.SIGNAL, m_session, 503, "Unavailable", null, ret);
+    return ret;
+  }
+
+  private static final int FEATURES = 10;
+  private static final byte[] UNAVAILABLE = "Unavailable".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] MALFORMED = "[]".getBytes(StandardCharsets.UTF_8);
+  private CausalClient m_client;
+  private BenchSession m_session;
+  private Requestable[] m_requests;
+  private StreamingJsonConsumer.Response m_response;
+}
@@ -0,0 +1,70 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.core5.http.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Applies an already tokenized /features response to the features, the way the client does once the
+ * response has arrived. The features are either all active, or mixed with OFF, UNKNOWN and errored
+ * ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandleResponseBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int features;
+
+  @Param({"active", "mixed"})
+  public String response;
+
+  @Setup
+  public void setup() throws IOException {
+    // never sends anything, it is only here for its methods
+    m_client = CausalClient.init("http://localhost:1/iserver");
+    m_session = new BenchSession("device-000042");
+    m_requests = new Requestable[features];
+    for (int i = 0; i < features; ++i) m_requests[i] = new BenchFeature("Feature" + i);
+    byte[] body =
+        BenchResponse.features(
+            CausalClient.m_mapper.getFactory(), features, response.equals("mixed"));
+    m_response = BenchResponse.consume(body, ContentType.APPLICATION_JSON);
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_client.close();
+  }
+
+  @Benchmark
+  public Requestable[] handleResponse() {
+    try {
+      m_client.handleResponse(m_response, m_session, m_requests, null);
+    } catch (ApiException e) {
+      // expected for the features the errors array fails
+    }
+    return m_requests;
+  }
+
+  private CausalClient m_client;
+  private BenchSession m_session;
+  private Requestable[] m_requests;
+  private StreamingJsonConsumer.Response m_response;
+}
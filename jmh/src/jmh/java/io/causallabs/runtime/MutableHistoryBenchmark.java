@@ -0,0 +1,99 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A session's mutable being set over its lifetime. Each op fills a new history with {@code sets}
+ * values, of which every other one repeats the current value and is dropped. longValues uses a
+ * MutableHistory and longColumnar a LongMutableHistory. writeGeneric and writeColumnar write the
+ * same filled history to Avro, through the generic writer and through LongMutableHistory.write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MutableHistoryBenchmark {
+
+  @Param({"10", "100"})
+  public int sets;
+
+  @Setup
+  public void setup() {
+    m_boxed = longValues();
+    m_columnar = longColumnar();
+    Schema record =
+        SchemaBuilder.record("LongMutable")
+            .fields()
+            .requiredLong("startTime")
+            .requiredLong("endTime")
+            .requiredLong("value")
+            .endRecord();
+    m_writer = new GenericDatumWriter<>(Schema.createArray(record));
+    m_encoder = EncoderFactory.get().directBinaryEncoder(NULL_STREAM, null);
+  }
+
+  @Benchmark
+  public MutableHistory<Long> longValues() {
+    MutableHistory<Long> ret = new MutableHistory<>();
+    for (int i = 0; i < sets; ++i) ret.setValue((long) (i / 2) * 1009);
+    return ret;
+  }
+
+  @Benchmark
+  public LongMutableHistory longColumnar() {
+    LongMutableHistory ret = new LongMutableHistory();
+    for (int i = 0; i < sets; ++i) ret.setValue((long) (i / 2) * 1009);
+    return ret;
+  }
+
+  @Benchmark
+  public MutableHistory<String> stringValues() {
+    MutableHistory<String> ret = new MutableHistory<>();
+    for (int i = 0; i < sets; ++i) ret.setValue(VALUES[(i / 2) % VALUES.length]);
+    return ret;
+  }
+
+  @Benchmark
+  public void writeGeneric() throws IOException {
+    m_writer.write(m_boxed, m_encoder);
+  }
+
+  @Benchmark
+  public void writeColumnar() throws IOException {
+    m_columnar.write(m_encoder);
+  }
+
+  private static final String[] VALUES = {"cart", "checkout", "payment", "confirmation"};
+  private static final OutputStream NULL_STREAM =
+      new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+      };
+  private MutableHistory<Long> m_boxed;
+  private LongMutableHistory m_columnar;
+  private GenericDatumWriter<Object> m_writer;
+  private BinaryEncoder m_encoder;
+}
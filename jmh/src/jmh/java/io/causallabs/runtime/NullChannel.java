@@ -0,0 +1,43 @@
+package io.causallabs.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+
+/** Stands in for the connection, accepting up to a socket buffer's worth of bytes per write. */
+final class NullChannel implements DataStreamChannel {
+
+  @Override
+  public void requestOutput() {}
+
+  @Override
+  public int write(ByteBuffer src) {
+    int n = Math.min(src.remaining(), m_sink.remaining());
+    ByteBuffer slice = src.duplicate();
+    slice.limit(slice.position() + n);
+    m_sink.put(slice);
+    src.position(src.position() + n);
+    if (!m_sink.hasRemaining()) m_sink.clear();
+    return n;
+  }
+
+  @Override
+  public void endStream() {
+    m_ended = true;
+  }
+
+  @Override
+  public void endStream(List<? extends Header> trailers) {
+    m_ended = true;
+  }
+
+  boolean ended() {
+    boolean ret = m_ended;
+    m_ended = false;
+    return ret;
+  }
+
+  private final ByteBuffer m_sink = ByteBuffer.allocate(64 * 1024);
+  private boolean m_ended = false;
+}
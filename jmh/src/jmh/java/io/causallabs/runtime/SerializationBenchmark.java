@@ -0,0 +1,128 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityProducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes a /features body and streams it to a stand in channel. stringBody is the original path
+ * (StringWriter, String, UTF-8 byte[] copy), pooledBody writes UTF-8 into pooled chunks.
+ * setupRequest builds the body through the client, the way requestAsync does, with the session's
+ * args encoded on every call or spliced in from its cached encoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int features;
+
+  @Param({"false", "true"})
+  public boolean cacheEncoding;
+
+  @Setup
+  public void setup() {
+    m_session = new BenchSession("device-000042");
+    m_session.cacheEncoding = cacheEncoding;
+    m_requests = new Requestable[features];
+    for (int i = 0; i < features; ++i) m_requests[i] = new BenchFeature("Feature" + i);
+    // never sends anything, it is only here for its methods
+    m_client = CausalClient.init("http://localhost:1/iserver");
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_client.close();
+  }
+
+  @Benchmark
+  public int stringBody() throws IOException {
+    StringWriter sw = new StringWriter();
+    JsonGenerator gen = CausalClient.m_mapper.getFactory().createGenerator(sw);
+    writeBody(gen);
+    gen.close();
+    byte[] bytes = sw.toString().getBytes(StandardCharsets.UTF_8);
+    return send(new BasicAsyncEntityProducer(bytes, ContentType.APPLICATION_JSON));
+  }
+
+  @Benchmark
+  public int pooledBody() throws IOException {
+    BodyBuffer body = new BodyBuffer();
+    JsonGenerator gen = CausalClient.m_mapper.getFactory().createGenerator(body, JsonEncoding.UTF8);
+    writeBody(gen);
+    gen.close();
+    int ret = send(new BodyBufferProducer(body, ContentType.APPLICATION_JSON));
+    body.release();
+    return ret;
+  }
+
+  @Benchmark
+  public int setupRequest() throws IOException {
+    JsonGenerator gen = m_client.createGenerator();
+    gen.writeStartObject();
+    gen.writeFieldName("args");
+    m_client.writeSessionArgs(gen, m_session);
+    gen.writeStringField("impressionId", IMPRESSION_ID);
+    m_client.setupRequest(m_session, gen, m_requests);
+    BodyBuffer body = m_client.getResult(gen);
+    int ret = send(new BodyBufferProducer(body, ContentType.APPLICATION_JSON));
+    body.release();
+    return ret;
+  }
+
+  private void writeBody(JsonGenerator gen) throws IOException {
+    gen.writeStartObject();
+    gen.writeFieldName("args");
+    m_session.serializeArgs(gen);
+    gen.writeStringField("impressionId", IMPRESSION_ID);
+    gen.writeFieldName("reqs");
+    gen.writeStartArray();
+    for (Requestable request : m_requests) {
+      gen.writeStartObject();
+      gen.writeStringField("name", request.featureName());
+      gen.writeFieldName("args");
+      request.serializeArgs(gen);
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+    gen.writeEndObject();
+  }
+
+  private int send(AsyncEntityProducer producer) throws IOException {
+    int calls = 0;
+    do {
+      producer.produce(m_channel);
+      ++calls;
+    } while (!m_channel.ended());
+    producer.releaseResources();
+    return calls;
+  }
+
+  private static final String IMPRESSION_ID = "5c8f1f9e-6a0b-4f3e-8d2c-1b2a3c4d5e6f";
+  private final NullChannel m_channel = new NullChannel();
+  private BenchSession m_session;
+  private Requestable[] m_requests;
+  private CausalClient m_client;
+}
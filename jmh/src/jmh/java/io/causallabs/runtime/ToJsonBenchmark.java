@@ -0,0 +1,90 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The JSON form of impressions and events that plugins on the impression server ask for. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ToJsonBenchmark {
+
+  @Benchmark
+  public String impression() {
+    return m_impression.toJson();
+  }
+
+  @Benchmark
+  public String event() {
+    return m_event.toJson();
+  }
+
+  // shaped like a generated impression of a BenchFeature
+  static final class BenchImpression implements Impression {
+
+    @Override
+    public String getFeatureName() {
+      return "ProductInfo";
+    }
+
+    @Override
+    public void serializeImpression(JsonGenerator gen) throws IOException {
+      gen.writeStringField("_impressionId", BenchResponse.IMPRESSION_ID);
+      gen.writeStringField("productId", "sku-0012345");
+      gen.writeNumberField("price", 19.99);
+      gen.writeBooleanField("inStock", true);
+      gen.writeStringField("title", "Free shipping on orders over $50");
+      gen.writeNumberField("discount", 0.15);
+      gen.writeNumberField("rank", 3);
+    }
+  }
+
+  // shaped like a generated click event
+  static final class BenchEvent implements ImpressionEvent {
+
+    @Override
+    public String getEventName() {
+      return "Click";
+    }
+
+    @Override
+    public long getEventTime() {
+      return 1700000000000L;
+    }
+
+    @Override
+    public String getImpressionId() {
+      return BenchResponse.IMPRESSION_ID;
+    }
+
+    @Override
+    public String getSplitKey() {
+      return null;
+    }
+
+    @Override
+    public void serializeEvent(JsonGenerator gen) throws IOException {
+      gen.writeStringField("_eventName", getEventName());
+      gen.writeNumberField("_eventTime", getEventTime());
+      gen.writeStringField("_impressionId", getImpressionId());
+      gen.writeStringField("target", "add-to-cart");
+      gen.writeNumberField("position", 2);
+    }
+  }
+
+  private final Impression m_impression = new BenchImpression();
+  private final ImpressionEvent m_event = new BenchEvent();
+}
@@ -0,0 +1,104 @@
+package io.causallabs.runtime;
+
+import io.causallabs.stub.StubImpressionServer;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Blocking request throughput with 10k concurrent callers against a stub impression server on
+ * localhost. virtual gives each caller its own virtual thread, platform runs the callers on a pool
+ * of as many platform threads. The client's background threads are virtual too, and pinned virtual
+ * threads are reported on stdout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {
+      "-Dsun.net.httpserver.nodelay=true",
+      "-Dio.causallabs.virtualThreads=true",
+      "-Djdk.tracePinnedThreads=short"
+    })
+public class VirtualThreadBenchmark {
+
+  @Param({"virtual", "platform"})
+  public String threads;
+
+  @Setup
+  public void setup() throws IOException {
+    m_server = StubImpressionServer.start(BenchResponse.stub(1, 16).build());
+    m_client =
+        CausalClient.create(
+            m_server.url(),
+            HttpAsyncClients.custom()
+                .disableAutomaticRetries()
+                .setConnectionManager(
+                    PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setMaxConnPerRoute(CONNECTIONS)
+                        .setMaxConnTotal(CONNECTIONS)
+                        .build())
+                .build());
+    m_callers =
+        threads.equals("virtual")
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_callers.shutdownNow();
+    m_client.close();
+    m_server.close();
+    System.out.println("\n" + threads + " failed requests=" + m_failures.get());
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CALLERS)
+  public void request() throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(CALLERS);
+    for (int i = 0; i < CALLERS; ++i) {
+      BenchSession session = new BenchSession("device-" + i);
+      m_callers.execute(
+          () -> {
+            try {
+              m_client.request(session, BenchResponse.IMPRESSION_ID, new BenchFeature("Feature0"));
+            } catch (InterruptedException | ApiException e) {
+              m_failures.incrementAndGet();
+            } finally {
+              done.countDown();
+            }
+          });
+    }
+    done.await();
+  }
+
+  private static final int CALLERS = 10000;
+  // connections to the stub, the callers queue for them in the http client's pool
+  private static final int CONNECTIONS = 256;
+  private StubImpressionServer m_server;
+  private CausalClient m_client;
+  private ExecutorService m_callers;
+  private final AtomicInteger m_failures = new AtomicInteger();
+}
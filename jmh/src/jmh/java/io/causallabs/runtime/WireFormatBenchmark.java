@@ -0,0 +1,133 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.causallabs.stub.StubImpressionServer;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.core5.http.ContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the JSON and Smile encodings of /features. encode writes a request body, decode
+ * tokenizes a response the way the client does and deserializes it into the features, and roundTrip
+ * sends requests to a stub impression server on localhost. The average request and response sizes
+ * seen by the stub are printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// the JDK server otherwise delays small responses waiting for an ack, hiding the client's costs
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class WireFormatBenchmark {
+
+  @Param({"json", "smile"})
+  public String format;
+
+  @Param({"1", "10", "100"})
+  public int features;
+
+  @Setup
+  public void setup() throws IOException {
+    boolean smile = format.equals("smile");
+    m_factory = smile ? CausalClient.m_smileFactory : CausalClient.m_mapper.getFactory();
+    m_contentType = smile ? CausalClient.SMILE : ContentType.APPLICATION_JSON;
+    m_session = new BenchSession("device-000042");
+    m_requests = new Requestable[features];
+    for (int i = 0; i < features; ++i) m_requests[i] = new BenchFeature("Feature" + i);
+    byte[] json = BenchResponse.features(CausalClient.m_mapper.getFactory(), features, false);
+    byte[] binary = BenchResponse.features(CausalClient.m_smileFactory, features, false);
+    m_response = smile ? binary : json;
+
+    m_server = StubImpressionServer.start(BenchResponse.stub(features, 4).build());
+    m_client = CausalClient.init(m_server.url());
+    if (smile) m_client.enableBinaryProtocol();
+  }
+
+  @TearDown
+  public void tearDown() {
+    m_client.close();
+    m_server.close();
+    long n = m_server.requests("features");
+    if (n == 0) return;
+    System.out.println(
+        "\n"
+            + format
+            + " features="
+            + features
+            + " avg request bytes="
+            + m_server.requestBytes() / n
+            + " avg response bytes="
+            + m_server.responseBytes() / n);
+  }
+
+  @Benchmark
+  public int encode() throws IOException {
+    BodyBuffer body = new BodyBuffer();
+    JsonGenerator gen = m_factory.createGenerator(body, JsonEncoding.UTF8);
+    gen.writeStartObject();
+    gen.writeFieldName("args");
+    m_session.serializeArgs(gen);
+    gen.writeStringField("impressionId", IMPRESSION_ID);
+    gen.writeFieldName("reqs");
+    gen.writeStartArray();
+    for (Requestable request : m_requests) {
+      gen.writeStartObject();
+      gen.writeStringField("name", request.featureName());
+      gen.writeFieldName("args");
+      request.serializeArgs(gen);
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+    gen.writeEndObject();
+    gen.close();
+    int ret = body.size();
+    body.release();
+    return ret;
+  }
+
+  @Benchmark
+  public Requestable[] decode() throws Exception {
+    JsonParser parser = BenchResponse.consume(m_response, m_contentType).parser();
+    parser.nextToken();
+    parser.nextToken();
+    parser.nextToken();
+    m_session.deserializeResponse(parser);
+    parser.nextToken();
+    parser.nextToken();
+    for (Requestable request : m_requests) request.deserializeResponse(parser);
+    if (parser.currentToken() != JsonToken.END_ARRAY) throw new IllegalStateException();
+    return m_requests;
+  }
+
+  @Benchmark
+  public Requestable[] roundTrip() throws Exception {
+    m_client.request(m_session, IMPRESSION_ID, m_requests);
+    return m_requests;
+  }
+
+  private static final String IMPRESSION_ID = BenchResponse.IMPRESSION_ID;
+  private JsonFactory m_factory;
+  private ContentType m_contentType;
+  private BenchSession m_session;
+  private Requestable[] m_requests;
+  private byte[] m_response;
+  private StubImpressionServer m_server;
+  private CausalClient m_client;
+}
@@ -1,5 +1,7 @@
 package io.causallabs.runtime;
 
+import java.util.function.Supplier;
+
 /** bad call to the server */
 public class ApiException extends Exception {
 
@@ -9,6 +11,7 @@ public class ApiException extends Exception {
   public ApiException(int statusCode, String message) {
     super(message);
     m_statusCode = statusCode;
+    m_lazyMessage = null;
   }
 
   public ApiException(String message) {
@@ -18,15 +21,70 @@ public class ApiException extends Exception {
   public ApiException(int statusCode, String string, Throwable e) {
     super(string, e);
     m_statusCode = statusCode;
+    m_lazyMessage = null;
   }
 
   public ApiException(String string, Throwable e) {
     this(400, string, e);
   }
 
+  /**
+   * An exception without a stack trace, for the errors that leave features with their control
+   * values. These can happen on every request during an outage, when walking the stack would be a
+   * real cost, and where they happen says nothing the message doesn't. Suppression is disabled too,
+   * so one instance can be shared by many requests.
+   *
+   * @param statusCode
+   * @param message
+   * @param cause may be null
+   * @return
+   */
+  static ApiException fallback(int statusCode, String message, Throwable cause) {
+    return new ApiException(statusCode, message, null, cause);
+  }
+
+  static ApiException fallback(int statusCode, String message) {
+    return fallback(statusCode, message, null);
+  }
+
+  /**
+   * A stackless exception, see {@link #fallback(int, String, Throwable)}, whose message is only
+   * built if it is asked for.
+   *
+   * @param statusCode
+   * @param message
+   * @param cause may be null
+   * @return
+   */
+  static ApiException fallback(int statusCode, Supplier<String> message, Throwable cause) {
+    return new ApiException(statusCode, null, message, cause);
+  }
+
+  static ApiException fallback(int statusCode, Supplier<String> message) {
+    return fallback(statusCode, message, null);
+  }
+
+  @Override
+  public String getMessage() {
+    String ret = m_message;
+    if (ret != null) return ret;
+    Supplier<String> lazy = m_lazyMessage;
+    if (lazy == null) return super.getMessage();
+    m_message = ret = lazy.get();
+    return ret;
+  }
+
   public int getStatusCode() {
     return m_statusCode;
   }
 
+  private ApiException(int statusCode, String message, Supplier<String> lazy, Throwable cause) {
+    super(message, cause, false, false);
+    m_statusCode = statusCode;
+    m_lazyMessage = lazy;
+  }
+
   private final int m_statusCode;
+  private final transient Supplier<String> m_lazyMessage;
+  private volatile String m_message = null;
 }
@@ -0,0 +1,9 @@
+package io.causallabs.runtime;
+
+/** How a load balanced client picks the impression server for each exchange. */
+public enum BalancingStrategy {
+  /** The available server with the fewest exchanges outstanding */
+  LEAST_OUTSTANDING,
+  /** The one of two randomly chosen available servers with fewer exchanges outstanding */
+  POWER_OF_TWO_CHOICES
+}
@@ -0,0 +1,76 @@
+package io.causallabs.runtime;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One session's part of a {@link CausalClient#requestBatch} call: the session, the impression id
+ * and the features requested for it. Each part succeeds or fails on its own. A part is filled in
+ * once, so make a new one for every batch.
+ */
+public final class BatchRequest {
+
+  /**
+   * @param session the session the features are requested for
+   * @param impressionId the impression id to associate with the features
+   * @param requests the features to request
+   * @return the part
+   */
+  public static BatchRequest of(
+      SessionRequestable session, String impressionId, Requestable... requests) {
+    return new BatchRequest(session, impressionId, requests);
+  }
+
+  /**
+   * As above, with a random impression id.
+   *
+   * @param session the session the features are requested for
+   * @param requests the features to request
+   * @return the part
+   */
+  public static BatchRequest of(SessionRequestable session, Requestable... requests) {
+    return new BatchRequest(session, UUID.randomUUID().toString(), requests);
+  }
+
+  public SessionRequestable getSession() {
+    return m_session;
+  }
+
+  public String getImpressionId() {
+    return m_impressionId;
+  }
+
+  public Requestable[] getRequests() {
+    return m_requests;
+  }
+
+  /**
+   * Completes once this session's features have been filled in, or exceptionally with an {@link
+   * ApiException} if they were left with control values.
+   */
+  public CompletableFuture<Void> result() {
+    return m_result;
+  }
+
+  /** Why this session's features were left with control values, null if they weren't */
+  public Throwable getError() {
+    return m_error;
+  }
+
+  void failed(Throwable error) {
+    m_error = error;
+    m_result.completeExceptionally(error);
+  }
+
+  private BatchRequest(SessionRequestable session, String impressionId, Requestable[] requests) {
+    m_session = session;
+    m_impressionId = impressionId;
+    m_requests = requests;
+  }
+
+  private final SessionRequestable m_session;
+  private final String m_impressionId;
+  private final Requestable[] m_requests;
+  final CompletableFuture<Void> m_result = new CompletableFuture<>();
+  private volatile Throwable m_error = null;
+}
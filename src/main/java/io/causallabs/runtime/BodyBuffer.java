@@ -0,0 +1,148 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The encoded body of a request to the impression server. Generators write their UTF-8 output
+ * straight into chunks borrowed from a {@link BufferPool}, and the chunks are handed back when the
+ * last user calls {@link #release()}. Bodies are read by {@link BodyBufferProducer}, which streams
+ * the chunks to the http client without copying them into a single array first.
+ */
+final class BodyBuffer extends OutputStream {
+
+  BodyBuffer() {
+    this(BufferPool.SHARED);
+  }
+
+  BodyBuffer(BufferPool pool) {
+    m_pool = pool;
+  }
+
+  @Override
+  public void write(int b) {
+    if (m_tail == BufferPool.CHUNK_SIZE || m_count == 0) addChunk();
+    m_chunks[m_count - 1][m_tail++] = (byte) b;
+    m_size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    while (len > 0) {
+      if (m_tail == BufferPool.CHUNK_SIZE || m_count == 0) addChunk();
+      int n = Math.min(len, BufferPool.CHUNK_SIZE - m_tail);
+      System.arraycopy(b, off, m_chunks[m_count - 1], m_tail, n);
+      m_tail += n;
+      m_size += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void addChunk() {
+    if (m_count == m_chunks.length) m_chunks = Arrays.copyOf(m_chunks, m_count * 2);
+    m_chunks[m_count++] = m_pool.acquire();
+    m_tail = 0;
+  }
+
+  int size() {
+    return m_size;
+  }
+
+  // wrap the bytes from position up to the end of the chunk that holds it, without copying
+  ByteBuffer chunkAt(int position) {
+    int chunk = position / BufferPool.CHUNK_SIZE;
+    int offset = position % BufferPool.CHUNK_SIZE;
+    int end = chunk == m_count - 1 ? m_tail : BufferPool.CHUNK_SIZE;
+    return ByteBuffer.wrap(m_chunks[chunk], offset, end - offset);
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    for (int i = 0; i < m_count; ++i) {
+      out.write(m_chunks[i], 0, i == m_count - 1 ? m_tail : BufferPool.CHUNK_SIZE);
+    }
+  }
+
+  void append(BodyBuffer other) {
+    for (int i = 0; i < other.m_count; ++i) {
+      write(other.m_chunks[i], 0, i == other.m_count - 1 ? other.m_tail : BufferPool.CHUNK_SIZE);
+    }
+  }
+
+  byte[] toByteArray() {
+    byte[] ret = new byte[m_size];
+    for (int i = 0, pos = 0; i < m_count; ++i) {
+      int n = i == m_count - 1 ? m_tail : BufferPool.CHUNK_SIZE;
+      System.arraycopy(m_chunks[i], 0, ret, pos, n);
+      pos += n;
+    }
+    return ret;
+  }
+
+  // a 64 bit FNV-1a hash of the contents, finished with murmur3's mixer so nearby keys spread out
+  long hash() {
+    long h = FNV_OFFSET;
+    for (int i = 0; i < m_count; ++i) {
+      h = fnv(h, m_chunks[i], i == m_count - 1 ? m_tail : BufferPool.CHUNK_SIZE);
+    }
+    return mix(h);
+  }
+
+  // the hash of a body holding these bytes
+  static long hash(byte[] bytes) {
+    return mix(fnv(FNV_OFFSET, bytes, bytes.length));
+  }
+
+  private static long fnv(long h, byte[] bytes, int n) {
+    for (int j = 0; j < n; ++j) {
+      h ^= bytes[j] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // share the body with another reader, each reader calls release when it is done
+  BodyBuffer retain() {
+    m_refs.incrementAndGet();
+    return this;
+  }
+
+  // return the chunks to the pool once every reader is done
+  void release() {
+    if (m_refs.decrementAndGet() != 0) return;
+    for (int i = 0; i < m_count; ++i) {
+      m_pool.release(m_chunks[i]);
+      m_chunks[i] = null;
+    }
+    m_count = 0;
+    m_size = 0;
+    m_tail = 0;
+  }
+
+  @Override
+  public String toString() {
+    return new String(toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private final BufferPool m_pool;
+  private byte[][] m_chunks = new byte[4][];
+  private int m_count = 0;
+  // bytes used in the last chunk
+  private int m_tail = 0;
+  private int m_size = 0;
+  private final AtomicInteger m_refs = new AtomicInteger(1);
+}
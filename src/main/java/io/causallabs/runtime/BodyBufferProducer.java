@@ -0,0 +1,115 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+
+/**
+ * Streams a {@link BodyBuffer} to the http client chunk by chunk. The producer takes over the
+ * caller's reference to the buffer, which is given back by {@link #release()} once the exchange has
+ * settled. releaseResources only rewinds, so the body can be sent again if the client retries.
+ */
+final class BodyBufferProducer implements AsyncEntityProducer {
+
+  BodyBufferProducer(BodyBuffer body, ContentType contentType) {
+    m_body = body;
+    m_length = body.size();
+    m_contentType = contentType.toString();
+  }
+
+  @Override
+  public int available() {
+    return m_length - m_position;
+  }
+
+  @Override
+  public void produce(DataStreamChannel channel) throws IOException {
+    m_lock.lock();
+    try {
+      // a cancelled exchange can be settled while the reactor is still writing it
+      if (m_released) throw new IOException("Request body released, the exchange has settled");
+      while (m_position < m_length) {
+        if (m_current == null || !m_current.hasRemaining()) m_current = m_body.chunkAt(m_position);
+        int written = channel.write(m_current);
+        m_position += written;
+        // the channel is full, it will call us again when there is room
+        if (m_current.hasRemaining()) return;
+      }
+      channel.endStream();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public void failed(Exception cause) {}
+
+  @Override
+  public long getContentLength() {
+    return m_length;
+  }
+
+  @Override
+  public String getContentType() {
+    return m_contentType;
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public boolean isChunked() {
+    return false;
+  }
+
+  @Override
+  public Set<String> getTrailerNames() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public void releaseResources() {
+    m_lock.lock();
+    try {
+      m_position = 0;
+      m_current = null;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  // give the body back to its pool, once. Cancellation settles an exchange on whichever thread
+  // cancelled it, so this waits for a produce call in progress on the reactor, and later ones fail
+  // instead of reading chunks that another request may be reusing.
+  void release() {
+    m_lock.lock();
+    try {
+      if (m_released) return;
+      m_released = true;
+      m_current = null;
+      m_body.release();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  private final BodyBuffer m_body;
+  private final int m_length;
+  private final String m_contentType;
+  private int m_position = 0;
+  private ByteBuffer m_current = null;
+  private boolean m_released = false;
+  private final ReentrantLock m_lock = new ReentrantLock();
+}
@@ -0,0 +1,52 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed number of slots holding recycled byte arrays of {@link #CHUNK_SIZE} bytes. Taking and
+ * returning a chunk is a scan for a slot to swap with, so no locks are taken and nothing is
+ * allocated once the pool is warm. If the pool is empty a new chunk is allocated, if it is full the
+ * chunk is left for the garbage collector.
+ */
+final class BufferPool {
+
+  static final int CHUNK_SIZE = 4096;
+
+  BufferPool(int slots) {
+    m_slots = new AtomicReferenceArray<>(slots);
+  }
+
+  byte[] acquire() {
+    int n = m_slots.length();
+    int start = start(n);
+    for (int i = 0; i < n; ++i) {
+      int index = (start + i) % n;
+      if (m_slots.get(index) != null) {
+        byte[] ret = m_slots.getAndSet(index, null);
+        if (ret != null) return ret;
+      }
+    }
+    return new byte[CHUNK_SIZE];
+  }
+
+  void release(byte[] chunk) {
+    int n = m_slots.length();
+    int start = start(n);
+    for (int i = 0; i < n; ++i) {
+      int index = (start + i) % n;
+      if (m_slots.get(index) == null && m_slots.compareAndSet(index, null, chunk)) return;
+    }
+  }
+
+  // spread threads over the slots so they don't all fight over the first one. Random rather than
+  // per thread, so short lived (e.g. virtual) threads don't leave state behind.
+  private static int start(int n) {
+    return ThreadLocalRandom.current().nextInt(n);
+  }
+
+  // enough for a few hundred typical request bodies
+  static final BufferPool SHARED = new BufferPool(256);
+
+  private final AtomicReferenceArray<byte[]> m_slots;
+}
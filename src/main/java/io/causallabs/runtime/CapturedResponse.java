@@ -0,0 +1,32 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Collects the parts of a /features response that were successfully applied, so they can be
+ * replayed later. Entries for features that were not wanted, or that errored, are left null.
+ */
+final class CapturedResponse {
+
+  /**
+   * @param wanted which of the request's features to record, or null to record all of them
+   */
+  CapturedResponse(boolean[] wanted, int size) {
+    m_wanted = wanted;
+    m_features = new FeatureResult[size];
+  }
+
+  // record every feature, not just the wanted ones
+  CapturedResponse recordAll() {
+    m_wanted = null;
+    return this;
+  }
+
+  boolean wants(int index) {
+    return m_wanted == null || m_wanted[index];
+  }
+
+  private boolean[] m_wanted;
+  TokenBuffer m_session = null;
+  final FeatureResult[] m_features;
+}
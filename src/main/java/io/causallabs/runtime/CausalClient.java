@@ -1,59 +1,127 @@
 package io.causallabs.runtime;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
 import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
 import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
-import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
 import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
 import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
 import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.RequestChannel;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class CausalClient {
+public class CausalClient implements Closeable {
 
-  public static synchronized CausalClient init(String impressionServerURL) {
+  /**
+   * Create the shared client returned by {@link #getInstance()}. Throws if the shared client
+   * already exists. Use {@link #create(String)} for clients that are not shared.
+   */
+  public static CausalClient init(String impressionServerURL) {
     return init(
         impressionServerURL, HttpAsyncClientBuilder.create().disableAutomaticRetries().build());
   }
 
-  public static synchronized CausalClient init(
-      String impressionServerURL, CloseableHttpAsyncClient httpClient) {
-    if (m_instance != null) {
-      throw new IllegalStateException("Causal client was already initialized");
+  public static CausalClient init(String impressionServerURL, CloseableHttpAsyncClient httpClient) {
+    m_instanceLock.lock();
+    try {
+      if (m_instance != null) {
+        throw new IllegalStateException("Causal client was already initialized");
+      }
+      m_instance = new CausalClient(impressionServerURL, httpClient);
+      return m_instance;
+    } finally {
+      m_instanceLock.unlock();
     }
-    m_instance = new CausalClient(impressionServerURL, httpClient);
-    return m_instance;
   }
 
-  public static synchronized CausalClient getInstance() {
-    if (m_instance == null) {
-      m_instance = new CausalClient(null, HttpAsyncClients.createDefault());
+  /**
+   * The shared client. If init was not called, the impression server url is read from the
+   * CAUSAL_ISERVER environment variable or the io.causallabs.iserverUrl system property.
+   */
+  public static CausalClient getInstance() {
+    // only the first calls take the lock
+    CausalClient ret = m_instance;
+    if (ret != null) return ret;
+    m_instanceLock.lock();
+    try {
+      if (m_instance == null) {
+        m_instance = new CausalClient(null, HttpAsyncClients.createDefault());
+      }
+      return m_instance;
+    } finally {
+      m_instanceLock.unlock();
     }
-    return m_instance;
   }
 
-  private CausalClient(String url, CloseableHttpAsyncClient client) {
+  /**
+   * Create a client that is independent of the shared instance, with its own connections, options
+   * and in flight requests. Any number may be open at once. The caller closes it.
+   *
+   * @param impressionServerURL the impression server to send to
+   * @return the new client
+   */
+  public static CausalClient create(String impressionServerURL) {
+    return create(
+        impressionServerURL, HttpAsyncClientBuilder.create().disableAutomaticRetries().build());
+  }
+
+  /**
+   * Create a client that is independent of the shared instance, see {@link #create(String)}.
+   *
+   * @param impressionServerURL the impression server to send to
+   * @param httpClient the http client to send with, started by this call and closed with the client
+   * @return the new client
+   */
+  public static CausalClient create(
+      String impressionServerURL, CloseableHttpAsyncClient httpClient) {
+    return new CausalClient(impressionServerURL, httpClient);
+  }
+
+  CausalClient(String url, CloseableHttpAsyncClient client) {
     if (url == null) {
       if (System.getenv("CAUSAL_ISERVER") != null) url = System.getenv("CAUSAL_ISERVER");
       else if (System.getProperty("io.causallabs.iserverUrl") != null) {
@@ -66,29 +134,48 @@ public class CausalClient {
     m_impressionServerUrl = url;
     m_asyncClient = client;
     m_asyncClient.start();
+    m_open.add(this);
+  }
+
+  // the impression server that the session's traffic goes to, session is null for traffic that
+  // does not belong to one
+  String serverUrl(SessionRequestable session) {
+    return m_impressionServerUrl;
   }
 
+  /**
+   * Create a generator for a payload to send to the impression server. The generator writes UTF-8
+   * directly into pooled memory that is recycled once the payload has been sent.
+   */
   public JsonGenerator createGenerator() {
-    StringWriter sw = new StringWriter();
     try {
-      return m_mapper.getFactory().createGenerator(sw);
+      return m_mapper.getFactory().createGenerator(new BodyBuffer(), JsonEncoding.UTF8);
     } catch (IOException e) {
-      // we are writing to a string, so this should never fail
+      // we are writing to memory, so this should never fail
       throw new RuntimeException("Error creating in memory generator.", e);
     }
   }
 
-  private String getResult(JsonGenerator gen) {
+  // close the generator and return what it wrote. The caller owns the buffer and must release it
+  BodyBuffer getResult(JsonGenerator gen) {
     try {
-      StringWriter sw = (StringWriter) (gen.getOutputTarget());
+      BodyBuffer body = (BodyBuffer) (gen.getOutputTarget());
       gen.close();
-      return sw.toString();
+      return body;
     } catch (IOException e) {
-      // we are writing to a string, so this should never fail
+      // we are writing to memory, so this should never fail
       throw new RuntimeException("Error getting generation result.", e);
     }
   }
 
+  // close the generator and return what it wrote as a string
+  private String getString(JsonGenerator gen) {
+    BodyBuffer body = getResult(gen);
+    String ret = body.toString();
+    body.release();
+    return ret;
+  }
+
   public CompletableFuture<Void> requestAsync(SessionRequestable session, Requestable... requests)
       throws InterruptedException {
     return requestAsync(session, UUID.randomUUID().toString(), requests);
@@ -96,17 +183,28 @@ public class CausalClient {
 
   public CompletableFuture<Void> requestAsync(
       SessionRequestable session, String impressionId, Requestable... requests) {
-    try {
-      JsonGenerator _gen = createGenerator();
-      _gen.writeStartObject();
-      _gen.writeFieldName("args");
-      session.serializeArgs(_gen);
-      _gen.writeStringField("impressionId", impressionId);
-      return requestAsync(session, _gen, requests);
-    } catch (IOException e) {
-      // this shouldn't happen because the generator writes to RAM.
-      throw new RuntimeException("Error serializing to RAM");
-    }
+    return requestAsync(session, impressionId, null, requests);
+  }
+
+  /**
+   * Request features from the impression server.
+   *
+   * @param session the session the features are requested for
+   * @param impressionId the impression id to associate with the features
+   * @param options may set a deadline for this request, or null
+   * @param requests the features to request
+   * @return a future that completes once the features have been filled in. If the deadline passes
+   *     first it completes with a 504 ApiException and the features keep their control values.
+   */
+  public CompletableFuture<Void> requestAsync(
+      SessionRequestable session,
+      String impressionId,
+      RequestOptions options,
+      Requestable... requests) {
+    Deadline deadline = deadline(options);
+    FeatureCache cache = m_featureCache;
+    if (cache != null) return cachedRequestAsync(cache, session, impressionId, requests, deadline);
+    return fetch(session, null, impressionId, requests, null, deadline);
   }
 
   public void request(SessionRequestable session, Requestable... requests)
@@ -116,35 +214,280 @@ public class CausalClient {
 
   public void request(SessionRequestable session, String impressionId, Requestable... requests)
       throws InterruptedException, ApiException {
-    JsonGenerator _gen = createGenerator();
+    waitFor(requestAsync(session, impressionId, requests));
+  }
+
+  public void request(
+      SessionRequestable session,
+      String impressionId,
+      RequestOptions options,
+      Requestable... requests)
+      throws InterruptedException, ApiException {
+    waitFor(requestAsync(session, impressionId, options, requests));
+  }
+
+  /**
+   * Request features for many sessions at once. The sessions' requests are sent to the impression
+   * server as an array in a single /features call, and the array of responses that comes back is
+   * applied to each session and its features as if they had been requested on their own. A session
+   * the server answers with an error, or whose response can't be read, is left with control values
+   * without affecting the others. Whole-call failures, such as a connection error, a non 200
+   * response or the deadline passing, apply to every session. The feature cache, request
+   * coalescing, hedging and the binary protocol are not used.
+   *
+   * @param batch the sessions and their requests, see {@link BatchRequest#result()} for each one's
+   *     outcome
+   * @param options may set a deadline for the whole batch, or null
+   * @return a future that completes, never exceptionally, once every session has been settled
+   */
+  public CompletableFuture<Void> requestBatchAsync(
+      List<BatchRequest> batch, RequestOptions options) {
+    Deadline deadline = deadline(options);
+    // a sharded client may send the sessions to different servers
+    Map<String, List<BatchRequest>> byServer = new LinkedHashMap<>();
+    for (BatchRequest part : batch) {
+      for (Requestable req : part.getRequests()) req.setSession(part.getSession());
+      byServer.computeIfAbsent(serverUrl(part.getSession()), k -> new ArrayList<>()).add(part);
+    }
+    CompletableFuture<?>[] calls = new CompletableFuture<?>[byServer.size()];
+    int i = 0;
+    for (Map.Entry<String, List<BatchRequest>> server : byServer.entrySet()) {
+      calls[i++] = sendBatch(server.getKey(), server.getValue(), deadline);
+    }
+    return CompletableFuture.allOf(calls);
+  }
+
+  public CompletableFuture<Void> requestBatchAsync(List<BatchRequest> batch) {
+    return requestBatchAsync(batch, null);
+  }
+
+  /**
+   * Request features for many sessions at once and wait for them, see {@link
+   * #requestBatchAsync(List, RequestOptions)}. Errors are reported per session, by {@link
+   * BatchRequest#getError()}.
+   */
+  public void requestBatch(List<BatchRequest> batch, RequestOptions options)
+      throws InterruptedException {
     try {
-      _gen.writeStartObject();
-      _gen.writeFieldName("args");
-      session.serializeArgs(_gen);
-      _gen.writeStringField("impressionId", impressionId);
-    } catch (IOException e) {
-      // this shouldn't happen because the generator writes to RAM.
-      throw new RuntimeException("Error serializing to RAM");
+      requestBatchAsync(batch, options).get();
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Unexpected exception type in batch request", e.getCause());
     }
-    request(session, _gen, requests);
   }
 
-  private void setupRequest(SessionRequestable session, JsonGenerator gen, Requestable[] requests) {
-    for (Requestable req : requests) {
-      req.setSession(session);
+  public void requestBatch(List<BatchRequest> batch) throws InterruptedException {
+    requestBatch(batch, null);
+  }
+
+  // send the parts of a batch that go to one server in one /features call
+  private CompletableFuture<Void> sendBatch(
+      String server, List<BatchRequest> parts, Deadline deadline) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    AtomicBoolean settled = new AtomicBoolean();
+    CircuitBreaker breaker = m_breaker;
+    if (deadline != null && deadline.expired()) {
+      failBatch(parts, DEADLINE_EXCEEDED, done);
+      return done;
     }
+    CircuitBreaker.Phase permit = breaker == null ? null : breaker.tryAcquire();
+    if (breaker != null && permit == null) {
+      failBatch(parts, breaker.rejection(), done);
+      return done;
+    }
+    JsonGenerator gen = createGenerator();
     try {
-      gen.writeFieldName("reqs");
       gen.writeStartArray();
-
-      for (Requestable request : requests) {
+      for (BatchRequest part : parts) {
         gen.writeStartObject();
-        gen.writeStringField("name", request.featureName());
         gen.writeFieldName("args");
-        request.serializeArgs(gen);
+        writeSessionArgs(gen, part.getSession());
+        gen.writeStringField("impressionId", part.getImpressionId());
+        gen.writeFieldName("reqs");
+        writeRequests(gen, part.getRequests());
         gen.writeEndObject();
       }
       gen.writeEndArray();
+    } catch (IOException e) {
+      // this shouldn't happen because the generator writes to RAM.
+      throw new RuntimeException("Error serializing to RAM", e);
+    }
+    BodyBuffer body = getResult(gen);
+    TrafficRecorder recorder = m_recorder;
+    if (recorder != null) {
+      recorder.record(MetricsSink.Endpoint.FEATURES_BATCH, ContentType.APPLICATION_JSON, body);
+    }
+    Future<?> exchange =
+        asyncSendJson(
+            MetricsSink.Endpoint.FEATURES_BATCH,
+            null,
+            URI.create(server + "/features"),
+            body,
+            ContentType.APPLICATION_JSON,
+            deadline,
+            startTiming(MetricsSink.Endpoint.FEATURES_BATCH),
+            new StreamingJsonConsumer(),
+            StreamingJsonConsumer.Response::getCode,
+            new FutureCallback<StreamingJsonConsumer.Response>() {
+              @Override
+              public void completed(StreamingJsonConsumer.Response resp) {
+                if (!settled.compareAndSet(false, true)) return;
+                if (breaker != null) {
+                  if (resp.getCode() >= 500) breaker.failed(permit);
+                  else breaker.succeeded(permit);
+                }
+                if (resp.getCode() != 200) {
+                  failBatch(
+                      parts,
+                      ApiException.fallback(
+                          resp.getCode(),
+                          () ->
+                              "Error code "
+                                  + resp.getCode()
+                                  + " from server: "
+                                  + resp.getBodyText()),
+                      done);
+                  return;
+                }
+                applyBatch(resp.parser(), parts);
+                done.complete(null);
+              }
+
+              @Override
+              public void failed(Exception exception) {
+                if (!settled.compareAndSet(false, true)) return;
+                if (breaker != null) breaker.failed(permit);
+                failBatch(
+                    parts,
+                    ApiException.fallback(
+                        500,
+                        "Failed call to impression server:" + exception.getMessage(),
+                        exception),
+                    done);
+              }
+
+              @Override
+              public void cancelled() {
+                if (!settled.compareAndSet(false, true)) return;
+                if (breaker != null) breaker.abandoned(permit);
+                failBatch(parts, new InterruptedException(), done);
+              }
+            });
+    if (deadline != null) {
+      ScheduledFuture<?> timer =
+          deadline.schedule(
+              () -> {
+                if (!settled.compareAndSet(false, true)) return;
+                exchange.cancel(true);
+                if (breaker != null) breaker.failed(permit);
+                failBatch(parts, DEADLINE_EXCEEDED, done);
+              });
+      done.whenComplete((v, e) -> timer.cancel(false));
+    }
+    return done;
+  }
+
+  // apply each element of a batch response to its part. A bad element only fails its own part.
+  private void applyBatch(JsonParser parser, List<BatchRequest> parts) {
+    int index = 0;
+    try {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new JsonParseException(parser, "Malformed batch response, expecting array.");
+      }
+      for (JsonToken token = parser.nextToken();
+          index < parts.size() && token != null && token != JsonToken.END_ARRAY;
+          token = parser.nextToken()) {
+        TokenBuffer element = new TokenBuffer(parser, null);
+        element.copyCurrentStructure(parser);
+        applyBatchElement(element, parts.get(index++));
+      }
+    } catch (IOException | RuntimeException e) {
+      // the rest of the response can't be read
+      ApiException exception = ApiException.fallback(500, "Error reading batch response", e);
+      while (index < parts.size()) failPart(parts.get(index++), exception);
+      return;
+    }
+    while (index < parts.size()) {
+      failPart(parts.get(index++), BATCH_TOO_SHORT);
+    }
+  }
+
+  private void applyBatchElement(TokenBuffer element, BatchRequest part) {
+    Requestable[] requests = part.getRequests();
+    try {
+      // the server refused this session with {"code": ..., "message": ...}
+      JsonParser peek = element.asParser();
+      if (peek.nextToken() == JsonToken.START_OBJECT
+          && peek.nextToken() == JsonToken.FIELD_NAME
+          && peek.currentName().equals("code")) {
+        peek.nextToken();
+        int code = peek.getIntValue();
+        String message = "";
+        while (peek.nextToken() == JsonToken.FIELD_NAME) {
+          String field = peek.currentName();
+          peek.nextToken();
+          if (field.equals("message")) message = peek.getText();
+          else peek.skipChildren();
+        }
+        String text = message;
+        ApiException exception =
+            ApiException.fallback(code, () -> "Error code " + code + " from server: " + text);
+        errorOutRequests(exception, requests);
+        throw exception;
+      }
+      applyResponse(element.asParser(), part.getSession(), requests, null);
+      recordOutcomes(requests);
+      part.m_result.complete(null);
+    } catch (ApiException e) {
+      recordOutcomes(requests);
+      m_metrics.apiError(MetricsSink.Endpoint.FEATURES_BATCH, e.getStatusCode());
+      part.failed(e);
+    } catch (IOException | RuntimeException e) {
+      // an element of the wrong shape, or a session or feature that failed to read its response
+      failPart(part, ApiException.fallback(500, "Error applying batch response", e));
+    }
+  }
+
+  private void failBatch(
+      List<BatchRequest> parts, Exception exception, CompletableFuture<Void> done) {
+    for (BatchRequest part : parts) failPart(part, exception);
+    done.complete(null);
+  }
+
+  private void failPart(BatchRequest part, Exception exception) {
+    errorOutRequests(exception, part.getRequests());
+    recordOutcomes(part.getRequests());
+    if (exception instanceof ApiException) {
+      m_metrics.apiError(
+          MetricsSink.Endpoint.FEATURES_BATCH, ((ApiException) exception).getStatusCode());
+    }
+    part.failed(exception);
+  }
+
+  /**
+   * Give every feature request that doesn't set its own deadline in its RequestOptions this
+   * deadline. When it passes the request is cancelled and the features are left with their control
+   * values. The remaining time is sent to the impression server in the X-Causal-Deadline-Ms header
+   * so that it can drop work nobody is waiting for.
+   *
+   * @param timeout the deadline, or null for no deadline
+   */
+  public void setDefaultDeadline(Duration timeout) {
+    m_defaultDeadline = timeout;
+  }
+
+  private Deadline deadline(RequestOptions options) {
+    Duration timeout =
+        options != null && options.m_deadline != null ? options.m_deadline : m_defaultDeadline;
+    return timeout == null ? null : Deadline.after(timeout);
+  }
+
+  void setupRequest(SessionRequestable session, JsonGenerator gen, Requestable[] requests) {
+    for (Requestable req : requests) {
+      req.setSession(session);
+    }
+    try {
+      gen.writeFieldName("reqs");
+      writeRequests(gen, requests);
       gen.writeEndObject();
     } catch (IOException e) {
       logger.error("IO Error creating request, using control", e);
@@ -153,64 +496,86 @@ public class CausalClient {
     }
   }
 
-  private void handleResponse(
-      SimpleHttpResponse resp,
+  private void writeRequests(JsonGenerator gen, Requestable[] requests) throws IOException {
+    gen.writeStartArray();
+    for (Requestable request : requests) {
+      gen.writeStartObject();
+      gen.writeStringField("name", request.featureName());
+      gen.writeFieldName("args");
+      request.serializeArgs(gen);
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+  }
+
+  void handleResponse(
+      StreamingJsonConsumer.Response resp,
       SessionRequestable session,
-      JsonGenerator gen,
-      Requestable[] requests)
+      Requestable[] requests,
+      CapturedResponse capture)
       throws ApiException {
     if (resp.getCode() != 200) {
       // if we get an error code, throw an Api exception
       ApiException exception =
-          new ApiException(
+          ApiException.fallback(
               resp.getCode(),
-              "Error code " + resp.getCode() + " from server: " + resp.getBodyText());
+              () -> "Error code " + resp.getCode() + " from server: " + resp.getBodyText());
       errorOutRequests(exception, requests);
       throw exception;
     }
+    applyResponse(resp.parser(), session, requests, capture);
+  }
 
+  // fill in the session and requests from the body of a successful /features response
+  private void applyResponse(
+      JsonParser parser,
+      SessionRequestable session,
+      Requestable[] requests,
+      CapturedResponse capture)
+      throws ApiException {
     try {
-      JsonParser parser = m_mapper.getFactory().createParser(resp.getBodyText());
       if (parser.nextToken() != JsonToken.START_OBJECT) {
-        ApiException exception = new ApiException(500, "Malformed response, using control.");
-        errorOutRequests(exception, requests);
-        throw exception;
+        errorOutRequests(MALFORMED_RESPONSE, requests);
+        throw MALFORMED_RESPONSE;
       }
       parser.nextToken();
-      if (parser.getCurrentName().equals("session")) {
+      if ("session".equals(parser.getCurrentName())) {
         try {
           parser.nextToken();
-          session.deserializeResponse(parser);
+          if (capture != null) {
+            capture.m_session = FeatureResult.record(parser);
+            session.deserializeResponse(FeatureResult.parser(capture.m_session));
+          } else {
+            session.deserializeResponse(parser);
+          }
         } catch (ApiException e) {
           errorOutRequests(e, requests);
           throw e;
         }
       }
-      if (!parser.getCurrentName().equals("impressions")) {
-        ApiException exception =
-            new ApiException(500, "Malformed response, expecting 'impressions', using control.");
-        errorOutRequests(exception, requests);
-        throw exception;
+      if (!"impressions".equals(parser.getCurrentName())) {
+        errorOutRequests(MISSING_IMPRESSIONS, requests);
+        throw MISSING_IMPRESSIONS;
       }
 
       if (!JsonToken.START_ARRAY.equals(parser.nextToken())) {
-        ApiException exception =
-            new ApiException(500, "Malformed response, expecting array, using control.");
-        errorOutRequests(exception, requests);
-        throw exception;
+        errorOutRequests(MISSING_ARRAY, requests);
+        throw MISSING_ARRAY;
       }
       parser.nextToken();
       ApiException delayedException = null;
-      for (Requestable request : requests) {
+      for (int i = 0; i < requests.length; ++i) {
+        Requestable request = requests[i];
+        boolean record = capture != null && capture.wants(i);
         if (parser.currentToken().equals(JsonToken.END_ARRAY)) {
-          ApiException exception =
-              new ApiException(500, "Response too short, using control values.");
-          errorOutRequests(exception, requests);
-          throw exception;
+          errorOutRequests(TOO_SHORT, requests);
+          throw TOO_SHORT;
         }
         if (parser.currentToken().equals(JsonToken.VALUE_STRING)) {
           if (parser.getText().equals("OFF")) {
             request.setActive(false);
+            request.m_outcome = MetricsSink.FeatureOutcome.OFF;
+            if (record) capture.m_features[i] = FeatureResult.OFF;
             parser.nextToken();
             continue;
           } else if (parser.getText().equals("UNKNOWN")) {
@@ -218,51 +583,76 @@ public class CausalClient {
             // is expected during schema migration, so
             // shouldn't throw an exception
             request.setDefaults();
+            request.m_outcome = MetricsSink.FeatureOutcome.UNKNOWN;
+            if (record) capture.m_features[i] = FeatureResult.UNKNOWN;
             parser.nextToken();
             continue;
           }
         }
+        request.m_outcome = MetricsSink.FeatureOutcome.ACTIVE;
         if (!parser.currentToken().equals(JsonToken.START_OBJECT)) {
-          delayedException =
-              new ApiException(
+          request.m_outcome = MetricsSink.FeatureOutcome.ERROR;
+          ApiException malformed =
+              ApiException.fallback(
                   500,
-                  "Malformed response for " + request.featureName() + ", using control values.");
-          request.setError(delayedException);
-          logger.warn(request.getError().getMessage());
-          ;
+                  () ->
+                      "Malformed response for "
+                          + request.featureName()
+                          + ", using control values.");
+          delayedException = malformed;
+          request.setError(malformed);
+          m_log.warn(
+              MetricsSink.Endpoint.FEATURES,
+              500,
+              request.featureName(),
+              malformed::getMessage,
+              null);
           consumeValue(parser);
+          record = false;
         }
         try {
-          request.deserializeResponse(parser);
-          request.setActive(true);
+          if (record) {
+            FeatureResult result = new FeatureResult(FeatureResult.record(parser));
+            result.replay(request);
+            capture.m_features[i] = result;
+          } else {
+            request.deserializeResponse(parser);
+            request.setActive(true);
+          }
         } catch (ApiException e) {
-          delayedException =
-              new ApiException(
+          ApiException unparsed =
+              ApiException.fallback(
                   500,
-                  "Error parsing response from server for "
-                      + request.featureName()
-                      + ", reverting to control.",
+                  () ->
+                      "Error parsing response from server for "
+                          + request.featureName()
+                          + ", reverting to control.",
                   e);
-          request.setError(delayedException);
-          logger.warn(request.getError().getMessage());
-          ;
+          delayedException = unparsed;
+          request.setError(unparsed);
+          request.m_outcome = MetricsSink.FeatureOutcome.ERROR;
+          m_log.warn(
+              MetricsSink.Endpoint.FEATURES,
+              500,
+              request.featureName(),
+              unparsed::getMessage,
+              null);
         }
       }
       if (parser.nextToken() == JsonToken.FIELD_NAME) {
         if (parser.currentName().equals("errors")) {
           // handle any errors from the request
           if (!JsonToken.START_ARRAY.equals(parser.nextToken())) {
-            ApiException exception =
-                new ApiException(
-                    500, "Malformed response, expecting array. May be unreported errors.");
-            errorOutRequests(exception, requests);
-            throw exception;
+            errorOutRequests(MALFORMED_ERRORS, requests);
+            throw MALFORMED_ERRORS;
           }
           int index = 0;
           while (parser.nextToken() != JsonToken.END_ARRAY) {
             if (parser.currentToken() == JsonToken.VALUE_NULL) index++;
             else {
-              delayedException = new ApiException(500, parser.getText());
+              delayedException = ApiException.fallback(500, parser.getText());
+              if (capture != null) capture.m_features[index] = null;
+              requests[index].m_outcome = MetricsSink.FeatureOutcome.ERROR;
               requests[index++].setError(delayedException);
             }
           }
@@ -270,19 +660,22 @@ public class CausalClient {
       }
       if (delayedException != null) throw delayedException;
     } catch (JsonParseException e1) {
-      ApiException exception = new ApiException(500, "Malformed response, using control.", e1);
+      ApiException exception = ApiException.fallback(500, "Malformed response, using control.", e1);
       errorOutRequests(exception, requests);
       throw exception;
     } catch (IOException e1) {
       // may happen if we lose connection mid string
       errorOutRequests(e1, requests);
-      throw new ApiException(500, "Error reading from server", e1);
+      throw ApiException.fallback(500, "Error reading from server", e1);
     }
   }
 
   protected void request(SessionRequestable session, JsonGenerator gen, Requestable... requests)
       throws InterruptedException, ApiException {
-    CompletableFuture<Void> result = requestAsync(session, gen, requests);
+    waitFor(requestAsync(session, gen, requests));
+  }
+
+  private void waitFor(CompletableFuture<Void> result) throws InterruptedException, ApiException {
     try {
       result.get();
     } catch (ExecutionException e) {
@@ -298,104 +691,1077 @@ public class CausalClient {
   // request.
   protected CompletableFuture<Void> requestAsync(
       SessionRequestable session, JsonGenerator gen, Requestable... requests) {
+    return requestAsync(
+        session, gen, requests, null, deadline(null), startTiming(MetricsSink.Endpoint.FEATURES));
+  }
+
+  // as above, recording the parts of the response that were applied into capture if it is not null
+  private CompletableFuture<Void> requestAsync(
+      SessionRequestable session,
+      JsonGenerator gen,
+      Requestable[] requests,
+      CapturedResponse capture,
+      Deadline deadline,
+      RequestTiming timing) {
     setupRequest(session, gen, requests);
-    CompletableFuture<Void> result = new CompletableFuture<>();
-    asyncSendJson(
+    return sendRequest(
         session,
-        URI.create(m_impressionServerUrl + "/features"),
         getResult(gen),
-        new FutureCallback<SimpleHttpResponse>() {
+        ContentType.APPLICATION_JSON,
+        requests,
+        capture,
+        null,
+        deadline,
+        timing);
+  }
 
-          @Override
-          public void completed(SimpleHttpResponse resp) {
+  // send a /features body. If the body is binary and the server refuses it, jsonBody supplies the
+  // same request encoded as JSON to resend. If the deadline passes before the response is handled,
+  // the exchange is cancelled and the requests are left with control values.
+  private CompletableFuture<Void> sendRequest(
+      SessionRequestable session,
+      BodyBuffer body,
+      ContentType contentType,
+      Requestable[] requests,
+      CapturedResponse capture,
+      Supplier<BodyBuffer> jsonBody,
+      Deadline deadline,
+      RequestTiming timing) {
+    return new FeaturesCall(
+            session, body, contentType, requests, capture, jsonBody, deadline, timing)
+        .start();
+  }
 
-            try {
-              handleResponse(resp, session, gen, requests);
-              result.complete(null);
-            } catch (ApiException e2) {
-              result.completeExceptionally(e2);
-            }
-          }
+  // A /features call, made of one exchange or, when hedging, up to two identical exchanges. The
+  // first exchange to succeed, the deadline, or the last exchange to fail settles the call.
+  private final class FeaturesCall {
 
-          @Override
-          public void failed(Exception exception) {
-            // Error while connecting to the server
-            errorOutRequests(exception, requests);
-            result.completeExceptionally(
-                new ApiException(
-                    500, "Failed call to impression server:" + exception.getMessage(), exception));
-          }
+    FeaturesCall(
+        SessionRequestable session,
+        BodyBuffer body,
+        ContentType contentType,
+        Requestable[] requests,
+        CapturedResponse capture,
+        Supplier<BodyBuffer> jsonBody,
+        Deadline deadline,
+        RequestTiming timing) {
+      m_timing = timing;
+      m_session = session;
+      m_body = body;
+      m_contentType = contentType;
+      m_requests = requests;
+      m_capture = capture;
+      m_jsonBody = jsonBody;
+      m_deadline = deadline;
+    }
 
-          @Override
-          public void cancelled() {
-            result.completeExceptionally(new InterruptedException());
-          }
-        });
+    CompletableFuture<Void> start() {
+      TrafficRecorder recorder = m_recorder;
+      if (recorder != null) recorder.record(MetricsSink.Endpoint.FEATURES, m_contentType, m_body);
+      if (m_deadline != null && m_deadline.expired()) {
+        m_body.release();
+        deadlineExceeded(m_requests, m_result);
+        if (m_timing != null) finishTiming(m_timing);
+        return m_result;
+      }
+      m_permit = m_breaker == null ? null : m_breaker.tryAcquire();
+      if (m_breaker != null && m_permit == null) {
+        m_body.release();
+        if (m_timing != null) finishTiming(m_timing);
+        return rejected(m_breaker, m_requests);
+      }
+      Hedger hedger = m_hedger;
+      m_callHedger = hedger;
+      long hedgeDelay = hedger == null ? -1 : hedger.delayNanos();
+      if (hedger != null) hedger.requested();
+      if (hedgeDelay >= 0 && (m_deadline == null || m_deadline.remainingNanos() > hedgeDelay)) {
+        // keep a reference to the body for the hedge, each exchange releases one
+        m_body.retain();
+        m_spare.set(true);
+        ScheduledFuture<?> timer = ClientTimer.schedule(() -> hedge(hedger), hedgeDelay);
+        m_result.whenComplete(
+            (v, e) -> {
+              timer.cancel(false);
+              if (m_spare.getAndSet(false)) m_body.release();
+            });
+      }
+      try {
+        m_primary = send(m_timing);
+      } catch (RuntimeException e) {
+        // settle the call so the hedge timer is cancelled and its reference to the body released
+        m_settled.set(true);
+        if (m_breaker != null) m_breaker.abandoned(m_permit);
+        m_result.completeExceptionally(e);
+        throw e;
+      }
+      if (m_deadline != null) {
+        ScheduledFuture<?> timer =
+            m_deadline.schedule(
+                () -> {
+                  if (!m_settled.compareAndSet(false, true)) return;
+                  cancelExchanges();
+                  if (m_breaker != null) m_breaker.failed(m_permit);
+                  deadlineExceeded(m_requests, m_result);
+                });
+        m_result.whenComplete((v, e) -> timer.cancel(false));
+      }
+      return m_result;
+    }
 
-    return result;
-  }
+    private Future<?> send(RequestTiming timing) {
+      m_outstanding.incrementAndGet();
+      try {
+        return asyncSendJson(
+            MetricsSink.Endpoint.FEATURES,
+            m_session::addHeaders,
+            URI.create(serverUrl(m_session) + "/features"),
+            m_body,
+            m_contentType,
+            m_deadline,
+            timing,
+            new StreamingJsonConsumer(),
+            StreamingJsonConsumer.Response::getCode,
+            new FutureCallback<StreamingJsonConsumer.Response>() {
+              @Override
+              public void completed(StreamingJsonConsumer.Response resp) {
+                m_outstanding.decrementAndGet();
+                if (!m_settled.compareAndSet(false, true)) return;
+                cancelExchanges();
+                // time the call rather than the exchange, so a slow primary that loses to its hedge
+                // still pulls the delay up instead of dropping out of the samples
+                if (m_callHedger != null && resp.getCode() == 200)
+                  m_callHedger.record(System.nanoTime() - m_started);
+                if (m_breaker != null) {
+                  if (resp.getCode() >= 500) m_breaker.failed(m_permit);
+                  else m_breaker.succeeded(m_permit);
+                }
+                handle(resp, timing);
+              }
 
-  // mark the requests with the recoverable error and log it.
-  private void errorOutRequests(Exception exception, Requestable[] requests) {
-    logger.warn(exception.getMessage());
-    for (Requestable r : requests) {
-      r.setError(exception);
+              @Override
+              public void failed(Exception exception) {
+                // let the other exchange have its chance
+                if (m_outstanding.decrementAndGet() > 0) return;
+                allFailed(exception);
+              }
+
+              @Override
+              public void cancelled() {
+                if (m_outstanding.decrementAndGet() > 0) return;
+                if (!m_settled.compareAndSet(false, true)) return;
+                // don't leave a half open breaker waiting for this probe
+                if (m_breaker != null) m_breaker.abandoned(m_permit);
+                m_result.completeExceptionally(new InterruptedException());
+              }
+            });
+      } catch (RuntimeException e) {
+        // no callback will run for an exchange that was never sent
+        m_outstanding.decrementAndGet();
+        throw e;
+      }
     }
-    return;
-  }
 
-  // skip over the value that the parser is currently pointing to
-  public static void consumeValue(JsonParser parser) throws IOException {
-    switch (parser.currentToken()) {
-      case START_ARRAY:
-      case START_OBJECT:
-        parser.skipChildren();
-        parser.nextToken();
-        break;
-      default:
-        parser.nextToken();
+    // send the same body again, if the call is still outstanding and the budget allows
+    private void hedge(Hedger hedger) {
+      if (m_settled.get() || !m_spare.getAndSet(false)) return;
+      if (!hedger.tryHedge()) {
+        m_body.release();
+        return;
+      }
+      try {
+        m_hedge = send(m_timing == null ? null : m_timing.again(true));
+      } catch (RuntimeException e) {
+        // the primary settles the call, unless it already failed while waiting for this exchange
+        if (m_outstanding.get() == 0) allFailed(e);
+        return;
+      }
+      // the call may have settled while we were sending
+      if (m_settled.get()) m_hedge.cancel(true);
+    }
+
+    // every exchange failed
+    private void allFailed(Exception exception) {
+      if (!m_settled.compareAndSet(false, true)) return;
+      if (m_breaker != null) m_breaker.failed(m_permit);
+      // Error while connecting to the server
+      errorOutRequests(exception, m_requests);
+      recordOutcomes(m_requests);
+      m_metrics.apiError(MetricsSink.Endpoint.FEATURES, 500);
+      m_result.completeExceptionally(
+          ApiException.fallback(
+              500, "Failed call to impression server:" + exception.getMessage(), exception));
+    }
+
+    private void cancelExchanges() {
+      Future<?> primary = m_primary;
+      Future<?> hedge = m_hedge;
+      if (primary != null) primary.cancel(true);
+      if (hedge != null) hedge.cancel(true);
+    }
+
+    private void handle(StreamingJsonConsumer.Response resp, RequestTiming timing) {
+      if (m_jsonBody != null && resp.getCode() == 200) m_binaryAccepted = true;
+      if (refusesBinary(resp.getCode())) {
+        logger.warn(
+            "Impression server refused a binary request with " + resp.getCode() + ", using JSON.");
+        m_binaryRequests = false;
+        BodyBuffer retry;
+        try {
+          retry = m_jsonBody.get();
+        } catch (RuntimeException e) {
+          errorOutRequests(e, m_requests);
+          recordOutcomes(m_requests);
+          m_metrics.apiError(MetricsSink.Endpoint.FEATURES, 500);
+          m_result.completeExceptionally(
+              ApiException.fallback(500, "Error encoding request, using control.", e));
+          return;
+        }
+        sendRequest(
+                m_session,
+                retry,
+                ContentType.APPLICATION_JSON,
+                m_requests,
+                m_capture,
+                null,
+                m_deadline,
+                m_timing == null ? null : m_timing.again(false))
+            .whenComplete(
+                (v, e) -> {
+                  if (e != null) m_result.completeExceptionally(e);
+                  else m_result.complete(null);
+                });
+        return;
+      }
+
+      try {
+        handleResponse(resp, m_session, m_requests, m_capture);
+        if (timing != null) timing.m_parsed = System.nanoTime();
+        recordOutcomes(m_requests);
+        m_result.complete(null);
+      } catch (ApiException e2) {
+        recordOutcomes(m_requests);
+        m_metrics.apiError(MetricsSink.Endpoint.FEATURES, e2.getStatusCode());
+        m_result.completeExceptionally(e2);
+      }
     }
+
+    // did the server refuse this binary request because it can't read it? A server or proxy that
+    // doesn't know Smile may answer with any of these codes. Until a binary request has
+    // succeeded, any other error is taken to mean the same.
+    private boolean refusesBinary(int code) {
+      if (m_jsonBody == null || code == 200) return false;
+      return code == 400 || code == 406 || code == 415 || !m_binaryAccepted;
+    }
+
+    private final SessionRequestable m_session;
+    private final BodyBuffer m_body;
+    private final ContentType m_contentType;
+    private final Requestable[] m_requests;
+    private final CapturedResponse m_capture;
+    private final Supplier<BodyBuffer> m_jsonBody;
+    private final Deadline m_deadline;
+    private final RequestTiming m_timing;
+    private final CircuitBreaker m_breaker = CausalClient.this.m_breaker;
+    // the breaker phase this call was let through in, which its outcome is reported to
+    private CircuitBreaker.Phase m_permit;
+    private final CompletableFuture<Void> m_result = new CompletableFuture<>();
+    private final long m_started = System.nanoTime();
+    // the hedger this call was started with, fed with the call's response time
+    private Hedger m_callHedger;
+    // whichever of the responses and the deadline gets here first applies its outcome
+    private final AtomicBoolean m_settled = new AtomicBoolean();
+    // exchanges whose callbacks haven't run yet
+    private final AtomicInteger m_outstanding = new AtomicInteger();
+    // set while we hold an unused reference to the body for a hedge
+    private final AtomicBoolean m_spare = new AtomicBoolean();
+    private volatile Future<?> m_primary;
+    private volatile Future<?> m_hedge;
   }
 
-  // Send the Json payload to the signal handler (asynchronously)
-  public Future<Void> signal(
-      SessionRequestable session, JsonGenerator gen, RequestOptions options) {
-    return asyncSendJson(
-        "signalling event",
-        session,
-        URI.create(m_impressionServerUrl + "/signal"),
-        getResult(gen),
-        options);
+  private void deadlineExceeded(Requestable[] requests, CompletableFuture<Void> result) {
+    ApiException exception = DEADLINE_EXCEEDED;
+    errorOutRequests(exception, requests);
+    recordOutcomes(requests);
+    m_metrics.apiError(MetricsSink.Endpoint.FEATURES, 504);
+    result.completeExceptionally(exception);
   }
 
-  public void keepAlive(SessionRequestable session) {
-    StringWriter sw = new StringWriter();
-    JsonGenerator gen;
+  // Send the requests to the impression server. If coalescing is on and an identical request is
+  // already outstanding, wait for its response instead. sessionArgs are the serialized session
+  // arguments if the caller already has them, or null.
+  private CompletableFuture<Void> fetch(
+      SessionRequestable session,
+      String sessionArgs,
+      String impressionId,
+      Requestable[] requests,
+      CapturedResponse capture,
+      Deadline deadline) {
+    // a sampled request is reported whether it gets an exchange, a shared response or neither
+    RequestTiming timing = startTiming(MetricsSink.Endpoint.FEATURES);
+    CircuitBreaker breaker = m_breaker;
+    if (breaker != null && breaker.rejecting()) {
+      for (Requestable req : requests) {
+        req.setSession(session);
+      }
+      if (timing != null) finishTiming(timing);
+      return rejected(breaker, requests);
+    }
     try {
-      gen = m_mapper.getFactory().createGenerator(sw);
-      gen.writeStartObject();
-      gen.writeFieldName("id");
-      session.serializeIds(gen);
-      gen.writeEndObject();
-      asyncSendJson(
-          "keepAlive",
-          session,
-          URI.create(m_impressionServerUrl + "/signal"),
-          getResult(gen),
-          null);
+      if (!m_coalesceRequests) {
+        if (useBinary(session, requests)) {
+          return sendFeatures(
+              session, sessionArgs, impressionId, null, requests, capture, deadline, timing);
+        }
+        JsonGenerator gen = createGenerator();
+        gen.writeStartObject();
+        gen.writeFieldName("args");
+        if (sessionArgs != null) gen.writeRawValue(sessionArgs);
+        else writeSessionArgs(gen, session);
+        gen.writeStringField("impressionId", impressionId);
+        return requestAsync(session, gen, requests, capture, deadline, timing);
+      }
+
+      String args = sessionArgs != null ? sessionArgs : encodedArgs(session).getValue();
+      JsonGenerator reqsGen = createGenerator();
+      writeRequests(reqsGen, requests);
+      String reqs = getString(reqsGen);
+      String key = args + '\0' + reqs;
+      // followers are filled from the leader's response, so it has to record all of it
+      if (capture == null) capture = new CapturedResponse(null, requests.length);
+      else capture.recordAll();
+      SharedRequest shared = new SharedRequest(session, args, impressionId, capture);
+      SharedRequest leader = m_sharedRequests.putIfAbsent(key, shared);
+      if (leader != null) {
+        return follow(leader, session, impressionId, requests, capture, deadline, timing);
+      }
+
+      CompletableFuture<Void> result;
+      try {
+        result =
+            sendFeatures(session, args, impressionId, reqs, requests, capture, deadline, timing);
+      } catch (RuntimeException e) {
+        m_sharedRequests.remove(key, shared);
+        shared.m_result.completeExceptionally(e);
+        shared.takeServed();
+        throw e;
+      }
+      result.whenComplete(
+          (v, e) -> {
+            m_sharedRequests.remove(key, shared);
+            // the followers waiting by now are filled in as this completes
+            if (e != null) shared.m_result.completeExceptionally(e);
+            else shared.m_result.complete(null);
+            List<ServedImpression> served = shared.takeServed();
+            if (!served.isEmpty()) registerImpressions(session, args, served);
+          });
+      return result;
     } catch (IOException e) {
-      // we are writing to a string, so this should never fail
-      throw new RuntimeException("Error creating in memory generator.", e);
+      // this shouldn't happen because the generator writes to RAM.
+      throw new RuntimeException("Error serializing to RAM");
     }
   }
 
-  /**
-   * Make a jackson generator to serialize an external callback. The generator is left at the place
-   * where you write the external value. caller should call this, write the value to the generator,
-   * then call signalExternal
-   *
-   * @param session
-   * @param impressionIds
+  // send a /features request, in Smile if it is enabled. sessionArgs and reqs are the serialized
+  // session arguments and requests if the caller already has them, or null.
+  private CompletableFuture<Void> sendFeatures(
+      SessionRequestable session,
+      String sessionArgs,
+      String impressionId,
+      String reqs,
+      Requestable[] requests,
+      CapturedResponse capture,
+      Deadline deadline,
+      RequestTiming timing)
+      throws IOException {
+    for (Requestable req : requests) {
+      req.setSession(session);
+    }
+    if (!useBinary(session, requests)) {
+      return sendRequest(
+          session,
+          featuresBody(false, session, sessionArgs, impressionId, reqs, requests),
+          ContentType.APPLICATION_JSON,
+          requests,
+          capture,
+          null,
+          deadline,
+          timing);
+    }
+    return sendRequest(
+        session,
+        featuresBody(true, session, sessionArgs, impressionId, reqs, requests),
+        SMILE,
+        requests,
+        capture,
+        () -> {
+          try {
+            return featuresBody(false, session, sessionArgs, impressionId, reqs, requests);
+          } catch (IOException e) {
+            // this shouldn't happen because the generator writes to RAM.
+            throw new RuntimeException("Error serializing to RAM", e);
+          }
+        },
+        deadline,
+        timing);
+  }
+
+  private boolean useBinary(SessionRequestable session, Requestable[] requests) {
+    if (!m_binaryRequests || !session.supportsBinaryEncoding()) return false;
+    for (Requestable req : requests) {
+      if (!req.supportsBinaryEncoding()) return false;
+    }
+    return true;
+  }
+
+  private BodyBuffer featuresBody(
+      boolean binary,
+      SessionRequestable session,
+      String sessionArgs,
+      String impressionId,
+      String reqs,
+      Requestable[] requests)
+      throws IOException {
+    JsonGenerator gen =
+        binary ? m_smileFactory.createGenerator(new BodyBuffer()) : createGenerator();
+    gen.writeStartObject();
+    gen.writeFieldName("args");
+    if (sessionArgs != null) writeJson(gen, sessionArgs);
+    else writeSessionArgs(gen, session);
+    gen.writeStringField("impressionId", impressionId);
+    gen.writeFieldName("reqs");
+    if (reqs != null) writeJson(gen, reqs);
+    else writeRequests(gen, requests);
+    gen.writeEndObject();
+    return getResult(gen);
+  }
+
+  // write a value that is already serialized as JSON, transcoding it if gen isn't writing JSON
+  private static void writeJson(JsonGenerator gen, String json) throws IOException {
+    if (!(gen instanceof SmileGenerator)) {
+      gen.writeRawValue(json);
+      return;
+    }
+    try (JsonParser parser = m_mapper.getFactory().createParser(json)) {
+      parser.nextToken();
+      gen.copyCurrentStructure(parser);
+    }
+  }
+
+  // fill in requests from an identical request that is already outstanding. The follower's
+  // impression is recorded along with the other followers' once the leader's response is applied.
+  private CompletableFuture<Void> follow(
+      SharedRequest leader,
+      SessionRequestable session,
+      String impressionId,
+      Requestable[] requests,
+      CapturedResponse capture,
+      Deadline deadline,
+      RequestTiming timing) {
+    for (Requestable req : requests) {
+      req.setSession(session);
+    }
+    CompletableFuture<Void> ret = new CompletableFuture<>();
+    if (timing != null) {
+      timing.m_coalesced = true;
+      ret.whenComplete((v, e) -> finishTiming(timing));
+    }
+    // the follower keeps its own deadline, whatever the leader's is
+    AtomicBoolean settled = new AtomicBoolean();
+    if (deadline != null) {
+      if (deadline.expired()) {
+        settled.set(true);
+        deadlineExceeded(requests, ret);
+        return ret;
+      }
+      ScheduledFuture<?> timer =
+          deadline.schedule(
+              () -> {
+                if (settled.compareAndSet(false, true)) deadlineExceeded(requests, ret);
+              });
+      ret.whenComplete((v, e) -> timer.cancel(false));
+    }
+    leader.m_result.whenComplete(
+        (v, failure) -> {
+          if (!settled.compareAndSet(false, true)) return;
+          if (timing != null) timing.m_received = System.nanoTime();
+          CapturedResponse from = leader.m_capture;
+          Throwable error = failure;
+          if (from.m_session != null && session != leader.m_session) {
+            try {
+              session.deserializeResponse(FeatureResult.parser(from.m_session));
+            } catch (ApiException e) {
+              errorOutRequests(e, requests);
+              ret.completeExceptionally(e);
+              return;
+            }
+          }
+          capture.m_session = from.m_session;
+          ServedImpression served = new ServedImpression(impressionId, requests.length);
+          for (int i = 0; i < requests.length; ++i) {
+            FeatureResult result = from.m_features[i];
+            capture.m_features[i] = result;
+            if (result == null) {
+              if (error == null) error = ApiException.fallback(500, "Missing shared response");
+              requests[i].setError(
+                  error instanceof Exception ? (Exception) error : new Exception(error));
+              continue;
+            }
+            try {
+              result.replay(requests[i]);
+              served.add(requests[i], result);
+            } catch (ApiException e) {
+              capture.m_features[i] = null;
+              requests[i].setError(e);
+              error = e;
+            }
+          }
+          if (timing != null) {
+            timing.m_parsed = System.nanoTime();
+            if (error == null) timing.m_status = 200;
+            else if (error instanceof ApiException)
+              timing.m_status = ((ApiException) error).getStatusCode();
+          }
+          // the leader's exchange already recorded its own impression
+          if (!served.isEmpty()
+              && !Objects.equals(impressionId, leader.m_impressionId)
+              && !leader.addServed(served)) {
+            registerImpressions(session, leader.m_sessionArgs, Collections.singletonList(served));
+          }
+          if (error != null) ret.completeExceptionally(error);
+          else ret.complete(null);
+        });
+    return ret;
+  }
+
+  // serve what we can from the feature cache and request the rest from the impression server
+  private CompletableFuture<Void> cachedRequestAsync(
+      FeatureCache cache,
+      SessionRequestable session,
+      String impressionId,
+      Requestable[] requests,
+      Deadline deadline) {
+    String sessionArgs = encodedArgs(session).getValue();
+    String[] keys = new String[requests.length];
+    FeatureCache.Entry[] hits = new FeatureCache.Entry[requests.length];
+    int hitCount = 0;
+    for (int i = 0; i < requests.length; ++i) {
+      Requestable request = requests[i];
+      request.setSession(session);
+      if (!cache.isCached(request.featureName())) continue;
+      keys[i] =
+          FeatureCache.featureKey(
+              sessionArgs, request.featureName(), serialize(request::serializeArgs));
+      hits[i] = cache.get(keys[i]);
+      if (hits[i] != null) hitCount++;
+    }
+
+    // if everything is cached, the session response has to come from the cache as well
+    boolean allCached = false;
+    if (hitCount == requests.length) {
+      FeatureCache.Entry sessionHit = cache.get(FeatureCache.sessionKey(sessionArgs));
+      if (sessionHit != null) {
+        try {
+          if (sessionHit.session() != null)
+            session.deserializeResponse(FeatureResult.parser(sessionHit.session()));
+          allCached = true;
+        } catch (ApiException e) {
+          cache.remove(FeatureCache.sessionKey(sessionArgs));
+        }
+      }
+    }
+
+    ServedImpression served = new ServedImpression(impressionId, hitCount);
+    List<Integer> missed = new ArrayList<>(requests.length - hitCount);
+    for (int i = 0; i < requests.length; ++i) {
+      if (hits[i] != null && (allCached || hitCount < requests.length)) {
+        try {
+          hits[i].feature().replay(requests[i]);
+          served.add(requests[i], hits[i].feature());
+          continue;
+        } catch (ApiException e) {
+          cache.remove(keys[i]);
+        }
+      }
+      missed.add(i);
+    }
+    if (!served.isEmpty())
+      registerImpressions(session, sessionArgs, Collections.singletonList(served));
+    if (missed.isEmpty()) return CompletableFuture.completedFuture(null);
+
+    Requestable[] remaining = new Requestable[missed.size()];
+    String[] remainingKeys = new String[missed.size()];
+    boolean[] wanted = new boolean[missed.size()];
+    for (int i = 0; i < remaining.length; ++i) {
+      remaining[i] = requests[missed.get(i)];
+      remainingKeys[i] = keys[missed.get(i)];
+      wanted[i] = remainingKeys[i] != null;
+    }
+    CapturedResponse capture = new CapturedResponse(wanted, remaining.length);
+    CompletableFuture<Void> result =
+        fetch(session, sessionArgs, impressionId, remaining, capture, deadline);
+    result.thenRun(
+        () -> {
+          cache.put(FeatureCache.sessionKey(sessionArgs), capture.m_session);
+          for (int i = 0; i < remaining.length; ++i) {
+            if (capture.m_features[i] != null) cache.put(remainingKeys[i], capture.m_features[i]);
+          }
+        });
+    return result;
+  }
+
+  // record impressions for features that were served from memory, with the values that were
+  // served, in one /impression call. The server records them as they are rather than computing
+  // the features again. sessionArgs are the serialized session arguments they were served for.
+  private void registerImpressions(
+      SessionRequestable session, String sessionArgs, List<ServedImpression> served) {
+    JsonGenerator gen = createGenerator();
+    try {
+      gen.writeStartArray();
+      for (ServedImpression impression : served) {
+        gen.writeStartObject();
+        gen.writeFieldName("args");
+        gen.writeRawValue(sessionArgs);
+        gen.writeStringField("impressionId", impression.m_impressionId);
+        gen.writeFieldName("reqs");
+        writeRequests(
+            gen, impression.m_requests.toArray(new Requestable[impression.m_requests.size()]));
+        gen.writeArrayFieldStart("impressions");
+        for (FeatureResult value : impression.m_values) value.write(gen);
+        gen.writeEndArray();
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+    } catch (IOException e) {
+      // this shouldn't happen because the generator writes to RAM.
+      throw new RuntimeException("Error serializing to RAM", e);
+    }
+    BodyBuffer body = getResult(gen);
+    TrafficRecorder recorder = m_recorder;
+    if (recorder != null)
+      recorder.record(MetricsSink.Endpoint.IMPRESSIONS, ContentType.APPLICATION_JSON, body);
+    asyncSendJson(
+        MetricsSink.Endpoint.IMPRESSIONS,
+        session::addHeaders,
+        URI.create(serverUrl(session) + "/impression"),
+        body,
+        ContentType.APPLICATION_JSON,
+        null,
+        startTiming(MetricsSink.Endpoint.IMPRESSIONS),
+        SimpleResponseConsumer.create(),
+        SimpleHttpResponse::getCode,
+        new FutureCallback<SimpleHttpResponse>() {
+          @Override
+          public void completed(SimpleHttpResponse result) {
+            if (result.getCode() == 200) return;
+            m_metrics.apiError(MetricsSink.Endpoint.IMPRESSIONS, result.getCode());
+            m_log.warn(
+                MetricsSink.Endpoint.IMPRESSIONS,
+                result.getCode(),
+                null,
+                () -> result.getCode() + " registering impressions",
+                null);
+          }
+
+          @Override
+          public void failed(Exception ex) {
+            m_metrics.apiError(MetricsSink.Endpoint.IMPRESSIONS, 500);
+            m_log.warn(
+                MetricsSink.Endpoint.IMPRESSIONS,
+                500,
+                null,
+                () -> "Error registering impressions: " + ex.getMessage(),
+                null);
+          }
+
+          @Override
+          public void cancelled() {}
+        });
+  }
+
+  // the features served from memory for an impression, and the values they were served
+  private static final class ServedImpression {
+    ServedImpression(String impressionId, int size) {
+      m_impressionId = impressionId;
+      m_requests = new ArrayList<>(size);
+      m_values = new ArrayList<>(size);
+    }
+
+    void add(Requestable request, FeatureResult value) {
+      m_requests.add(request);
+      m_values.add(value);
+    }
+
+    boolean isEmpty() {
+      return m_requests.isEmpty();
+    }
+
+    final String m_impressionId;
+    final List<Requestable> m_requests;
+    final List<FeatureResult> m_values;
+  }
+
+  /**
+   * Serve repeated feature requests from an in process cache. Responses are keyed on the session
+   * arguments, the feature name and the feature arguments. Cache hits are replayed into the
+   * requested objects without waiting for the impression server. Their impressions are recorded in
+   * the background by an /impression call that carries the values that were served, so the server
+   * records what the user saw without computing the features again. Replaces any cache that was
+   * already enabled.
+   *
+   * @param options which features to cache, for how long and how many entries to keep
+   */
+  public void enableFeatureCache(FeatureCacheOptions options) {
+    m_featureCache = new FeatureCache(options);
+  }
+
+  /** Stop caching feature responses and drop anything that was cached. */
+  public void disableFeatureCache() {
+    m_featureCache = null;
+  }
+
+  /**
+   * Share a single /features exchange between concurrent requests for the same session arguments,
+   * features and feature arguments. The first caller's request is sent and later callers wait for
+   * its response, which is replayed into their own Requestable objects. Errors from the shared
+   * response are applied to every caller. Each caller keeps its own deadline: one whose deadline
+   * passes while it waits gets control values and a 504, without affecting the others.
+   *
+   * <p>Each caller keeps its own impression id. The shared exchange carries the first caller's id.
+   * The impressions of the callers with other ids are recorded, with the values they were served,
+   * by a single /impression call once the shared response has been applied.
+   */
+  public void enableRequestCoalescing() {
+    m_coalesceRequests = true;
+  }
+
+  /** Send every feature request on its own exchange. */
+  public void disableRequestCoalescing() {
+    m_coalesceRequests = false;
+  }
+
+  /**
+   * Encode /features requests as Smile, the binary form of JSON, and ask for Smile responses. The
+   * server may still answer in JSON. If it refuses a binary request with a 400, 406 or 415, or with
+   * any other error before a binary request has succeeded, the request is resent as JSON and binary
+   * requests are turned off for this client. Requests with a session or feature that doesn't
+   * support binary encoding are always sent as JSON.
+   */
+  public void enableBinaryProtocol() {
+    m_binaryRequests = true;
+  }
+
+  /** Send /features requests as JSON. */
+  public void disableBinaryProtocol() {
+    m_binaryRequests = false;
+  }
+
+  /**
+   * Send a second, identical /features request when the first hasn't been answered within a
+   * percentile of recent response times. The first response wins and the other exchange is
+   * cancelled. Both carry the same impression id, so the server can tell they are duplicates. The
+   * number of hedges is capped by a budget, so a slow server never sees its load doubled. Replaces
+   * any hedging configuration that was already enabled.
+   *
+   * @param options the percentile, the budget and how many response times to track
+   */
+  public void enableHedging(HedgeOptions options) {
+    m_hedger = new Hedger(options);
+  }
+
+  /** Send each /features request once. */
+  public void disableHedging() {
+    m_hedger = null;
+  }
+
+  /**
+   * Stop calling the impression server while it is failing. Once the failure rate of /features
+   * calls crosses a threshold, requests fail immediately with control values and a 503
+   * ApiException, without serializing anything or touching the network. Cached features are still
+   * served. After the open period a few probe requests decide whether to resume. Replaces any
+   * breaker that was already enabled.
+   *
+   * @param options thresholds, timing and a listener for state changes
+   */
+  public void enableCircuitBreaker(CircuitBreakerOptions options) {
+    m_breaker = new CircuitBreaker(options);
+  }
+
+  /** Always call the impression server. */
+  public void disableCircuitBreaker() {
+    m_breaker = null;
+  }
+
+  // replace the load balancer, closing the old one. With null every exchange goes to this client's
+  // url again.
+  void setBalancer(LoadBalancer balancer) {
+    LoadBalancer old;
+    m_lock.lock();
+    try {
+      old = m_balancer;
+      m_balancer = balancer;
+    } finally {
+      m_lock.unlock();
+    }
+    if (old != null) old.close();
+  }
+
+  LoadBalancer balancer() {
+    return m_balancer;
+  }
+
+  CloseableHttpAsyncClient httpClient() {
+    return m_asyncClient;
+  }
+
+  /**
+   * @return the circuit breaker's state, CLOSED if it isn't enabled
+   */
+  public CircuitState getCircuitState() {
+    CircuitBreaker breaker = m_breaker;
+    return breaker == null ? CircuitState.CLOSED : breaker.state();
+  }
+
+  /**
+   * Report latencies, in flight exchanges and status codes per endpoint, and how each feature was
+   * served, to a sink. Use {@link CausalMetrics} to keep them in memory. The sink is called on the
+   * http client's I/O threads. Replaces any sink that was already set.
+   *
+   * @param sink where measurements go, or null to stop reporting
+   */
+  public void setMetricsSink(MetricsSink sink) {
+    m_metrics = sink == null ? MetricsSink.NONE : sink;
+  }
+
+  MetricsSink metrics() {
+    return m_metrics;
+  }
+
+  /**
+   * Limit how much is logged about failing requests. Past the budget, failures are summarized
+   * periodically instead of logged one by one. Replaces the options already set, logging the
+   * summaries collected so far.
+   *
+   * @param options the budget and interval, see {@link LogOptions}
+   */
+  public void setLogOptions(LogOptions options) {
+    LogAggregator old = m_log;
+    m_log = new LogAggregator(options);
+    old.flush();
+  }
+
+  LogAggregator log() {
+    return m_log;
+  }
+
+  /**
+   * Pass the phase timestamps of every exchange with the impression server to a listener. See
+   * {@link RequestTiming} for the phases. Replaces any listener that was already set.
+   *
+   * @param listener the listener, or null to stop timing exchanges
+   */
+  public void setRequestListener(RequestListener listener) {
+    setRequestListener(listener, 1);
+  }
+
+  /**
+   * Pass the phase timestamps of a sample of the exchanges with the impression server to a
+   * listener. Requests are sampled when they start, so all the exchanges of a sampled /features
+   * call are timed. Nothing is timed or allocated for requests that aren't sampled. Replaces any
+   * listener that was already set.
+   *
+   * @param listener the listener, or null to stop timing exchanges
+   * @param sampleRate the fraction of requests to time, between 0 and 1
+   */
+  public void setRequestListener(RequestListener listener, double sampleRate) {
+    if (sampleRate < 0 || sampleRate > 1)
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+    m_requestListener = listener == null ? null : new SampledListener(listener, sampleRate);
+  }
+
+  private static final class SampledListener {
+    SampledListener(RequestListener listener, double rate) {
+      m_listener = listener;
+      m_rate = rate;
+    }
+
+    final RequestListener m_listener;
+    final double m_rate;
+  }
+
+  // a timing for a request that is starting, or null if it isn't sampled
+  private RequestTiming startTiming(MetricsSink.Endpoint endpoint) {
+    SampledListener sampled = m_requestListener;
+    if (sampled == null) return null;
+    if (sampled.m_rate < 1 && ThreadLocalRandom.current().nextDouble() >= sampled.m_rate)
+      return null;
+    return new RequestTiming(sampled.m_listener, endpoint, System.nanoTime());
+  }
+
+  private static void finishTiming(RequestTiming timing) {
+    timing.m_completed = System.nanoTime();
+    try {
+      timing.m_listener.requestCompleted(timing);
+    } catch (RuntimeException e) {
+      logger.warn("Request listener failed", e);
+    }
+  }
+
+  // fail the requests with control values because the circuit breaker is open
+  private CompletableFuture<Void> rejected(CircuitBreaker breaker, Requestable[] requests) {
+    CompletableFuture<Void> ret = new CompletableFuture<>();
+    for (Requestable r : requests) {
+      r.setError(breaker.rejection());
+      r.m_outcome = MetricsSink.FeatureOutcome.ERROR;
+    }
+    recordOutcomes(requests);
+    m_metrics.apiError(MetricsSink.Endpoint.FEATURES, 503);
+    ret.completeExceptionally(breaker.rejection());
+    return ret;
+  }
+
+  static boolean isSmile(ContentType contentType) {
+    return contentType != null && SMILE.isSameMimeType(contentType);
+  }
+
+  // a /features exchange that identical requests can attach to
+  private static final class SharedRequest {
+    SharedRequest(
+        SessionRequestable session,
+        String sessionArgs,
+        String impressionId,
+        CapturedResponse capture) {
+      m_session = session;
+      m_sessionArgs = sessionArgs;
+      m_impressionId = impressionId;
+      m_capture = capture;
+    }
+
+    // add a follower's impression to those recorded once the leader's result has been applied.
+    // Returns false if they have already been taken, and the follower has to record its own.
+    boolean addServed(ServedImpression served) {
+      m_lock.lock();
+      try {
+        if (m_served == null) return false;
+        m_served.add(served);
+        return true;
+      } finally {
+        m_lock.unlock();
+      }
+    }
+
+    List<ServedImpression> takeServed() {
+      m_lock.lock();
+      try {
+        List<ServedImpression> ret = m_served;
+        m_served = null;
+        return ret;
+      } finally {
+        m_lock.unlock();
+      }
+    }
+
+    final SessionRequestable m_session;
+    final String m_sessionArgs;
+    final String m_impressionId;
+    final CapturedResponse m_capture;
+    // completed with the leader's result, after its response has been applied
+    final CompletableFuture<Void> m_result = new CompletableFuture<>();
+    // the followers' impressions, guarded by m_lock
+    private List<ServedImpression> m_served = new ArrayList<>();
+    private final ReentrantLock m_lock = new ReentrantLock();
+  }
+
+  // mark the requests with the recoverable error and log it.
+  private void errorOutRequests(Exception exception, Requestable[] requests) {
+    int status =
+        exception instanceof ApiException ? ((ApiException) exception).getStatusCode() : 500;
+    m_log.warn(MetricsSink.Endpoint.FEATURES, status, null, exception::getMessage, null);
+    for (Requestable r : requests) {
+      r.setError(exception);
+      r.m_outcome = MetricsSink.FeatureOutcome.ERROR;
+    }
+    return;
+  }
+
+  // report how the requests' /features call settled them, once
+  private void recordOutcomes(Requestable[] requests) {
+    MetricsSink metrics = m_metrics;
+    for (Requestable r : requests) {
+      if (r.m_outcome == null) continue;
+      metrics.feature(r.featureName(), r.m_outcome);
+      r.m_outcome = null;
+    }
+  }
+
+  // skip over the value that the parser is currently pointing to
+  public static void consumeValue(JsonParser parser) throws IOException {
+    switch (parser.currentToken()) {
+      case START_ARRAY:
+      case START_OBJECT:
+        parser.skipChildren();
+        parser.nextToken();
+        break;
+      default:
+        parser.nextToken();
+    }
+  }
+
+  /**
+   * A processor that sends the signals and externals published to it with backpressure, and
+   * publishes their results. See {@link SignalProcessor}.
+   *
+   * @param window most payloads requested from the publisher that haven't completed, or whose
+   *     results haven't been delivered if the results have a subscriber
+   * @return a new processor, which may be subscribed to once
+   */
+  public SignalProcessor signalProcessor(int window) {
+    return new SignalProcessor(this, window);
+  }
+
+  // Send the Json payload to the signal handler (asynchronously)
+  public Future<Void> signal(
+      SessionRequestable session, JsonGenerator gen, RequestOptions options) {
+    return sendSignal(session, gen, options);
+  }
+
+  CompletableFuture<Void> sendSignal(
+      SessionRequestable session, JsonGenerator gen, RequestOptions options) {
+    return asyncSendJson(
+        "signalling event",
+        MetricsSink.Endpoint.SIGNAL,
+        session,
+        URI.create(serverUrl(session) + "/signal"),
+        getResult(gen),
+        options);
+  }
+
+  public void keepAlive(SessionRequestable session) {
+    JsonGenerator gen = createGenerator();
+    try {
+      gen.writeStartObject();
+      gen.writeFieldName("id");
+      writeSessionIds(gen, session);
+      gen.writeEndObject();
+      asyncSendJson(
+          "keepAlive",
+          MetricsSink.Endpoint.KEEP_ALIVE,
+          session,
+          URI.create(serverUrl(session) + "/signal"),
+          getResult(gen),
+          null);
+    } catch (IOException e) {
+      // we are writing to a string, so this should never fail
+      throw new RuntimeException("Error creating in memory generator.", e);
+    }
+  }
+
+  /**
+   * Make a jackson generator to serialize an external callback. The generator is left at the place
+   * where you write the external value. caller should call this, write the value to the generator,
+   * then call signalExternal
+   *
+   * @param session
+   * @param impressionIds
    * @param featureName
    * @param fieldName
    * @return
@@ -405,12 +1771,11 @@ public class CausalClient {
       List<String> impressionIds,
       String featureName,
       String fieldName) {
-    StringWriter sw = new StringWriter();
+    JsonGenerator gen = createGenerator();
     try {
-      JsonGenerator gen = m_mapper.getFactory().createGenerator(sw);
       gen.writeStartObject();
       gen.writeFieldName("id");
-      session.serializeIds(gen);
+      writeSessionIds(gen, session);
       gen.writeObjectField("feature", featureName);
       if (impressionIds.size() > 0) gen.writeObjectField("impressionId", impressionIds.get(0));
       gen.writeFieldName(fieldName);
@@ -428,6 +1793,11 @@ public class CausalClient {
    */
   public Future<Void> signalExternal(
       SessionRequestable session, JsonGenerator gen, String externalName) {
+    return sendExternal(session, gen, externalName);
+  }
+
+  CompletableFuture<Void> sendExternal(
+      SessionRequestable session, JsonGenerator gen, String externalName) {
     try {
       gen.writeEndObject();
     } catch (IOException e) {
@@ -436,112 +1806,557 @@ public class CausalClient {
     }
     return asyncSendJson(
         "writing external " + externalName,
+        MetricsSink.Endpoint.EXTERNAL,
         session,
-        URI.create(m_impressionServerUrl + "/external"),
+        URI.create(serverUrl(session) + "/external"),
         getResult(gen),
         null);
   }
 
-  private Future<Void> asyncSendJson(
-      String what, SessionRequestable session, URI uri, String body, RequestOptions options) {
+  private CompletableFuture<Void> asyncSendJson(
+      String what,
+      MetricsSink.Endpoint endpoint,
+      SessionRequestable session,
+      URI uri,
+      BodyBuffer body,
+      RequestOptions options) {
+    TrafficRecorder recorder = m_recorder;
+    if (recorder != null) recorder.record(endpoint, ContentType.APPLICATION_JSON, body);
     final CompletableFuture<Void> ret = new CompletableFuture<>();
+    Spool spool = m_spool;
+    if (spool != null && spool.spoolAll()) {
+      boolean spooled = spool.append(uri, body);
+      body.release();
+      if (spooled) {
+        ret.complete(null);
+      } else {
+        ApiException exception = ApiException.fallback(503, () -> "Spool full, dropping " + what);
+        m_log.error(endpoint, 503, null, exception::getMessage, null);
+        m_metrics.apiError(endpoint, 503);
+        ret.completeExceptionally(exception);
+      }
+      return ret;
+    }
+    // a spooled or batched payload is timed by the exchange that eventually sends it
+    SignalBatcher batcher = m_signalBatcher;
+    if (batcher != null) return batcher.add(what, endpoint, session, uri, body, options);
     asyncSendJson(
-        session,
+        endpoint,
+        session == null ? null : session::addHeaders,
         uri,
         body,
+        ContentType.APPLICATION_JSON,
+        null,
+        startTiming(endpoint),
+        SimpleResponseConsumer.create(),
+        SimpleHttpResponse::getCode,
         new FutureCallback<SimpleHttpResponse>() {
 
           @Override
           public void completed(SimpleHttpResponse result) {
-            int code = result.getCode();
-            if (code == 200) ret.complete(null);
-            else {
-              JsonGenerator gen = createGenerator();
-              session.serializeIds(gen);
-              String errorMsg =
-                  getResult(gen)
-                      + " "
-                      + result.getCode()
-                      + " "
-                      + what
-                      + ": "
-                      + result.getBodyText();
-              if (code == 404 || code == 410) {
-                // couldn't find something. Probably due to schema migration
-                if (options == null || !options.m_ignoreMissingImp) {
-                  // only warn if the the options allow
-                  logger.warn(errorMsg);
-                  ret.completeExceptionally(new ApiException(code, errorMsg));
-                } else {
-                  ret.complete(null);
-                }
-              } else {
-                logger.error(errorMsg);
-                ret.completeExceptionally(new ApiException(code, errorMsg));
-              }
+            if (shouldRetry(result.getCode()) && spool(uri, body)) {
+              m_log.warn(
+                  endpoint,
+                  result.getCode(),
+                  null,
+                  () -> "Spooled " + what + " after " + result.getCode() + " from server",
+                  null);
+              ret.complete(null);
+              return;
             }
+            completeSignal(
+                what, endpoint, session, result.getCode(), result.getBodyText(), options, ret);
           }
 
           @Override
           public void failed(Exception ex) {
-            JsonGenerator gen = createGenerator();
-            session.serializeIds(gen);
-            logger.error(getResult(gen) + " Error " + what + ": " + ex.getMessage(), ex);
+            if (spool(uri, body)) {
+              m_log.warn(
+                  endpoint,
+                  500,
+                  null,
+                  () -> "Spooled " + what + " after error: " + ex.getMessage(),
+                  null);
+              ret.complete(null);
+              return;
+            }
+            m_log.error(
+                endpoint,
+                500,
+                null,
+                () -> encodedIds(session).getValue() + " Error " + what + ": " + ex.getMessage(),
+                ex);
             ret.completeExceptionally(ex);
           }
 
           @Override
           public void cancelled() {
-            logger.error("Request cancelled " + what);
+            m_log.error(endpoint, -1, null, () -> "Request cancelled " + what, null);
             ret.completeExceptionally(new InterruptedException("Request cancelled"));
           }
         });
     return ret;
   }
 
-  private void asyncSendJson(
+  // complete the future for a signal, keep alive or external given the server's response to it
+  void completeSignal(
+      String what,
+      MetricsSink.Endpoint endpoint,
       SessionRequestable session,
-      URI uri,
+      int code,
       String body,
+      RequestOptions options,
+      CompletableFuture<Void> ret) {
+    if (code == 200) ret.complete(null);
+    else {
+      if (code == 404 || code == 410) {
+        // couldn't find something. Probably due to schema migration
+        if (options == null || !options.m_ignoreMissingImp) {
+          // only warn if the the options allow
+          ApiException exception = signalError(session, code, what, body);
+          m_log.warn(endpoint, code, null, exception::getMessage, null);
+          m_metrics.apiError(endpoint, code);
+          ret.completeExceptionally(exception);
+        } else {
+          ret.complete(null);
+        }
+      } else {
+        ApiException exception = signalError(session, code, what, body);
+        m_log.error(endpoint, code, null, exception::getMessage, null);
+        m_metrics.apiError(endpoint, code);
+        ret.completeExceptionally(exception);
+      }
+    }
+  }
+
+  // the session ids are only encoded into the message if something reads it
+  private ApiException signalError(SessionRequestable session, int code, String what, String body) {
+    return ApiException.fallback(
+        code, () -> encodedIds(session).getValue() + " " + code + " " + what + ": " + body);
+  }
+
+  // could the server take the payload later?
+  static boolean shouldRetry(int code) {
+    return code == 429 || code >= 500;
+  }
+
+  // keep a payload the server couldn't take for the spool to replay. The caller still owns body.
+  boolean spool(URI uri, BodyBuffer body) {
+    Spool spool = m_spool;
+    return spool != null && spool.append(uri, body);
+  }
+
+  /**
+   * Keep signals, keep alives and externals that the impression server couldn't take, because the
+   * exchange failed or it answered with a 429 or 5xx, in memory mapped files in a directory. A
+   * background thread replays them at a limited rate once the server takes them again. Their
+   * futures complete successfully once they are spooled. With spoolAll, every payload goes through
+   * the spool. Spooled payloads are sent without session headers and are delivered at least once.
+   * Replaces any spool that was already enabled.
+   *
+   * @param options the directory, size limits and replay rate
+   * @throws IOException if the spool directory can't be opened
+   */
+  public void enableSpool(SpoolOptions options) throws IOException {
+    Spool spool = new Spool(this, options);
+    Spool old;
+    m_lock.lock();
+    try {
+      old = m_spool;
+      m_spool = spool;
+    } finally {
+      m_lock.unlock();
+    }
+    if (old != null) old.close();
+  }
+
+  /** Stop spooling. Anything left in the spool is replayed the next time it is enabled. */
+  public void disableSpool() {
+    Spool old;
+    m_lock.lock();
+    try {
+      old = m_spool;
+      m_spool = null;
+    } finally {
+      m_lock.unlock();
+    }
+    if (old != null) old.close();
+  }
+
+  // send a payload that isn't tied to a session, used for signal batches and spool replays.
+  // headers adds the headers the payload was buffered with, or is null.
+  void sendRaw(
+      MetricsSink.Endpoint endpoint,
+      URI uri,
+      Consumer<SimpleRequestBuilder> headers,
+      BodyBuffer body,
       FutureCallback<SimpleHttpResponse> handler) {
-    SimpleRequestBuilder builder =
-        SimpleRequestBuilder.post(uri)
-            .setBody(body, ContentType.APPLICATION_JSON)
-            .setHeader("user-agent", "Causal java client")
-            .addHeader("Accept", "text/plain");
-    if (session != null) session.addHeaders(builder);
+    asyncSendJson(
+        endpoint,
+        headers,
+        uri,
+        body,
+        ContentType.APPLICATION_JSON,
+        null,
+        startTiming(endpoint),
+        SimpleResponseConsumer.create(),
+        SimpleHttpResponse::getCode,
+        handler);
+  }
 
-    SimpleHttpRequest request = builder.build();
+  /**
+   * Record a sample of the payloads this client sends, for {@link TrafficReplayer} to replay.
+   * Replaces any recorder that was already set. The caller closes the recorder.
+   *
+   * @param recorder the recorder, or null to stop recording
+   */
+  public void setTrafficRecorder(TrafficRecorder recorder) {
+    m_recorder = recorder;
+  }
 
-    Future<SimpleHttpResponse> future =
-        m_asyncClient.execute(
-            SimpleRequestProducer.create(request), SimpleResponseConsumer.create(), handler);
+  // send a recorded payload without session headers. /features responses are tokenized as usual.
+  void sendRecorded(TrafficRecord record, FutureCallback<Integer> handler) {
+    BodyBuffer body = new BodyBuffer();
+    body.write(record.getBody(), 0, record.getBody().length);
+    URI uri = URI.create(serverUrl(null) + record.path());
+    ContentType contentType = record.isSmile() ? SMILE : ContentType.APPLICATION_JSON;
+    if (record.getEndpoint() == MetricsSink.Endpoint.FEATURES) {
+      asyncSendJson(
+          record.getEndpoint(),
+          null,
+          uri,
+          body,
+          contentType,
+          null,
+          null,
+          new StreamingJsonConsumer(),
+          StreamingJsonConsumer.Response::getCode,
+          new StatusCallback<>(handler, StreamingJsonConsumer.Response::getCode));
+    } else {
+      asyncSendJson(
+          record.getEndpoint(),
+          null,
+          uri,
+          body,
+          contentType,
+          null,
+          null,
+          SimpleResponseConsumer.create(),
+          SimpleHttpResponse::getCode,
+          new StatusCallback<>(handler, SimpleHttpResponse::getCode));
+    }
+  }
 
-    m_threadPool.submit(
-        () -> {
-          try {
-            // wait for the result, cause if we dont, then the process may terminate before
-            // the signal is sent
-            future.get();
-          } catch (Exception e) {
-            e.printStackTrace();
-          }
-        });
+  // passes the status of a response on
+  private static final class StatusCallback<T> implements FutureCallback<T> {
+    StatusCallback(FutureCallback<Integer> handler, ToIntFunction<T> status) {
+      m_handler = handler;
+      m_status = status;
+    }
+
+    @Override
+    public void completed(T result) {
+      m_handler.completed(m_status.applyAsInt(result));
+    }
+
+    @Override
+    public void failed(Exception ex) {
+      m_handler.failed(ex);
+    }
+
+    @Override
+    public void cancelled() {
+      m_handler.cancelled();
+    }
+
+    private final FutureCallback<Integer> m_handler;
+    private final ToIntFunction<T> m_status;
+  }
+
+  // the serialized session ids, used to keep a session's traffic together
+  String sessionKey(SessionRequestable session) {
+    return encodedIds(session).getValue();
+  }
+
+  // a hash of the serialized session ids, see BodyBuffer.hash
+  long sessionHash(SessionRequestable session) {
+    if (session.cacheEncoding()) return BodyBuffer.hash(encodedIds(session).asUnquotedUTF8());
+    JsonGenerator gen = createGenerator();
+    session.serializeIds(gen);
+    BodyBuffer ids = getResult(gen);
+    long ret = ids.hash();
+    ids.release();
+    return ret;
+  }
+
+  // the session's args as JSON, encoded once while the session allows it, see
+  // SessionRequestable.cacheEncoding
+  private SerializedString encodedArgs(SessionRequestable session) {
+    int version = session.encodingVersion();
+    SerializedString ret = session.encodedArgs();
+    if (ret == null) {
+      ret = new SerializedString(serialize(session::serializeArgs));
+      if (session.cacheEncoding()) session.cacheArgs(version, ret);
+    }
+    return ret;
+  }
+
+  // the session's ids as JSON, like encodedArgs
+  private SerializedString encodedIds(SessionRequestable session) {
+    int version = session.encodingVersion();
+    SerializedString ret = session.encodedIds();
+    if (ret == null) {
+      ret = new SerializedString(serialize(session::serializeIds));
+      if (session.cacheEncoding()) session.cacheIds(version, ret);
+    }
+    return ret;
+  }
+
+  // write the session's args, splicing in the cached bytes when the session allows it. Smile
+  // generators can't take raw bytes, so they always serialize.
+  void writeSessionArgs(JsonGenerator gen, SessionRequestable session) throws IOException {
+    if (session.cacheEncoding() && !(gen instanceof SmileGenerator)) {
+      gen.writeRawValue(encodedArgs(session));
+    } else {
+      session.serializeArgs(gen);
+    }
+  }
+
+  // write the session's ids, like writeSessionArgs
+  private void writeSessionIds(JsonGenerator gen, SessionRequestable session) throws IOException {
+    if (session.cacheEncoding() && !(gen instanceof SmileGenerator)) {
+      gen.writeRawValue(encodedIds(session));
+    } else {
+      session.serializeIds(gen);
+    }
+  }
+
+  private String serialize(Consumer<JsonGenerator> serializer) {
+    JsonGenerator gen = createGenerator();
+    serializer.accept(gen);
+    return getString(gen);
+  }
+
+  /**
+   * Buffer signals, keep alives and externals and send them to the impression server in batches.
+   * Each call still gets its own future, completed from the batch response. A batch carries the
+   * headers its sessions add, and payloads from sessions that add different headers are not batched
+   * together. Replaces any batching configuration that was already enabled.
+   *
+   * <p>Delivery order is not guaranteed. A session's payloads are sent one batch at a time in the
+   * order they were added, but a batch that is spooled after a failure is replayed after later
+   * batches, and payloads buffered by a configuration that is being replaced may be sent after
+   * payloads given to the new one.
+   *
+   * <p>Only enable this against an impression server that accepts batches. A batch is posted to the
+   * same /signal or /external path as a single payload, as a JSON array of the payloads it holds.
+   * The server must answer with a 200 and either an empty body or an array with a null or a
+   * {"code", "message"} object per payload, in order. A server that doesn't recognize the array
+   * will reject or misread every payload in it. Batches that are spooled are replayed as arrays
+   * too.
+   *
+   * @param options thresholds that trigger a flush and limits on buffered data
+   */
+  public void enableSignalBatching(SignalBatchOptions options) {
+    SignalBatcher old;
+    m_lock.lock();
+    try {
+      old = m_signalBatcher;
+      m_signalBatcher = new SignalBatcher(this, m_inFlight, options);
+    } finally {
+      m_lock.unlock();
+    }
+    if (old != null) old.close();
   }
 
-  // need a daemon thread pool to wait for the asynchronous operations because the
-  // process may exit before completing them otherwise
-  private static ExecutorService m_threadPool =
-      Executors.newFixedThreadPool(
-          4,
-          new ThreadFactory() {
+  /** Send each signal, keep alive and external in its own request again. */
+  public void disableSignalBatching() {
+    SignalBatcher old;
+    m_lock.lock();
+    try {
+      old = m_signalBatcher;
+      m_signalBatcher = null;
+    } finally {
+      m_lock.unlock();
+    }
+    if (old != null) old.close();
+  }
+
+  // send the body, which is released once the exchange completes or before this throws. headers
+  // adds the session's headers to the request, or is null. status
+  // reads the http status from a response for the metrics sink. If timing is not null, the
+  // exchange's phases are recorded in it and it is passed to its listener once the handler has
+  // run, or before this throws.
+  private <T> Future<T> asyncSendJson(
+      MetricsSink.Endpoint endpoint,
+      Consumer<SimpleRequestBuilder> headers,
+      URI uri,
+      BodyBuffer body,
+      ContentType contentType,
+      Deadline deadline,
+      RequestTiming timing,
+      AsyncResponseConsumer<T> consumer,
+      ToIntFunction<T> status,
+      FutureCallback<T> handler) {
+    BodyBufferProducer entity = new BodyBufferProducer(body, contentType);
+    LoadBalancer balancer = m_balancer;
+    LoadBalancer.Backend backend = balancer == null ? null : balancer.choose(uri);
+    SimpleHttpRequest request;
+    try {
+      SimpleRequestBuilder builder =
+          SimpleRequestBuilder.post(backend == null ? uri : balancer.resolve(backend, uri))
+              .setHeader("user-agent", "Causal java client")
+              .addHeader(
+                  "Accept",
+                  isSmile(contentType) ? SMILE.getMimeType() + ", application/json" : "text/plain");
+      if (headers != null) headers.accept(builder);
+      if (deadline != null) {
+        builder.setHeader(DEADLINE_HEADER, Long.toString(deadline.remainingMillis()));
+      }
+      request = builder.build();
+    } catch (RuntimeException e) {
+      if (backend != null) balancer.released(backend);
+      entity.release();
+      if (timing != null) finishTiming(timing);
+      throw e;
+    }
+
+    AsyncRequestProducer producer;
+    if (timing == null) {
+      producer = new BasicRequestProducer(request, entity);
+    } else {
+      timing.m_queued = System.nanoTime();
+      producer =
+          new BasicRequestProducer(request, entity) {
+            @Override
+            public void sendRequest(RequestChannel channel, HttpContext context)
+                throws HttpException, IOException {
+              timing.m_connected = System.nanoTime();
+              super.sendRequest(channel, context);
+            }
+          };
+    }
+
+    // track the exchange until its callback has run so drain() can wait for it. The process may
+    // otherwise terminate before a signal is sent.
+    m_inFlight.begin();
+    MetricsSink metrics = m_metrics;
+    metrics.exchangeStarted(endpoint);
+    long started = System.nanoTime();
+    try {
+      return m_asyncClient.execute(
+          producer,
+          consumer,
+          new FutureCallback<T>() {
+            @Override
+            public void completed(T result) {
+              long now = System.nanoTime();
+              int code = status.applyAsInt(result);
+              metrics.exchangeCompleted(endpoint, code, now - started);
+              if (backend != null) balancer.completed(backend, code, now - started);
+              if (timing != null) {
+                timing.m_received = now;
+                timing.m_status = code;
+              }
+              // the handler deserializes into the caller's objects, which may block. Off the http
+              // client's I/O thread if ClientThreads says so.
+              Executor completions = ClientThreads.completions();
+              if (completions == null) deliver(result);
+              else completions.execute(() -> deliver(result));
+            }
+
+            private void deliver(T result) {
+              try {
+                handler.completed(result);
+              } finally {
+                entity.release();
+                if (timing != null) finishTiming(timing);
+                m_inFlight.end();
+              }
+            }
+
             @Override
-            public Thread newThread(Runnable r) {
-              Thread t = Executors.defaultThreadFactory().newThread(r);
-              t.setDaemon(true);
-              return t;
+            public void failed(Exception ex) {
+              long nanos = System.nanoTime() - started;
+              metrics.exchangeCompleted(endpoint, -1, nanos);
+              if (backend != null) balancer.completed(backend, -1, nanos);
+              try {
+                handler.failed(ex);
+              } finally {
+                entity.release();
+                if (timing != null) finishTiming(timing);
+                m_inFlight.end();
+              }
+            }
+
+            @Override
+            public void cancelled() {
+              metrics.exchangeCompleted(endpoint, -1, System.nanoTime() - started);
+              if (backend != null) balancer.released(backend);
+              try {
+                handler.cancelled();
+              } finally {
+                entity.release();
+                if (timing != null) finishTiming(timing);
+                m_inFlight.end();
+              }
             }
           });
+    } catch (RuntimeException e) {
+      metrics.exchangeCompleted(endpoint, -1, System.nanoTime() - started);
+      if (backend != null) balancer.released(backend);
+      entity.release();
+      if (timing != null) finishTiming(timing);
+      m_inFlight.end();
+      throw e;
+    }
+  }
+
+  /**
+   * Wait for all outstanding requests, signals and externals sent through this client to complete.
+   * Does not prevent new requests from being sent while waiting.
+   *
+   * @param timeout maximum amount of time to wait
+   * @return true if everything completed, false if the timeout elapsed first
+   * @throws InterruptedException
+   */
+  public boolean drain(Duration timeout) throws InterruptedException {
+    SignalBatcher batcher = m_signalBatcher;
+    if (batcher != null) batcher.flush();
+    return m_inFlight.await(timeout.toNanos());
+  }
+
+  /** Number of requests, signals and externals that have been sent but not completed. */
+  public int inFlight() {
+    return m_inFlight.size();
+  }
+
+  /**
+   * Wait up to 30 seconds for outstanding work to complete, then shut down the underlying http
+   * client. If this is the shared instance, a subsequent call to init may create a new one.
+   */
+  @Override
+  public void close() {
+    try {
+      if (!drain(SHUTDOWN_DRAIN_TIMEOUT)) {
+        logger.warn("Closing causal client with " + inFlight() + " requests still outstanding.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    disableSignalBatching();
+    disableSpool();
+    setBalancer(null);
+    m_asyncClient.close(CloseMode.GRACEFUL);
+    m_log.flush();
+    m_open.remove(this);
+    m_instanceLock.lock();
+    try {
+      if (m_instance == this) m_instance = null;
+    } finally {
+      m_instanceLock.unlock();
+    }
+  }
 
   static {
     Runtime.getRuntime()
@@ -549,19 +2364,77 @@ public class CausalClient {
             new Thread() {
               @Override
               public void run() {
-                try {
-                  m_threadPool.shutdown();
-                  m_threadPool.awaitTermination(30, TimeUnit.SECONDS);
-                } catch (Exception e) {
-                  e.printStackTrace();
+                // give outstanding signals a chance to be delivered before the process exits. The
+                // clients share one deadline
+                long deadline = System.nanoTime() + SHUTDOWN_DRAIN_TIMEOUT.toNanos();
+                for (CausalClient client : m_open) {
+                  try {
+                    Duration left = Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+                    if (!client.drain(left)) {
+                      logger.warn(
+                          "Exiting with "
+                              + client.inFlight()
+                              + " causal requests still outstanding.");
+                    }
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                  }
                 }
               }
             });
   }
 
-  private static CausalClient m_instance = null;
-  private String m_impressionServerUrl;
+  private static final Duration SHUTDOWN_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+  private static volatile CausalClient m_instance = null;
+  // guards creating and clearing the shared instance. A lock rather than a monitor so virtual
+  // threads that call init or getInstance don't pin their carrier
+  private static final ReentrantLock m_instanceLock = new ReentrantLock();
+  // every client that has not been closed, for the shutdown hook
+  private static final Set<CausalClient> m_open =
+      Collections.newSetFromMap(new ConcurrentHashMap<CausalClient, Boolean>());
+  private final String m_impressionServerUrl;
   private final CloseableHttpAsyncClient m_asyncClient;
+  private final InFlightTracker m_inFlight = new InFlightTracker();
+  // serializes replacing the signal batcher, spool and load balancer, so the one replaced is the
+  // one closed. A lock rather than a monitor so virtual threads don't pin their carrier.
+  private final ReentrantLock m_lock = new ReentrantLock();
+  private volatile SignalBatcher m_signalBatcher = null;
+  private volatile FeatureCache m_featureCache = null;
+  private volatile boolean m_coalesceRequests = false;
+  private volatile boolean m_binaryRequests = false;
+  // set once the server has answered a binary request with a 200
+  private volatile boolean m_binaryAccepted = false;
+  private volatile Duration m_defaultDeadline = null;
+  private volatile Hedger m_hedger = null;
+  private volatile CircuitBreaker m_breaker = null;
+  private volatile LoadBalancer m_balancer = null;
+  private volatile Spool m_spool = null;
+  private volatile MetricsSink m_metrics = MetricsSink.NONE;
+  private volatile LogAggregator m_log = new LogAggregator(LogOptions.DEFAULTS);
+  private volatile SampledListener m_requestListener = null;
+  private volatile TrafficRecorder m_recorder = null;
+  private final ConcurrentHashMap<String, SharedRequest> m_sharedRequests =
+      new ConcurrentHashMap<>();
   public static final Logger logger = LoggerFactory.getLogger(CausalClient.class);
   public static final ObjectMapper m_mapper = new ObjectMapper();
+  static final SmileFactory m_smileFactory = new SmileFactory(m_mapper);
+  static final ContentType SMILE = ContentType.create("application/x-jackson-smile");
+  // the milliseconds left before the client gives up on a request
+  static final String DEADLINE_HEADER = "X-Causal-Deadline-Ms";
+  // the errors that leave features with their control values, shared since they are stackless
+  private static final ApiException DEADLINE_EXCEEDED =
+      ApiException.fallback(504, "Deadline exceeded, using control values.");
+  private static final ApiException MALFORMED_RESPONSE =
+      ApiException.fallback(500, "Malformed response, using control.");
+  private static final ApiException MISSING_IMPRESSIONS =
+      ApiException.fallback(500, "Malformed response, expecting 'impressions', using control.");
+  private static final ApiException MISSING_ARRAY =
+      ApiException.fallback(500, "Malformed response, expecting array, using control.");
+  private static final ApiException TOO_SHORT =
+      ApiException.fallback(500, "Response too short, using control values.");
+  private static final ApiException MALFORMED_ERRORS =
+      ApiException.fallback(500, "Malformed response, expecting array. May be unreported errors.");
+  private static final ApiException BATCH_TOO_SHORT =
+      ApiException.fallback(500, "Batch response too short, using control values.");
 }
@@ -0,0 +1,112 @@
+package io.causallabs.runtime;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link MetricsSink} that keeps latency histograms, in flight gauges and status counts per
+ * endpoint and outcome counts per feature in memory, for a metrics library to read. Recording only
+ * uses atomic counters. The one allocation is the counters for a feature name the first time it is
+ * seen.
+ */
+public class CausalMetrics implements MetricsSink {
+
+  public CausalMetrics() {
+    for (int i = 0; i < ENDPOINTS; ++i) m_latency[i] = new LatencyHistogram();
+  }
+
+  @Override
+  public void exchangeStarted(Endpoint endpoint) {
+    m_inFlight.incrementAndGet(endpoint.ordinal());
+  }
+
+  @Override
+  public void exchangeCompleted(Endpoint endpoint, int status, long nanos) {
+    m_inFlight.decrementAndGet(endpoint.ordinal());
+    m_latency[endpoint.ordinal()].record(nanos);
+    m_statuses.incrementAndGet(statusIndex(endpoint, status));
+  }
+
+  @Override
+  public void apiError(Endpoint endpoint, int status) {
+    m_errors.incrementAndGet(statusIndex(endpoint, status));
+  }
+
+  @Override
+  public void feature(String featureName, FeatureOutcome outcome) {
+    AtomicLongArray counts = m_features.get(featureName);
+    if (counts == null) {
+      counts = m_features.computeIfAbsent(featureName, k -> new AtomicLongArray(OUTCOMES));
+    }
+    counts.incrementAndGet(outcome.ordinal());
+  }
+
+  /**
+   * @param endpoint
+   * @return the time exchanges with the endpoint took
+   */
+  public LatencyHistogram latency(Endpoint endpoint) {
+    return m_latency[endpoint.ordinal()];
+  }
+
+  /**
+   * @param endpoint
+   * @return the number of exchanges with the endpoint that haven't completed
+   */
+  public long inFlight(Endpoint endpoint) {
+    return m_inFlight.get(endpoint.ordinal());
+  }
+
+  /**
+   * @param endpoint
+   * @param status an http status, or -1 for exchanges that failed without a response
+   * @return the number of exchanges with the endpoint that completed with the status
+   */
+  public long statusCount(Endpoint endpoint, int status) {
+    return m_statuses.get(statusIndex(endpoint, status));
+  }
+
+  /**
+   * @param endpoint
+   * @param status an ApiException status code
+   * @return the number of calls to the endpoint that failed with an ApiException with the status
+   */
+  public long errorCount(Endpoint endpoint, int status) {
+    return m_errors.get(statusIndex(endpoint, status));
+  }
+
+  /**
+   * @param featureName
+   * @param outcome
+   * @return the number of times a /features call settled the feature with the outcome
+   */
+  public long featureCount(String featureName, FeatureOutcome outcome) {
+    AtomicLongArray counts = m_features.get(featureName);
+    return counts == null ? 0 : counts.get(outcome.ordinal());
+  }
+
+  /**
+   * @return the features that have been requested
+   */
+  public Set<String> features() {
+    return Collections.unmodifiableSet(m_features.keySet());
+  }
+
+  // statuses outside 0-599 share the slot for -1
+  private static int statusIndex(Endpoint endpoint, int status) {
+    int slot = status < 0 || status >= STATUSES - 1 ? 0 : status + 1;
+    return endpoint.ordinal() * STATUSES + slot;
+  }
+
+  private static final int ENDPOINTS = Endpoint.values().length;
+  private static final int OUTCOMES = FeatureOutcome.values().length;
+  private static final int STATUSES = 601;
+
+  private final LatencyHistogram[] m_latency = new LatencyHistogram[ENDPOINTS];
+  private final AtomicLongArray m_inFlight = new AtomicLongArray(ENDPOINTS);
+  private final AtomicLongArray m_statuses = new AtomicLongArray(ENDPOINTS * STATUSES);
+  private final AtomicLongArray m_errors = new AtomicLongArray(ENDPOINTS * STATUSES);
+  private final ConcurrentHashMap<String, AtomicLongArray> m_features = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,141 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the outcomes of /features calls and stops sending them while the impression server is
+ * failing. Closed, it counts requests and failures over tumbling windows and opens once the failure
+ * rate crosses the threshold. Open, it rejects requests until the open period has passed and then
+ * lets a few probes through. The probes close it again if they all succeed, the first failure opens
+ * it. Counting is a couple of atomic increments per call, so window counts are approximate under
+ * contention.
+ */
+final class CircuitBreaker {
+
+  CircuitBreaker(CircuitBreakerOptions options) {
+    m_options = options;
+    m_minimumRequests = Math.min(options.m_minimumRequests, options.m_window);
+  }
+
+  CircuitState state() {
+    return m_phase.get().m_state;
+  }
+
+  // true while open and still inside the open period, so callers can skip building the request
+  boolean rejecting() {
+    Phase phase = m_phase.get();
+    return phase.m_state == CircuitState.OPEN
+        && System.nanoTime() - phase.m_since < m_options.m_openNanos;
+  }
+
+  // may a request go to the server? Once half open, only the probes are let through. Returns the
+  // phase the request was let through in, to report its outcome against, or null if it may not go.
+  Phase tryAcquire() {
+    Phase phase = m_phase.get();
+    if (phase.m_state == CircuitState.CLOSED) return phase;
+    long now = System.nanoTime();
+    if (phase.m_state == CircuitState.OPEN) {
+      if (now - phase.m_since < m_options.m_openNanos) return null;
+      transition(phase, CircuitState.HALF_OPEN);
+      // whoever won the transition published a fresh phase, or something else happened since
+      phase = m_phase.get();
+      if (phase.m_state != CircuitState.HALF_OPEN) return null;
+    } else if (phase.m_probesIssued.get() >= m_options.m_probes
+        && now - phase.m_since > m_options.m_openNanos) {
+      // a probe never reported back, try again after another open period
+      transition(phase, CircuitState.OPEN);
+      return null;
+    }
+    return phase.m_probesIssued.getAndIncrement() < m_options.m_probes ? phase : null;
+  }
+
+  // the outcomes of a request let through in the given phase. An outcome that arrives after its
+  // phase has been replaced says nothing about the current one and is ignored.
+  void succeeded(Phase phase) {
+    if (m_phase.get() != phase) return;
+    if (phase.m_state == CircuitState.CLOSED) count(phase, false);
+    else if (phase.m_state == CircuitState.HALF_OPEN
+        && phase.m_probeSuccesses.incrementAndGet() >= m_options.m_probes) {
+      transition(phase, CircuitState.CLOSED);
+    }
+  }
+
+  void failed(Phase phase) {
+    if (m_phase.get() != phase) return;
+    if (phase.m_state == CircuitState.CLOSED) count(phase, true);
+    else if (phase.m_state == CircuitState.HALF_OPEN) transition(phase, CircuitState.OPEN);
+  }
+
+  // a request that ended without an outcome, e.g. because it was cancelled. It doesn't count
+  // against a closed breaker, but a half open one can't be left waiting for the probe.
+  void abandoned(Phase phase) {
+    if (phase.m_state == CircuitState.HALF_OPEN) failed(phase);
+  }
+
+  // the error given to requests that are rejected. Shared, so rejecting allocates nothing.
+  ApiException rejection() {
+    return m_rejection;
+  }
+
+  private void count(Phase phase, boolean failure) {
+    int failures = failure ? phase.m_failures.incrementAndGet() : phase.m_failures.get();
+    int requests = phase.m_requests.incrementAndGet();
+    if (requests >= m_minimumRequests
+        && failures >= m_options.m_failureRateThreshold * requests
+        && transition(phase, CircuitState.OPEN)) {
+      return;
+    }
+    if (requests >= m_options.m_window) {
+      phase.m_requests.set(0);
+      phase.m_failures.set(0);
+    }
+  }
+
+  // move on from a phase to a new one in the given state. The new phase starts with fresh counters
+  // and is complete before it is published, so a thread that sees it never sees it half set up.
+  // Only one thread wins each transition and it tells the listener.
+  private boolean transition(Phase from, CircuitState to) {
+    if (!m_phase.compareAndSet(from, new Phase(to))) return false;
+    if (to == CircuitState.OPEN) {
+      CausalClient.logger.warn("Impression server is failing, using control values.");
+    } else if (to == CircuitState.CLOSED) {
+      CausalClient.logger.info("Impression server has recovered.");
+    }
+    CircuitBreakerListener listener = m_options.m_listener;
+    if (listener != null) {
+      try {
+        listener.stateChanged(from.m_state, to);
+      } catch (RuntimeException e) {
+        CausalClient.logger.error("Circuit breaker listener failed", e);
+      }
+    }
+    return true;
+  }
+
+  // a state and the counters that belong to it. Requests are let through in a phase and report
+  // their outcomes to it, so a transition starts from fresh counters that only later requests
+  // touch.
+  static final class Phase {
+    private Phase(CircuitState state) {
+      m_state = state;
+      m_since = System.nanoTime();
+    }
+
+    private final CircuitState m_state;
+    private final long m_since;
+    // the current window, while closed
+    private final AtomicInteger m_requests = new AtomicInteger();
+    private final AtomicInteger m_failures = new AtomicInteger();
+    // the probes, while half open
+    private final AtomicInteger m_probesIssued = new AtomicInteger();
+    private final AtomicInteger m_probeSuccesses = new AtomicInteger();
+  }
+
+  private final CircuitBreakerOptions m_options;
+  private final int m_minimumRequests;
+  private final AtomicReference<Phase> m_phase =
+      new AtomicReference<>(new Phase(CircuitState.CLOSED));
+  private final ApiException m_rejection =
+      ApiException.fallback(503, "Circuit breaker open, using control values.");
+}
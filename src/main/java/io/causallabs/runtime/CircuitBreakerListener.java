@@ -0,0 +1,10 @@
+package io.causallabs.runtime;
+
+/**
+ * Receives the circuit breaker's state changes. Called on the thread whose request caused the
+ * change, so implementations should return quickly.
+ */
+public interface CircuitBreakerListener {
+
+  void stateChanged(CircuitState from, CircuitState to);
+}
@@ -0,0 +1,108 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+
+/**
+ * Options that control when the circuit breaker opens and how it recovers. See {@link
+ * CausalClient#enableCircuitBreaker(CircuitBreakerOptions)}.
+ */
+public class CircuitBreakerOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    /**
+     * Open the circuit when at least this fraction of the requests in a window fail, between 0 and
+     * 1. Connection failures, timeouts and 5xx responses count as failures.
+     *
+     * @param x
+     * @return
+     */
+    public Builder failureRateThreshold(double x) {
+      if (x <= 0 || x > 1) throw new IllegalArgumentException("failureRateThreshold in (0, 1]");
+      m_obj.m_failureRateThreshold = x;
+      return this;
+    }
+
+    /**
+     * Number of requests in a window. The counts are reset once a window is full.
+     *
+     * @param x
+     * @return
+     */
+    public Builder window(int x) {
+      if (x < 1) throw new IllegalArgumentException("window must be positive");
+      m_obj.m_window = x;
+      return this;
+    }
+
+    /**
+     * Don't open the circuit until a window has seen this many requests.
+     *
+     * @param x
+     * @return
+     */
+    public Builder minimumRequests(int x) {
+      if (x < 1) throw new IllegalArgumentException("minimumRequests must be positive");
+      m_obj.m_minimumRequests = x;
+      return this;
+    }
+
+    /**
+     * How long the circuit stays open before letting probes through.
+     *
+     * @param x
+     * @return
+     */
+    public Builder openDuration(Duration x) {
+      m_obj.m_openNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Number of probe requests let through when half open. The circuit closes once they all succeed
+     * and opens again on the first failure.
+     *
+     * @param x
+     * @return
+     */
+    public Builder probes(int x) {
+      if (x < 1) throw new IllegalArgumentException("probes must be positive");
+      m_obj.m_probes = x;
+      return this;
+    }
+
+    /**
+     * Notified of every state change.
+     *
+     * @param x
+     * @return
+     */
+    public Builder listener(CircuitBreakerListener x) {
+      m_obj.m_listener = x;
+      return this;
+    }
+
+    public CircuitBreakerOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {}
+
+    CircuitBreakerOptions m_obj = new CircuitBreakerOptions();
+  }
+
+  double m_failureRateThreshold = 0.5;
+  int m_window = 100;
+  int m_minimumRequests = 20;
+  long m_openNanos = Duration.ofSeconds(5).toNanos();
+  int m_probes = 3;
+  CircuitBreakerListener m_listener = null;
+
+  private CircuitBreakerOptions() {}
+
+  public static CircuitBreakerOptions DEFAULTS = new CircuitBreakerOptions();
+}
@@ -0,0 +1,11 @@
+package io.causallabs.runtime;
+
+/** The states of the circuit breaker that guards calls to the impression server. */
+public enum CircuitState {
+  /** Requests go to the impression server and their outcomes are counted */
+  CLOSED,
+  /** Requests fail immediately with control values */
+  OPEN,
+  /** A few probe requests go to the impression server to decide whether it has recovered */
+  HALF_OPEN
+}
@@ -0,0 +1,41 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the threads the client runs in the background: timers, the signal batcher, the spool
+ * replayer and the traffic recorder, and says where responses are delivered. This is the Java 8
+ * version, which makes daemon platform threads and delivers responses on the http client's I/O
+ * threads. The jar is multi-release, and on Java 21 and later a version that can make virtual
+ * threads instead is loaded, see src/main/java21.
+ */
+final class ClientThreads {
+
+  // a factory for daemon threads called name
+  static ThreadFactory factory(String name) {
+    return r -> {
+      Thread t = Executors.defaultThreadFactory().newThread(r);
+      t.setName(name);
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  // where successful responses are handed to their handlers, which deserialize them into the
+  // caller's objects. Null to hand them over on the http client's I/O thread.
+  static Executor completions() {
+    return null;
+  }
+
+  private ClientThreads() {}
+
+  static final String VIRTUAL_PROPERTY = "io.causallabs.virtualThreads";
+
+  static {
+    if (Boolean.getBoolean(VIRTUAL_PROPERTY)) {
+      CausalClient.logger.warn(VIRTUAL_PROPERTY + " needs Java 21, using platform threads");
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** A single daemon timer thread for the short lived timeouts of every client. */
+final class ClientTimer {
+
+  static ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+    return TIMER.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  // run task every period until the returned future is cancelled
+  static ScheduledFuture<?> repeat(Runnable task, long periodNanos) {
+    // an exception would cancel the later runs
+    Runnable guarded =
+        () -> {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            CausalClient.logger.error("Error in periodic causal client task", e);
+          }
+        };
+    return TIMER.scheduleAtFixedRate(guarded, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private ClientTimer() {}
+
+  private static final ScheduledThreadPoolExecutor TIMER =
+      new ScheduledThreadPoolExecutor(1, ClientThreads.factory("causal-client-timer"));
+
+  static {
+    TIMER.setRemoveOnCancelPolicy(true);
+  }
+}
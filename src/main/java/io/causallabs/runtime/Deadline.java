@@ -0,0 +1,40 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time, on the {@link System#nanoTime()} clock, by which a feature request must
+ * complete.
+ */
+final class Deadline {
+
+  static Deadline after(Duration timeout) {
+    return new Deadline(System.nanoTime() + timeout.toNanos());
+  }
+
+  long remainingNanos() {
+    return m_at - System.nanoTime();
+  }
+
+  // the remaining budget in whole milliseconds, never negative, for the server's benefit
+  long remainingMillis() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(remainingNanos()));
+  }
+
+  boolean expired() {
+    return remainingNanos() <= 0;
+  }
+
+  // run task when the deadline passes
+  ScheduledFuture<?> schedule(Runnable task) {
+    return ClientTimer.schedule(task, remainingNanos());
+  }
+
+  private Deadline(long at) {
+    m_at = at;
+  }
+
+  private final long m_at;
+}
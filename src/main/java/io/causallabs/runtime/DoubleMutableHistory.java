@@ -0,0 +1,46 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.avro.io.Encoder;
+
+/** The changing value of a double mutable over time. See {@link PrimitiveMutableHistory}. */
+public class DoubleMutableHistory extends PrimitiveMutableHistory<Double> {
+
+  public DoubleMutableHistory() {}
+
+  public void setValue(double x) {
+    long now = MutableHistory.getClock().millis();
+    if (m_size > 0 && Double.doubleToLongBits(m_values[m_size - 1]) == Double.doubleToLongBits(x))
+      return;
+    // append may grow m_values, so it has to run before the array is read
+    int index = append(now);
+    m_values[index] = x;
+  }
+
+  public double getValue() {
+    return m_values[last()];
+  }
+
+  public double getValue(int index) {
+    checkIndex(index);
+    return m_values[index];
+  }
+
+  @Override
+  Double boxed(int index) {
+    return m_values[index];
+  }
+
+  @Override
+  void writeValue(Encoder out, int index) throws IOException {
+    out.writeDouble(m_values[index]);
+  }
+
+  @Override
+  void growValues(int capacity) {
+    m_values = Arrays.copyOf(m_values, capacity);
+  }
+
+  private double[] m_values = new double[0];
+}
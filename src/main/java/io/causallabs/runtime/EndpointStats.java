@@ -0,0 +1,93 @@
+package io.causallabs.runtime;
+
+/**
+ * A snapshot of one load balanced impression server. See {@link
+ * LoadBalancedCausalClient#getEndpointStats()}.
+ */
+public final class EndpointStats {
+
+  /** The server's url */
+  public String getUrl() {
+    return m_url;
+  }
+
+  /** Exchanges sent to the server that have not completed */
+  public int getOutstanding() {
+    return m_outstanding;
+  }
+
+  /** Exchanges completed by the server */
+  public long getRequests() {
+    return m_requests;
+  }
+
+  /** Exchanges that failed to connect, were dropped or got a 5xx response */
+  public long getFailures() {
+    return m_failures;
+  }
+
+  /** Times the server has been ejected for failures or latency */
+  public long getEjections() {
+    return m_ejections;
+  }
+
+  /** Is the server ejected right now? */
+  public boolean isEjected() {
+    return m_ejected;
+  }
+
+  /** Did the server pass its recent health checks? Always true if health checks are off. */
+  public boolean isHealthy() {
+    return m_healthy;
+  }
+
+  /** Mean latency of the server's exchanges in the last full interval, 0 if it had none */
+  public long getMeanLatencyNanos() {
+    return m_meanLatencyNanos;
+  }
+
+  @Override
+  public String toString() {
+    return m_url
+        + " outstanding="
+        + m_outstanding
+        + " requests="
+        + m_requests
+        + " failures="
+        + m_failures
+        + " ejections="
+        + m_ejections
+        + (m_ejected ? " ejected" : "")
+        + (m_healthy ? "" : " unhealthy")
+        + " meanLatencyMs="
+        + m_meanLatencyNanos / 1e6;
+  }
+
+  EndpointStats(
+      String url,
+      int outstanding,
+      long requests,
+      long failures,
+      long ejections,
+      boolean ejected,
+      boolean healthy,
+      long meanLatencyNanos) {
+    m_url = url;
+    m_outstanding = outstanding;
+    m_requests = requests;
+    m_failures = failures;
+    m_ejections = ejections;
+    m_ejected = ejected;
+    m_healthy = healthy;
+    m_meanLatencyNanos = meanLatencyNanos;
+  }
+
+  private final String m_url;
+  private final int m_outstanding;
+  private final long m_requests;
+  private final long m_failures;
+  private final long m_ejections;
+  private final boolean m_ejected;
+  private final boolean m_healthy;
+  private final long m_meanLatencyNanos;
+}
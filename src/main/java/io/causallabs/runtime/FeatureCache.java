@@ -0,0 +1,106 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LRU cache of feature responses keyed on the serialized session arguments and feature arguments.
+ * Entries expire after the configured ttl.
+ */
+final class FeatureCache {
+
+  FeatureCache(FeatureCacheOptions options) {
+    m_options = options;
+    m_entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, FeatureCache.Entry> eldest) {
+            return size() > m_options.m_maxEntries;
+          }
+        };
+  }
+
+  boolean isCached(String featureName) {
+    return m_options.isCached(featureName);
+  }
+
+  static String featureKey(String sessionArgs, String featureName, String featureArgs) {
+    return sessionArgs + '\0' + featureName + '\0' + featureArgs;
+  }
+
+  static String sessionKey(String sessionArgs) {
+    return sessionArgs;
+  }
+
+  // returns null if not present or expired
+  Entry get(String key) {
+    long now = System.nanoTime();
+    m_lock.lock();
+    try {
+      Entry ret = m_entries.get(key);
+      if (ret != null && now - ret.m_expires > 0) {
+        m_entries.remove(key);
+        return null;
+      }
+      return ret;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  void put(String key, Object value) {
+    Entry entry = new Entry(value, System.nanoTime() + m_options.m_ttlNanos);
+    m_lock.lock();
+    try {
+      m_entries.put(key, entry);
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  void remove(String key) {
+    m_lock.lock();
+    try {
+      m_entries.remove(key);
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  void clear() {
+    m_lock.lock();
+    try {
+      m_entries.clear();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  static final class Entry {
+    Entry(Object value, long expires) {
+      m_value = value;
+      m_expires = expires;
+    }
+
+    FeatureResult feature() {
+      return (FeatureResult) m_value;
+    }
+
+    TokenBuffer session() {
+      return (TokenBuffer) m_value;
+    }
+
+    // the value is either a FeatureResult or the session's TokenBuffer
+    private final Object m_value;
+    private final long m_expires;
+  }
+
+  private final FeatureCacheOptions m_options;
+  private final LinkedHashMap<String, Entry> m_entries;
+  // a lock rather than a monitor, callers on virtual threads must not pin their carrier
+  private final ReentrantLock m_lock = new ReentrantLock();
+}
@@ -0,0 +1,83 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Options for the client side feature response cache. See {@link
+ * CausalClient#enableFeatureCache(FeatureCacheOptions)}.
+ */
+public class FeatureCacheOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    /**
+     * How long a response may be served from the cache.
+     *
+     * @param x
+     * @return
+     */
+    public Builder ttl(Duration x) {
+      m_obj.m_ttlNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Maximum number of cached entries. The least recently used entries are evicted first.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxEntries(int x) {
+      if (x < 1) throw new IllegalArgumentException("maxEntries must be positive");
+      m_obj.m_maxEntries = x;
+      return this;
+    }
+
+    /**
+     * Cache responses for the given features.
+     *
+     * @param featureNames
+     * @return
+     */
+    public Builder cacheFeatures(String... featureNames) {
+      m_obj.m_features.addAll(Arrays.asList(featureNames));
+      return this;
+    }
+
+    /**
+     * Cache responses for every feature.
+     *
+     * @return
+     */
+    public Builder cacheAllFeatures() {
+      m_obj.m_allFeatures = true;
+      return this;
+    }
+
+    public FeatureCacheOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {}
+
+    FeatureCacheOptions m_obj = new FeatureCacheOptions();
+  }
+
+  boolean isCached(String featureName) {
+    return m_allFeatures || m_features.contains(featureName);
+  }
+
+  long m_ttlNanos = Duration.ofSeconds(5).toNanos();
+  int m_maxEntries = 10000;
+  boolean m_allFeatures = false;
+  final Set<String> m_features = new HashSet<>();
+
+  private FeatureCacheOptions() {}
+}
@@ -0,0 +1,63 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import java.io.IOException;
+
+/**
+ * The impression server's response for a single feature, recorded so that it can be replayed into
+ * other {@link Requestable} instances without another round trip.
+ */
+final class FeatureResult {
+
+  static final FeatureResult OFF = new FeatureResult(null);
+  static final FeatureResult UNKNOWN = new FeatureResult(null);
+
+  FeatureResult(TokenBuffer value) {
+    m_value = value;
+  }
+
+  // fill in the request the same way handleResponse would have
+  void replay(Requestable request) throws ApiException {
+    if (this == OFF) request.setActive(false);
+    else if (this == UNKNOWN) request.setDefaults();
+    else {
+      request.deserializeResponse(parser(m_value));
+      request.setActive(true);
+    }
+  }
+
+  // write the value the way the impression server sent it
+  void write(JsonGenerator gen) throws IOException {
+    if (this == OFF) gen.writeString("OFF");
+    else if (this == UNKNOWN) gen.writeString("UNKNOWN");
+    else {
+      JsonParser parser = m_value.asParser();
+      parser.nextToken();
+      gen.copyCurrentStructure(parser);
+    }
+  }
+
+  // copy the value the parser is pointing at, leaving the parser on the following token
+  static TokenBuffer record(JsonParser parser) throws IOException {
+    TokenBuffer ret = new TokenBuffer(parser, null);
+    ret.copyCurrentStructure(parser);
+    parser.nextToken();
+    return ret;
+  }
+
+  // a parser positioned on the first token of a recorded value
+  static JsonParser parser(TokenBuffer value) throws ApiException {
+    JsonParser ret = value.asParser();
+    try {
+      ret.nextToken();
+    } catch (IOException e) {
+      // reading from memory, so this should never fail
+      throw new ApiException(500, "Error replaying recorded response", e);
+    }
+    return ret;
+  }
+
+  private final TokenBuffer m_value;
+}
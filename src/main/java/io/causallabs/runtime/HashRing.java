@@ -0,0 +1,56 @@
+package io.causallabs.runtime;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring. Each node is placed at many points on the ring, and a key belongs to the
+ * first point at or after its hash. Adding or removing a node only moves the keys next to its
+ * points. Rings are immutable, a change builds a new one.
+ */
+final class HashRing {
+
+  HashRing(Collection<String> nodes, int pointsPerNode) {
+    if (nodes.isEmpty()) throw new IllegalArgumentException("A hash ring needs at least one node");
+    m_nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    TreeMap<Long, String> points = new TreeMap<>();
+    for (String node : m_nodes) {
+      for (int i = 0; i < pointsPerNode; ++i) {
+        BodyBuffer name = new BodyBuffer();
+        byte[] bytes = (node + '#' + i).getBytes(StandardCharsets.UTF_8);
+        name.write(bytes, 0, bytes.length);
+        points.putIfAbsent(name.hash(), node);
+        name.release();
+      }
+    }
+    m_points = new long[points.size()];
+    m_owners = new String[points.size()];
+    int i = 0;
+    for (Map.Entry<Long, String> point : points.entrySet()) {
+      m_points[i] = point.getKey();
+      m_owners[i++] = point.getValue();
+    }
+  }
+
+  // the node that owns the hash
+  String node(long hash) {
+    int i = Arrays.binarySearch(m_points, hash);
+    if (i < 0) i = -i - 1;
+    return m_owners[i == m_points.length ? 0 : i];
+  }
+
+  List<String> nodes() {
+    return m_nodes;
+  }
+
+  private final List<String> m_nodes;
+  // sorted points and the node at each
+  private final long[] m_points;
+  private final String[] m_owners;
+}
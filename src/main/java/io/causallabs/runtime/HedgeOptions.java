@@ -0,0 +1,84 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+
+/**
+ * Options that control when a second, identical /features request is sent while the first is still
+ * outstanding. See {@link CausalClient#enableHedging(HedgeOptions)}.
+ */
+public class HedgeOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    /**
+     * Send the hedge once a request has been outstanding longer than this percentile of recent
+     * response times, between 0 and 1.
+     *
+     * @param x
+     * @return
+     */
+    public Builder percentile(double x) {
+      if (x <= 0 || x >= 1) throw new IllegalArgumentException("percentile must be in (0, 1)");
+      m_obj.m_percentile = x;
+      return this;
+    }
+
+    /**
+     * Never hedge sooner than this, however fast recent responses have been.
+     *
+     * @param x
+     * @return
+     */
+    public Builder minDelay(Duration x) {
+      m_obj.m_minDelayNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Extra requests allowed, as a fraction of all requests. Each request earns this fraction of a
+     * hedge and each hedge spends one, so a slow server sees at most this much additional load.
+     *
+     * @param x
+     * @return
+     */
+    public Builder budget(double x) {
+      if (x < 0) throw new IllegalArgumentException("budget must not be negative");
+      m_obj.m_budget = x;
+      return this;
+    }
+
+    /**
+     * Number of recent response times the percentile is taken over. No hedges are sent until this
+     * many responses have been seen.
+     *
+     * @param x
+     * @return
+     */
+    public Builder window(int x) {
+      if (x < 1) throw new IllegalArgumentException("window must be positive");
+      m_obj.m_window = x;
+      return this;
+    }
+
+    public HedgeOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {}
+
+    HedgeOptions m_obj = new HedgeOptions();
+  }
+
+  double m_percentile = 0.95;
+  long m_minDelayNanos = Duration.ofMillis(2).toNanos();
+  double m_budget = 0.05;
+  int m_window = 1000;
+
+  private HedgeOptions() {}
+
+  public static HedgeOptions DEFAULTS = new HedgeOptions();
+}
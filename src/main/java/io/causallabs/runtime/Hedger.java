@@ -0,0 +1,78 @@
+package io.causallabs.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when /features requests are hedged. Keeps the response times of recent requests in a ring
+ * and the hedge delay at their configured percentile, recomputed every {@link #RECOMPUTE_EVERY}
+ * samples rather than on every request. Hedges are paid for from a token budget that each request
+ * tops up by a fraction of a token.
+ */
+final class Hedger {
+
+  Hedger(HedgeOptions options) {
+    m_options = options;
+    m_samples = new AtomicLongArray(options.m_window);
+  }
+
+  // the delay before hedging, or -1 if we haven't seen enough responses to know
+  long delayNanos() {
+    return m_delayNanos;
+  }
+
+  // called for every request, earning it a fraction of a hedge
+  void requested() {
+    while (true) {
+      long current = m_budget.get();
+      long next = Math.min(MAX_BUDGET, current + (long) (m_options.m_budget * TOKEN));
+      if (current == next || m_budget.compareAndSet(current, next)) return;
+    }
+  }
+
+  // spend a hedge from the budget if there is one
+  boolean tryHedge() {
+    while (true) {
+      long current = m_budget.get();
+      if (current < TOKEN) return false;
+      if (m_budget.compareAndSet(current, current - TOKEN)) return true;
+    }
+  }
+
+  // record the response time of a call that succeeded, from its start to whichever exchange won
+  void record(long nanos) {
+    long n = m_count.getAndIncrement();
+    m_samples.set((int) (n % m_samples.length()), nanos);
+    int every = Math.min(RECOMPUTE_EVERY, m_samples.length());
+    if ((n + 1) % every == 0 && n + 1 >= m_samples.length()) recompute();
+  }
+
+  private void recompute() {
+    if (!m_recomputing.compareAndSet(false, true)) return;
+    try {
+      long[] sorted = new long[m_samples.length()];
+      for (int i = 0; i < sorted.length; ++i) sorted[i] = m_samples.get(i);
+      Arrays.sort(sorted);
+      int index =
+          (int) Math.min(sorted.length - 1, Math.ceil(m_options.m_percentile * sorted.length));
+      m_delayNanos = Math.max(m_options.m_minDelayNanos, sorted[index]);
+    } finally {
+      m_recomputing.set(false);
+    }
+  }
+
+  private static final int RECOMPUTE_EVERY = 64;
+  // budget is kept in thousandths of a hedge
+  private static final long TOKEN = 1000;
+  // don't let a long quiet period bank a burst of hedges
+  private static final long MAX_BUDGET = 10 * TOKEN;
+
+  private final HedgeOptions m_options;
+  private final AtomicLongArray m_samples;
+  private final AtomicLong m_count = new AtomicLong();
+  private final AtomicLong m_budget = new AtomicLong();
+  private final AtomicBoolean m_recomputing = new AtomicBoolean();
+  private volatile long m_delayNanos = -1;
+}
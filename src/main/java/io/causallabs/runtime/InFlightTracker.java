@@ -0,0 +1,67 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts the asynchronous exchanges that have not completed yet, so that callers can wait for them
+ * to finish before the process exits. Starting and finishing an exchange is a single atomic
+ * increment or decrement. The lock is only touched when somebody is waiting in {@link #await(long)}
+ * and the count drops to zero. It is a lock rather than a monitor so that virtual threads waiting
+ * in drain don't pin their carrier.
+ */
+final class InFlightTracker {
+
+  // call before handing the exchange to the http client
+  void begin() {
+    m_count.incrementAndGet();
+  }
+
+  // call once the exchange and its callbacks have completed
+  void end() {
+    if (m_count.decrementAndGet() == 0 && m_waiters.get() > 0) {
+      m_lock.lock();
+      try {
+        m_drained.signalAll();
+      } finally {
+        m_lock.unlock();
+      }
+    }
+  }
+
+  int size() {
+    return m_count.get();
+  }
+
+  /**
+   * Wait for the in flight count to reach zero.
+   *
+   * @param timeoutNanos maximum time to wait
+   * @return true if everything completed, false if we timed out first
+   */
+  boolean await(long timeoutNanos) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    m_waiters.incrementAndGet();
+    try {
+      m_lock.lock();
+      try {
+        while (m_count.get() > 0) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) return false;
+          m_drained.awaitNanos(remaining);
+        }
+        return true;
+      } finally {
+        m_lock.unlock();
+      }
+    } finally {
+      m_waiters.decrementAndGet();
+    }
+  }
+
+  private final AtomicInteger m_count = new AtomicInteger();
+  private final AtomicInteger m_waiters = new AtomicInteger();
+  private final ReentrantLock m_lock = new ReentrantLock();
+  private final Condition m_drained = m_lock.newCondition();
+}
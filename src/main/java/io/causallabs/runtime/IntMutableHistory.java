@@ -0,0 +1,45 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.avro.io.Encoder;
+
+/** The changing value of a int mutable over time. See {@link PrimitiveMutableHistory}. */
+public class IntMutableHistory extends PrimitiveMutableHistory<Integer> {
+
+  public IntMutableHistory() {}
+
+  public void setValue(int x) {
+    long now = MutableHistory.getClock().millis();
+    if (m_size > 0 && m_values[m_size - 1] == x) return;
+    // append may grow m_values, so it has to run before the array is read
+    int index = append(now);
+    m_values[index] = x;
+  }
+
+  public int getValue() {
+    return m_values[last()];
+  }
+
+  public int getValue(int index) {
+    checkIndex(index);
+    return m_values[index];
+  }
+
+  @Override
+  Integer boxed(int index) {
+    return m_values[index];
+  }
+
+  @Override
+  void writeValue(Encoder out, int index) throws IOException {
+    out.writeInt(m_values[index]);
+  }
+
+  @Override
+  void growValues(int capacity) {
+    m_values = Arrays.copyOf(m_values, capacity);
+  }
+
+  private int[] m_values = new int[0];
+}
@@ -0,0 +1,82 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram in the style of HdrHistogram. Values are bucketed by their highest
+ * set bit and the {@link #SUB_BITS} bits below it, so every bucket is within about 3% of the values
+ * it holds, from nanoseconds to hours, in a fixed array of counters. Recording is a few atomic
+ * increments and never allocates. Reads scan the buckets and may see a recording that is in
+ * progress.
+ */
+public final class LatencyHistogram {
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos
+   */
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    m_buckets.incrementAndGet(index(nanos));
+    m_count.increment();
+    m_sum.add(nanos);
+    long max;
+    while (nanos > (max = m_max.get()) && !m_max.compareAndSet(max, nanos)) {}
+  }
+
+  public long count() {
+    return m_count.sum();
+  }
+
+  public long max() {
+    return m_max.get();
+  }
+
+  public double mean() {
+    long count = count();
+    return count == 0 ? 0 : (double) m_sum.sum() / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return an upper bound on the given percentile of the recorded latencies, in nanoseconds
+   */
+  public long valueAtPercentile(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; ++i) total += m_buckets.get(i);
+    if (total == 0) return 0;
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += m_buckets.get(i);
+      if (seen >= target) return Math.min(m_max.get(), lowestValue(i + 1) - 1);
+    }
+    return m_max.get();
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long lowestValue(int index) {
+    int exponent = index / SUB_BUCKETS;
+    int sub = index % SUB_BUCKETS;
+    if (exponent == 0) return sub;
+    return (long) (SUB_BUCKETS + sub) << (exponent - 1);
+  }
+
+  static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder m_count = new LongAdder();
+  private final LongAdder m_sum = new LongAdder();
+  private final AtomicLong m_max = new AtomicLong();
+}
@@ -0,0 +1,82 @@
+package io.causallabs.runtime;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+
+/**
+ * A client that spreads its exchanges over several interchangeable impression servers without a
+ * load balancer in between. Each exchange, including hedges, batches and spool replays, goes to the
+ * server picked by the options' strategy. Servers that fail repeatedly, are much slower than the
+ * rest or fail their health checks are taken out of rotation for a while.
+ *
+ * <p>The first server's url names the destination in spooled payloads and batches, and is rewritten
+ * to the chosen server when they are sent. Options such as deadlines, hedging, batching and the
+ * circuit breaker are shared by all the servers.
+ */
+public class LoadBalancedCausalClient extends CausalClient {
+
+  /**
+   * Create a client that balances over the impression servers. The caller closes it.
+   *
+   * @param impressionServerUrls the servers to balance over, at least one
+   * @param options when servers are ejected and how they are checked
+   * @return the new client
+   */
+  public static LoadBalancedCausalClient create(
+      Collection<String> impressionServerUrls, LoadBalancerOptions options) {
+    return create(
+        impressionServerUrls,
+        options,
+        HttpAsyncClientBuilder.create().disableAutomaticRetries().build());
+  }
+
+  /**
+   * Create a client that balances over the impression servers. The caller closes it.
+   *
+   * @param impressionServerUrls the servers to balance over, at least one
+   * @param options when servers are ejected and how they are checked
+   * @param httpClient the http client used for every server, started by this call and closed with
+   *     the client
+   * @return the new client
+   */
+  public static LoadBalancedCausalClient create(
+      Collection<String> impressionServerUrls,
+      LoadBalancerOptions options,
+      CloseableHttpAsyncClient httpClient) {
+    if (impressionServerUrls.isEmpty())
+      throw new IllegalArgumentException("Load balancing needs a server");
+    return new LoadBalancedCausalClient(impressionServerUrls, options, httpClient);
+  }
+
+  /**
+   * Replace the impression servers. Exchanges already sent are not affected, later ones are spread
+   * over the new servers, which start with fresh statistics.
+   *
+   * @param impressionServerUrls the servers to balance over, at least one
+   */
+  public void setImpressionServers(Collection<String> impressionServerUrls) {
+    setBalancer(new LoadBalancer(serverUrl(null), impressionServerUrls, m_options, httpClient()));
+  }
+
+  /**
+   * @return a snapshot of each server
+   */
+  public List<EndpointStats> getEndpointStats() {
+    LoadBalancer balancer = balancer();
+    return balancer == null ? Collections.<EndpointStats>emptyList() : balancer.stats();
+  }
+
+  private LoadBalancedCausalClient(
+      Collection<String> impressionServerUrls,
+      LoadBalancerOptions options,
+      CloseableHttpAsyncClient client) {
+    super(impressionServerUrls.iterator().next(), client);
+    m_options = options;
+    setImpressionServers(impressionServerUrls);
+  }
+
+  private final LoadBalancerOptions m_options;
+}
@@ -0,0 +1,305 @@
+package io.causallabs.runtime;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+
+/**
+ * Spreads the exchanges addressed to a client's url over several impression servers. Each exchange
+ * goes to an available server picked by the configured strategy. A server is unavailable while it
+ * is ejected, which happens passively after a run of failed exchanges or when its latency is an
+ * outlier, or while its health checks are failing. If every server is unavailable they are all
+ * used, since sending somewhere beats failing every request. Picking a server reads a counter per
+ * server and allocates nothing.
+ */
+final class LoadBalancer {
+
+  LoadBalancer(
+      String baseUrl,
+      Collection<String> urls,
+      LoadBalancerOptions options,
+      CloseableHttpAsyncClient client) {
+    if (urls.isEmpty()) throw new IllegalArgumentException("Load balancing needs a server");
+    m_base = baseUrl;
+    m_options = options;
+    m_client = client;
+    m_backends = new Backend[urls.size()];
+    int i = 0;
+    for (String url : urls) m_backends[i++] = new Backend(url);
+    m_maxEjected = (int) Math.floor(m_backends.length * options.m_maxEjectedFraction);
+    m_tick = ClientTimer.repeat(this::tick, options.m_intervalNanos);
+  }
+
+  // pick a server for an exchange addressed to uri, or null if uri isn't under the client's url.
+  // The caller must report the server's outcome through completed or released.
+  Backend choose(URI uri) {
+    if (!uri.toString().startsWith(m_base)) return null;
+    long now = System.nanoTime();
+    Backend ret =
+        m_options.m_strategy == BalancingStrategy.LEAST_OUTSTANDING
+            ? leastOutstanding(now, true)
+            : twoChoices(now);
+    if (ret == null) ret = leastOutstanding(now, false);
+    ret.m_outstanding.incrementAndGet();
+    return ret;
+  }
+
+  // uri, addressed to backend instead of the client's url
+  URI resolve(Backend backend, URI uri) {
+    return URI.create(backend.m_url + uri.toString().substring(m_base.length()));
+  }
+
+  // the exchange completed with status, -1 if there was no response
+  void completed(Backend backend, int status, long nanos) {
+    backend.m_outstanding.decrementAndGet();
+    backend.m_requests.increment();
+    if (status < 0 || status >= 500) {
+      backend.m_failures.increment();
+      if (backend.m_consecutiveFailures.incrementAndGet() >= m_options.m_consecutiveFailures) {
+        eject(backend, System.nanoTime());
+      }
+      return;
+    }
+    backend.m_consecutiveFailures.set(0);
+    backend.m_intervalNanos.add(nanos);
+    backend.m_intervalCount.increment();
+  }
+
+  // the exchange was cancelled, which says nothing about the server
+  void released(Backend backend) {
+    backend.m_outstanding.decrementAndGet();
+  }
+
+  List<EndpointStats> stats() {
+    long now = System.nanoTime();
+    List<EndpointStats> ret = new ArrayList<>(m_backends.length);
+    for (Backend backend : m_backends) {
+      ret.add(
+          new EndpointStats(
+              backend.m_url,
+              backend.m_outstanding.get(),
+              backend.m_requests.sum(),
+              backend.m_failures.sum(),
+              backend.m_ejections.get(),
+              backend.ejected(now),
+              backend.m_healthy,
+              backend.m_meanLatency));
+    }
+    return ret;
+  }
+
+  void close() {
+    m_tick.cancel(false);
+  }
+
+  private Backend leastOutstanding(long now, boolean availableOnly) {
+    // start at a random server so ties are spread out
+    int n = m_backends.length;
+    int start = n == 1 ? 0 : ThreadLocalRandom.current().nextInt(n);
+    Backend ret = null;
+    int best = Integer.MAX_VALUE;
+    for (int i = 0; i < n; ++i) {
+      Backend backend = m_backends[(start + i) % n];
+      if (availableOnly && !backend.available(now)) continue;
+      int outstanding = backend.m_outstanding.get();
+      if (outstanding < best) {
+        best = outstanding;
+        ret = backend;
+      }
+    }
+    return ret;
+  }
+
+  private Backend twoChoices(long now) {
+    Backend a = randomAvailable(now, null);
+    if (a == null) return null;
+    Backend b = randomAvailable(now, a);
+    if (b == null) return a;
+    return b.m_outstanding.get() < a.m_outstanding.get() ? b : a;
+  }
+
+  // an available server other than except, starting the search at a random one
+  private Backend randomAvailable(long now, Backend except) {
+    int n = m_backends.length;
+    int start = ThreadLocalRandom.current().nextInt(n);
+    for (int i = 0; i < n; ++i) {
+      Backend backend = m_backends[(start + i) % n];
+      if (backend != except && backend.available(now)) return backend;
+    }
+    return null;
+  }
+
+  private void eject(Backend backend, long now) {
+    long duration;
+    m_lock.lock();
+    try {
+      if (backend.ejected(now)) return;
+      int ejected = 0;
+      for (Backend b : m_backends) if (b.ejected(now)) ++ejected;
+      if (ejected >= m_maxEjected) return;
+      // servers that keep getting ejected stay out longer
+      backend.m_multiplier = Math.min(backend.m_multiplier + 1, MAX_MULTIPLIER);
+      duration = m_options.m_ejectionNanos * backend.m_multiplier;
+      backend.m_ejectedUntil = now + duration;
+      backend.m_consecutiveFailures.set(0);
+    } finally {
+      m_lock.unlock();
+    }
+    backend.m_ejections.incrementAndGet();
+    CausalClient.logger.warn(
+        "Ejected impression server " + backend.m_url + " for " + duration / 1000000 + "ms");
+  }
+
+  // runs every interval on the client timer
+  private void tick() {
+    long now = System.nanoTime();
+    double[] means = new double[m_backends.length];
+    for (int i = 0; i < m_backends.length; ++i) {
+      Backend backend = m_backends[i];
+      long count = backend.m_intervalCount.sumThenReset();
+      long nanos = backend.m_intervalNanos.sumThenReset();
+      backend.m_meanLatency = count == 0 ? 0 : nanos / count;
+      means[i] = count < m_options.m_outlierMinimumRequests ? Double.NaN : (double) nanos / count;
+      m_lock.lock();
+      try {
+        if (!backend.ejected(now) && backend.m_multiplier > 0 && count > 0) --backend.m_multiplier;
+      } finally {
+        m_lock.unlock();
+      }
+    }
+    if (m_options.m_latencyOutlierFactor > 0) {
+      for (int i = 0; i < m_backends.length; ++i) {
+        if (Double.isNaN(means[i])) continue;
+        double median = medianExcept(means, i);
+        if (!Double.isNaN(median) && means[i] > m_options.m_latencyOutlierFactor * median) {
+          eject(m_backends[i], now);
+        }
+      }
+    }
+    if (m_options.m_healthCheckPath != null) {
+      for (Backend backend : m_backends) check(backend);
+    }
+  }
+
+  // the median of the values other than values[except] that are not NaN
+  private static double medianExcept(double[] values, int except) {
+    double[] others = new double[values.length];
+    int n = 0;
+    for (int i = 0; i < values.length; ++i) {
+      if (i != except && !Double.isNaN(values[i])) others[n++] = values[i];
+    }
+    if (n == 0) return Double.NaN;
+    Arrays.sort(others, 0, n);
+    return n % 2 == 1 ? others[n / 2] : (others[n / 2 - 1] + others[n / 2]) / 2;
+  }
+
+  private void check(Backend backend) {
+    Future<SimpleHttpResponse> check;
+    try {
+      check =
+          m_client.execute(
+              SimpleRequestBuilder.get(backend.m_url + m_options.m_healthCheckPath)
+                  .setHeader("user-agent", "Causal java client")
+                  .build(),
+              new FutureCallback<SimpleHttpResponse>() {
+                @Override
+                public void completed(SimpleHttpResponse result) {
+                  checked(backend, result.getCode() >= 200 && result.getCode() < 300);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                  checked(backend, false);
+                }
+
+                @Override
+                public void cancelled() {
+                  checked(backend, false);
+                }
+              });
+    } catch (RuntimeException e) {
+      // the http client is shutting down
+      return;
+    }
+    ClientTimer.schedule(() -> check.cancel(true), m_options.m_healthCheckTimeoutNanos);
+  }
+
+  private void checked(Backend backend, boolean passed) {
+    backend.m_lock.lock();
+    try {
+      if (passed) {
+        backend.m_checksFailed = 0;
+        if (!backend.m_healthy && ++backend.m_checksPassed >= m_options.m_healthyThreshold) {
+          backend.m_healthy = true;
+          CausalClient.logger.info("Impression server " + backend.m_url + " is healthy again");
+        }
+      } else {
+        backend.m_checksPassed = 0;
+        if (backend.m_healthy && ++backend.m_checksFailed >= m_options.m_unhealthyThreshold) {
+          backend.m_healthy = false;
+          CausalClient.logger.warn("Impression server " + backend.m_url + " failed health checks");
+        }
+      }
+    } finally {
+      backend.m_lock.unlock();
+    }
+  }
+
+  static final class Backend {
+
+    Backend(String url) {
+      m_url = url;
+    }
+
+    boolean ejected(long now) {
+      return now - m_ejectedUntil < 0;
+    }
+
+    boolean available(long now) {
+      return m_healthy && !ejected(now);
+    }
+
+    final String m_url;
+    final AtomicInteger m_outstanding = new AtomicInteger();
+    final LongAdder m_requests = new LongAdder();
+    final LongAdder m_failures = new LongAdder();
+    final AtomicInteger m_consecutiveFailures = new AtomicInteger();
+    final AtomicInteger m_ejections = new AtomicInteger();
+    // latency of the successful exchanges in the current interval
+    final LongAdder m_intervalNanos = new LongAdder();
+    final LongAdder m_intervalCount = new LongAdder();
+    volatile long m_meanLatency = 0;
+    volatile long m_ejectedUntil = System.nanoTime();
+    // the length of the last ejection in ejection durations, less one for each interval the server
+    // then serves traffic. Guarded by the balancer's m_lock
+    int m_multiplier = 0;
+    volatile boolean m_healthy = true;
+    // guarded by m_lock
+    int m_checksPassed = 0;
+    int m_checksFailed = 0;
+    final ReentrantLock m_lock = new ReentrantLock();
+  }
+
+  private static final int MAX_MULTIPLIER = 10;
+  private final String m_base;
+  private final LoadBalancerOptions m_options;
+  private final CloseableHttpAsyncClient m_client;
+  private final Backend[] m_backends;
+  private final int m_maxEjected;
+  private final ScheduledFuture<?> m_tick;
+  // guards ejections. Locks rather than monitors, so a caller on a virtual thread that fails an
+  // exchange doesn't pin its carrier
+  private final ReentrantLock m_lock = new ReentrantLock();
+}
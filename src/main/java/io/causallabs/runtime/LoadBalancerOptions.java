@@ -0,0 +1,176 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+
+/**
+ * Options that control how requests are spread over impression servers and when a server is taken
+ * out of rotation. See {@link LoadBalancedCausalClient}.
+ */
+public class LoadBalancerOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    /**
+     * How a server is picked for each exchange.
+     *
+     * @param x
+     * @return
+     */
+    public Builder strategy(BalancingStrategy x) {
+      if (x == null) throw new IllegalArgumentException("strategy must not be null");
+      m_obj.m_strategy = x;
+      return this;
+    }
+
+    /**
+     * Eject a server after this many exchanges in a row fail. Connection failures and 5xx responses
+     * count as failures.
+     *
+     * @param x
+     * @return
+     */
+    public Builder consecutiveFailures(int x) {
+      if (x < 1) throw new IllegalArgumentException("consecutiveFailures must be positive");
+      m_obj.m_consecutiveFailures = x;
+      return this;
+    }
+
+    /**
+     * How long a server stays ejected the first time. Each ejection that follows closely on the
+     * last one is longer, up to ten times this.
+     *
+     * @param x
+     * @return
+     */
+    public Builder ejectionDuration(Duration x) {
+      m_obj.m_ejectionNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Most of the servers that may be ejected at once, between 0 and 1. Ejections that would go
+     * over it are skipped, so some servers always stay in rotation.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxEjectedFraction(double x) {
+      if (x < 0 || x > 1) throw new IllegalArgumentException("maxEjectedFraction in [0, 1]");
+      m_obj.m_maxEjectedFraction = x;
+      return this;
+    }
+
+    /**
+     * Eject a server whose mean latency over an interval is more than this many times the median of
+     * the other servers' means. 0 turns off latency ejection.
+     *
+     * @param x
+     * @return
+     */
+    public Builder latencyOutlierFactor(double x) {
+      if (x != 0 && x <= 1) throw new IllegalArgumentException("latencyOutlierFactor above 1");
+      m_obj.m_latencyOutlierFactor = x;
+      return this;
+    }
+
+    /**
+     * Only judge the latency of servers that completed at least this many exchanges in the
+     * interval.
+     *
+     * @param x
+     * @return
+     */
+    public Builder outlierMinimumRequests(int x) {
+      if (x < 1) throw new IllegalArgumentException("outlierMinimumRequests must be positive");
+      m_obj.m_outlierMinimumRequests = x;
+      return this;
+    }
+
+    /**
+     * How often latency outliers are looked for and health checks are sent.
+     *
+     * @param x
+     * @return
+     */
+    public Builder interval(Duration x) {
+      if (x.isZero() || x.isNegative()) throw new IllegalArgumentException("interval positive");
+      m_obj.m_intervalNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Path, relative to each server's url, that health checks GET. Any 2xx response is healthy.
+     * null turns off health checks.
+     *
+     * @param x
+     * @return
+     */
+    public Builder healthCheckPath(String x) {
+      m_obj.m_healthCheckPath = x;
+      return this;
+    }
+
+    /**
+     * A health check that takes longer than this fails.
+     *
+     * @param x
+     * @return
+     */
+    public Builder healthCheckTimeout(Duration x) {
+      m_obj.m_healthCheckTimeoutNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Take a server out of rotation after this many health checks in a row fail.
+     *
+     * @param x
+     * @return
+     */
+    public Builder unhealthyThreshold(int x) {
+      if (x < 1) throw new IllegalArgumentException("unhealthyThreshold must be positive");
+      m_obj.m_unhealthyThreshold = x;
+      return this;
+    }
+
+    /**
+     * Put an unhealthy server back after this many health checks in a row succeed.
+     *
+     * @param x
+     * @return
+     */
+    public Builder healthyThreshold(int x) {
+      if (x < 1) throw new IllegalArgumentException("healthyThreshold must be positive");
+      m_obj.m_healthyThreshold = x;
+      return this;
+    }
+
+    public LoadBalancerOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {}
+
+    LoadBalancerOptions m_obj = new LoadBalancerOptions();
+  }
+
+  BalancingStrategy m_strategy = BalancingStrategy.LEAST_OUTSTANDING;
+  int m_consecutiveFailures = 5;
+  long m_ejectionNanos = Duration.ofSeconds(30).toNanos();
+  double m_maxEjectedFraction = 0.5;
+  double m_latencyOutlierFactor = 3;
+  int m_outlierMinimumRequests = 20;
+  long m_intervalNanos = Duration.ofSeconds(5).toNanos();
+  String m_healthCheckPath = "/health";
+  long m_healthCheckTimeoutNanos = Duration.ofSeconds(1).toNanos();
+  int m_unhealthyThreshold = 2;
+  int m_healthyThreshold = 2;
+
+  private LoadBalancerOptions() {}
+
+  public static LoadBalancerOptions DEFAULTS = new LoadBalancerOptions();
+}
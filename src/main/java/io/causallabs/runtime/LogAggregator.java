@@ -0,0 +1,181 @@
+package io.causallabs.runtime;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Logs the warnings and errors of failing requests within a budget, and summarizes the rest. See
+ * {@link LogOptions}. The cost of a failure past the budget is a few atomic operations and a table
+ * lookup that allocates nothing, plus building its message if it is kept as a sample. The first
+ * failure of a kind in an interval allocates its tally. Counts are approximate: a failure racing
+ * with the end of an interval may be left out of its summary.
+ */
+final class LogAggregator {
+
+  LogAggregator(LogOptions options) {
+    m_options = options;
+    m_tallies = new Tallies(options);
+  }
+
+  /**
+   * Log a warning, or count it if the budget is spent.
+   *
+   * @param endpoint where the failure happened
+   * @param status the status code it got, or that its ApiException has
+   * @param feature the feature it is about, null if it is not about one
+   * @param message only called if the message is logged or kept as a sample
+   * @param cause logged with the message, may be null
+   */
+  void warn(
+      MetricsSink.Endpoint endpoint,
+      int status,
+      String feature,
+      Supplier<String> message,
+      Throwable cause) {
+    if (!CausalClient.logger.isWarnEnabled()) return;
+    if (withinBudget()) {
+      CausalClient.logger.warn(message.get(), cause);
+      return;
+    }
+    tally(endpoint, status, feature, message, false);
+  }
+
+  /** As {@link #warn}, at error level. */
+  void error(
+      MetricsSink.Endpoint endpoint,
+      int status,
+      String feature,
+      Supplier<String> message,
+      Throwable cause) {
+    if (!CausalClient.logger.isErrorEnabled()) return;
+    if (withinBudget()) {
+      CausalClient.logger.error(message.get(), cause);
+      return;
+    }
+    tally(endpoint, status, feature, message, true);
+  }
+
+  // log the summaries of the current interval now
+  void flush() {
+    m_logged.set(0);
+    m_scheduled.set(false);
+    Tallies tallies = m_tallies;
+    if (tallies.m_size.get() == 0 && tallies.m_other.m_count.get() == 0) return;
+    m_tallies = new Tallies(m_options);
+    for (int i = 0; i < tallies.m_slots.length(); ++i) {
+      Tally tally = tallies.m_slots.get(i);
+      if (tally != null) summarize(tally);
+    }
+    if (tallies.m_other.m_count.get() > 0) summarize(tallies.m_other);
+  }
+
+  private static void summarize(Tally tally) {
+    StringBuilder line = new StringBuilder();
+    line.append("Suppressed ").append(tally.m_count.get());
+    line.append(tally.m_error ? " errors" : " warnings");
+    if (tally.m_endpoint == null) line.append(" for other failures");
+    else {
+      line.append(" for ").append(tally.m_endpoint).append(" status ").append(tally.m_status);
+      if (tally.m_feature != null) line.append(" feature ").append(tally.m_feature);
+    }
+    line.append(" since the last summary");
+    String separator = ", e.g. ";
+    for (int i = 0; i < tally.m_samples.length(); ++i) {
+      String sample = tally.m_samples.get(i);
+      if (sample == null) continue;
+      line.append(separator).append(sample);
+      separator = " | ";
+    }
+    if (tally.m_error) CausalClient.logger.error(line.toString());
+    else CausalClient.logger.warn(line.toString());
+  }
+
+  private boolean withinBudget() {
+    // the first failure of an interval starts it
+    if (!m_scheduled.get() && m_scheduled.compareAndSet(false, true)) {
+      ClientTimer.schedule(this::flush, m_options.m_intervalNanos);
+    }
+    return m_logged.get() < m_options.m_budget && m_logged.incrementAndGet() <= m_options.m_budget;
+  }
+
+  private void tally(
+      MetricsSink.Endpoint endpoint,
+      int status,
+      String feature,
+      Supplier<String> message,
+      boolean error) {
+    Tally tally = find(m_tallies, endpoint, status, feature);
+    long n = tally.m_count.incrementAndGet();
+    if (error) tally.m_error = true;
+    if (n <= tally.m_samples.length()) tally.m_samples.set((int) n - 1, message.get());
+  }
+
+  // the tally for an endpoint, status and feature, added if there is room. Only adding allocates.
+  private Tally find(Tallies tallies, MetricsSink.Endpoint endpoint, int status, String feature) {
+    AtomicReferenceArray<Tally> slots = tallies.m_slots;
+    int mask = slots.length() - 1;
+    int hash =
+        (Objects.hashCode(endpoint) * 31 * 31 + status * 31 + Objects.hashCode(feature))
+            * 0x9E3779B9;
+    for (int i = hash >>> 16 & mask; ; i = (i + 1) & mask) {
+      Tally tally = slots.get(i);
+      if (tally == null) {
+        // claim room first, so the table never fills up and the probe always ends
+        if (tallies.m_size.getAndIncrement() >= m_options.m_maxSummaries) {
+          tallies.m_size.decrementAndGet();
+          return tallies.m_other;
+        }
+        Tally added = new Tally(endpoint, status, feature, m_options.m_samples);
+        if (slots.compareAndSet(i, null, added)) return added;
+        tallies.m_size.decrementAndGet();
+        tally = slots.get(i);
+      }
+      if (tally.m_endpoint == endpoint
+          && tally.m_status == status
+          && Objects.equals(tally.m_feature, feature)) {
+        return tally;
+      }
+    }
+  }
+
+  // the tallies of an interval, in an open addressed table with room for at least twice
+  // maxSummaries, and a catch all for the failures past that
+  private static final class Tallies {
+
+    Tallies(LogOptions options) {
+      m_slots = new AtomicReferenceArray<>(Integer.highestOneBit(options.m_maxSummaries) * 4);
+      m_other = new Tally(null, 0, null, options.m_samples);
+    }
+
+    final AtomicReferenceArray<Tally> m_slots;
+    final AtomicInteger m_size = new AtomicInteger();
+    final Tally m_other;
+  }
+
+  private static final class Tally {
+
+    Tally(MetricsSink.Endpoint endpoint, int status, String feature, int samples) {
+      m_endpoint = endpoint;
+      m_status = status;
+      m_feature = feature;
+      m_samples = new AtomicReferenceArray<>(samples);
+    }
+
+    final MetricsSink.Endpoint m_endpoint;
+    final int m_status;
+    final String m_feature;
+    final AtomicLong m_count = new AtomicLong();
+    final AtomicReferenceArray<String> m_samples;
+    // logged at error level if any of the failures were errors
+    volatile boolean m_error = false;
+  }
+
+  private final LogOptions m_options;
+  private final AtomicInteger m_logged = new AtomicInteger();
+  private final AtomicBoolean m_scheduled = new AtomicBoolean();
+  private volatile Tallies m_tallies;
+}
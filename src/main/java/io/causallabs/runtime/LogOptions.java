@@ -0,0 +1,86 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+
+/**
+ * Limits on how much a {@link CausalClient} logs about failing requests. Within each interval the
+ * first budget warnings and errors are logged as usual. Further ones are counted by endpoint,
+ * status and feature, and logged as one summary line per combination, with a few sample messages,
+ * when the interval ends. See {@link CausalClient#setLogOptions(LogOptions)}.
+ */
+public class LogOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    /**
+     * Number of warnings and errors logged individually per interval.
+     *
+     * @param x
+     * @return
+     */
+    public Builder budget(int x) {
+      if (x < 0) throw new IllegalArgumentException("budget can't be negative");
+      m_obj.m_budget = x;
+      return this;
+    }
+
+    /**
+     * How often the budget is renewed and the summaries are logged.
+     *
+     * @param x
+     * @return
+     */
+    public Builder interval(Duration x) {
+      if (x.isNegative() || x.isZero())
+        throw new IllegalArgumentException("interval must be positive");
+      m_obj.m_intervalNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Number of messages kept as examples in each summary.
+     *
+     * @param x
+     * @return
+     */
+    public Builder samples(int x) {
+      if (x < 0) throw new IllegalArgumentException("samples can't be negative");
+      m_obj.m_samples = x;
+      return this;
+    }
+
+    /**
+     * Maximum number of endpoint, status and feature combinations summarized per interval. Once
+     * reached, other failures are counted in a single catch all summary.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxSummaries(int x) {
+      if (x < 1) throw new IllegalArgumentException("maxSummaries must be positive");
+      m_obj.m_maxSummaries = x;
+      return this;
+    }
+
+    public LogOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {}
+
+    LogOptions m_obj = new LogOptions();
+  }
+
+  int m_budget = 20;
+  long m_intervalNanos = Duration.ofSeconds(10).toNanos();
+  int m_samples = 3;
+  int m_maxSummaries = 100;
+
+  private LogOptions() {}
+
+  public static LogOptions DEFAULTS = new LogOptions();
+}
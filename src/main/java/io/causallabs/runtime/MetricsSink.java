@@ -0,0 +1,76 @@
+package io.causallabs.runtime;
+
+/**
+ * Receives measurements from a {@link CausalClient}. See {@link
+ * CausalClient#setMetricsSink(MetricsSink)}.
+ *
+ * <p>Methods are called on the http client's I/O threads as exchanges complete, so they must be
+ * quick, must not block and should not allocate. Every method does nothing by default, so an
+ * implementation only needs to override what it records. {@link CausalMetrics} is a lock free
+ * implementation that keeps everything in memory.
+ */
+public interface MetricsSink {
+
+  /** What an exchange with the impression server was for */
+  enum Endpoint {
+    FEATURES,
+    SIGNAL,
+    EXTERNAL,
+    KEEP_ALIVE,
+    /** an /impression call that records the values of features served from memory */
+    IMPRESSIONS,
+    /** a batch of signals, keep alives and externals */
+    BATCH,
+    /** a payload replayed from the disk spool */
+    REPLAY,
+    /** features for many sessions in one /features call */
+    FEATURES_BATCH
+  }
+
+  /** How a feature request was answered */
+  enum FeatureOutcome {
+    /** the server returned values for the feature */
+    ACTIVE,
+    /** the feature is gated off */
+    OFF,
+    /** the server doesn't know the feature, so it has its default values */
+    UNKNOWN,
+    /** the request failed and the feature has control values */
+    ERROR
+  }
+
+  /**
+   * An exchange was handed to the http client.
+   *
+   * @param endpoint
+   */
+  default void exchangeStarted(Endpoint endpoint) {}
+
+  /**
+   * An exchange finished.
+   *
+   * @param endpoint
+   * @param status the http status, or -1 if the exchange failed or was cancelled without one
+   * @param nanos time from handing the exchange to the http client to its completion
+   */
+  default void exchangeCompleted(Endpoint endpoint, int status, long nanos) {}
+
+  /**
+   * A request or signal completed with an {@link ApiException}.
+   *
+   * @param endpoint
+   * @param status the exception's status code
+   */
+  default void apiError(Endpoint endpoint, int status) {}
+
+  /**
+   * A /features call settled for a feature.
+   *
+   * @param featureName
+   * @param outcome
+   */
+  default void feature(String featureName, FeatureOutcome outcome) {}
+
+  /** Records nothing */
+  MetricsSink NONE = new MetricsSink() {};
+}
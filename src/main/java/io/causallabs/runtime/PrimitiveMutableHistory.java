@@ -0,0 +1,109 @@
+package io.causallabs.runtime;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import org.apache.avro.io.Encoder;
+
+/**
+ * The changing value of a primitive mutable over time, like {@link MutableHistory} but kept in
+ * parallel primitive arrays instead of a Record object per change. Read it with {@link #size()},
+ * {@link #getStartTime(int)}, {@link #getEndTime(int)} and the subclass's value accessor, and
+ * serialize it with {@link #write(Encoder)}, none of which box. It is also a list of records, so it
+ * can be written by Avro's generic writer like a MutableHistory, at the cost of a boxed Record for
+ * each element.
+ */
+public abstract class PrimitiveMutableHistory<T> extends AbstractList<MutableHistory.Record<T>> {
+
+  @Override
+  public int size() {
+    return m_size;
+  }
+
+  public boolean isSet() {
+    return m_size > 0;
+  }
+
+  public long getStartTime(int index) {
+    checkIndex(index);
+    return m_startTimes[index];
+  }
+
+  public long getEndTime(int index) {
+    checkIndex(index);
+    return m_endTimes[index];
+  }
+
+  public void setEndTime(long endTime) {
+    // sets the end time of the last record. Used when the session closes
+    if (m_size > 0) m_endTimes[m_size - 1] = endTime;
+  }
+
+  @Override
+  public MutableHistory.Record<T> get(int index) {
+    checkIndex(index);
+    MutableHistory.Record<T> ret = new MutableHistory.Record<>(m_startTimes[index], boxed(index));
+    ret.endTime = m_endTimes[index];
+    return ret;
+  }
+
+  /**
+   * Write the history as an Avro array of records with a long startTime, a long endTime and a
+   * value, in that order, the schema the iserver generates for a mutable. The value must not be
+   * nullable.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void write(Encoder out) throws IOException {
+    out.writeArrayStart();
+    out.setItemCount(m_size);
+    for (int i = 0; i < m_size; ++i) {
+      out.startItem();
+      out.writeLong(m_startTimes[i]);
+      out.writeLong(m_endTimes[i]);
+      writeValue(out, i);
+    }
+    out.writeArrayEnd();
+  }
+
+  // the value at index, boxed for the Record view
+  abstract T boxed(int index);
+
+  abstract void writeValue(Encoder out, int index) throws IOException;
+
+  // grow the value array to hold capacity values
+  abstract void growValues(int capacity);
+
+  // close the current value at now and make room for the next one, returning its index
+  int append(long now) {
+    if (m_size > 0) m_endTimes[m_size - 1] = now;
+    if (m_size == m_startTimes.length) {
+      int capacity = Math.max(INITIAL_CAPACITY, m_size + (m_size >> 1));
+      m_startTimes = Arrays.copyOf(m_startTimes, capacity);
+      m_endTimes = Arrays.copyOf(m_endTimes, capacity);
+      growValues(capacity);
+    }
+    m_startTimes[m_size] = now;
+    m_endTimes[m_size] = Long.MAX_VALUE;
+    ++modCount;
+    return m_size++;
+  }
+
+  // the index of the current value
+  int last() {
+    if (m_size == 0)
+      throw new IllegalStateException("Attempt to retrieve a value that was not set");
+    return m_size - 1;
+  }
+
+  void checkIndex(int index) {
+    if (index < 0 || index >= m_size)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+  }
+
+  static final int INITIAL_CAPACITY = 4;
+  private long[] m_startTimes = new long[0];
+  private long[] m_endTimes = new long[0];
+  int m_size = 0;
+}
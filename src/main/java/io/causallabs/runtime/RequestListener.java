@@ -0,0 +1,19 @@
+package io.causallabs.runtime;
+
+/**
+ * Receives the phase timestamps of sampled exchanges with the impression server, for example to
+ * attach them to a trace. See {@link CausalClient#setRequestListener(RequestListener, double)}.
+ *
+ * <p>Called on the http client's I/O threads once an exchange and its callbacks are done, so it
+ * must be quick and must not block.
+ */
+@FunctionalInterface
+public interface RequestListener {
+
+  /**
+   * An exchange finished.
+   *
+   * @param timing when each phase of the exchange ended
+   */
+  void requestCompleted(RequestTiming timing);
+}
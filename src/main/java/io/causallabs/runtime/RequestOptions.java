@@ -3,6 +3,7 @@ package io.causallabs.runtime;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import java.io.IOException;
+import java.time.Duration;
 
 /** Options that change the behavior of requests to an impression server. */
 public class RequestOptions {
@@ -27,6 +28,19 @@ public class RequestOptions {
       return this;
     }
 
+    /**
+     * Maximum time a feature request may take. When it passes, the request is cancelled and the
+     * features are left with their control values and a 504 error. Overrides the client's default
+     * deadline. Ignored by signals.
+     *
+     * @param x
+     * @return
+     */
+    public Builder deadline(Duration x) {
+      m_obj.m_deadline = x;
+      return this;
+    }
+
     public RequestOptions build() {
       return m_obj;
     }
@@ -46,6 +60,7 @@ public class RequestOptions {
   }
 
   public boolean m_ignoreMissingImp = false;
+  Duration m_deadline = null;
 
   private RequestOptions() {}
 
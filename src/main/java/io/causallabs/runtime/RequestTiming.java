@@ -0,0 +1,128 @@
+package io.causallabs.runtime;
+
+/**
+ * When each phase of an exchange with the impression server ended, as {@link System#nanoTime()}
+ * values. The phases are:
+ *
+ * <ul>
+ *   <li>serialize, from {@link #getStartedNanos()} to {@link #getQueuedNanos()}
+ *   <li>queue, waiting for a pooled connection, up to {@link #getConnectedNanos()}
+ *   <li>network, sending the request and reading the response, up to {@link #getReceivedNanos()}
+ *   <li>parse, applying a /features response to the features, up to {@link #getParsedNanos()}
+ *   <li>callback, completing the request's future and running what depends on it, up to {@link
+ *       #getCompletedNanos()}
+ * </ul>
+ *
+ * Timestamps of phases that never ended, because the exchange failed or was cancelled, are 0. A
+ * /features request that never got an exchange, because the circuit breaker refused it or its
+ * deadline passed first, is reported with status -1 and only its start and completion. Signals that
+ * are spooled or batched are timed by the exchange that sends them, a spool replay or a batch.
+ */
+public final class RequestTiming {
+
+  public MetricsSink.Endpoint getEndpoint() {
+    return m_endpoint;
+  }
+
+  /**
+   * @return true if this is the second exchange of a hedged /features call
+   */
+  public boolean isHedge() {
+    return m_hedge;
+  }
+
+  /**
+   * @return true if this /features request sent no exchange of its own and was filled in from an
+   *     identical request's response, see {@link CausalClient#enableRequestCoalescing()}. It has no
+   *     queue or network phases, it was received when the shared response arrived.
+   */
+  public boolean isCoalesced() {
+    return m_coalesced;
+  }
+
+  /**
+   * @return the http status, or -1 if there was no response
+   */
+  public int getStatus() {
+    return m_status;
+  }
+
+  /** The request started, before its body was serialized */
+  public long getStartedNanos() {
+    return m_started;
+  }
+
+  /** The body was handed to the http client */
+  public long getQueuedNanos() {
+    return m_queued;
+  }
+
+  /** A connection was leased and the request started to go out */
+  public long getConnectedNanos() {
+    return m_connected;
+  }
+
+  /** The whole response arrived */
+  public long getReceivedNanos() {
+    return m_received;
+  }
+
+  /** The response was applied to the features. Same as received for other endpoints. */
+  public long getParsedNanos() {
+    return m_parsed != 0 ? m_parsed : m_received;
+  }
+
+  /** The exchange's callbacks finished */
+  public long getCompletedNanos() {
+    return m_completed;
+  }
+
+  @Override
+  public String toString() {
+    return m_endpoint
+        + (m_hedge ? " hedge" : "")
+        + (m_coalesced ? " coalesced" : "")
+        + " status="
+        + m_status
+        + " serialize="
+        + phase(m_started, m_queued)
+        + " queue="
+        + phase(m_queued, m_connected)
+        + " network="
+        + phase(m_connected, m_received)
+        + " parse="
+        + phase(m_received, getParsedNanos())
+        + " callback="
+        + phase(getParsedNanos(), m_completed);
+  }
+
+  private static String phase(long from, long to) {
+    return from == 0 || to == 0 ? "-" : (to - from) / 1000 + "us";
+  }
+
+  RequestTiming(RequestListener listener, MetricsSink.Endpoint endpoint, long started) {
+    m_listener = listener;
+    m_endpoint = endpoint;
+    m_started = started;
+  }
+
+  // another exchange for the same call, sharing its start
+  RequestTiming again(boolean hedge) {
+    RequestTiming ret = new RequestTiming(m_listener, m_endpoint, m_started);
+    ret.m_hedge = hedge;
+    return ret;
+  }
+
+  final RequestListener m_listener;
+  final MetricsSink.Endpoint m_endpoint;
+  final long m_started;
+  boolean m_hedge = false;
+  boolean m_coalesced = false;
+  // written by whichever thread runs the phase, the exchange's completion publishes them
+  volatile int m_status = -1;
+  volatile long m_queued;
+  volatile long m_connected;
+  volatile long m_received;
+  volatile long m_parsed;
+  volatile long m_completed;
+}
@@ -79,9 +79,18 @@ public abstract class Requestable {
   // it can't go. IE deserializing a string to an int.
   public abstract void deserializeResponse(JsonParser parser) throws ApiException;
 
+  // Can serializeArgs and deserializeResponse run against a binary (Smile) generator and parser?
+  // They can as long as they only use the token level API. Return false if they write raw JSON or
+  // otherwise depend on the text encoding, and requests including this feature are sent as JSON.
+  public boolean supportsBinaryEncoding() {
+    return true;
+  }
+
   void setSession(SessionRequestable s) {
     m_session = s;
   }
 
   SessionRequestable m_session = null;
+  // how the current /features call settled this request, until it is reported to the metrics sink
+  MetricsSink.FeatureOutcome m_outcome = null;
 }
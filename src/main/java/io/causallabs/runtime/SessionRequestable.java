@@ -2,6 +2,9 @@ package io.causallabs.runtime;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.io.SerializedString;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
 
 /** Marker interface for the session request objects */
@@ -19,6 +22,26 @@ public abstract class SessionRequestable {
   // it can't go. IE deserializing a string to an int.
   public abstract void deserializeResponse(JsonParser parser) throws ApiException;
 
+  // Can serializeArgs and deserializeResponse run against a binary (Smile) generator and parser?
+  // See Requestable.supportsBinaryEncoding
+  public boolean supportsBinaryEncoding() {
+    return true;
+  }
+
+  // Can the client encode serializeArgs and serializeIds once and reuse the bytes for every request
+  // on this session? Only return true if every change to an argument or id calls encodingChanged.
+  public boolean cacheEncoding() {
+    return false;
+  }
+
+  // Drop the cached encodings of the args and ids, see cacheEncoding. Call after every change to
+  // one of them.
+  protected void encodingChanged() {
+    VERSION.incrementAndGet(this);
+    m_encodedArgs = null;
+    m_encodedIds = null;
+  }
+
   // Add appropriate headers to send a request to the impression server
   public abstract void addHeaders(SimpleRequestBuilder builder);
 
@@ -32,5 +55,68 @@ public abstract class SessionRequestable {
           "Attempt to access a request before calling a CausalClient.request method.");
   }
 
+  // the version of the args and ids an encoding is made from. Read it before encoding.
+  int encodingVersion() {
+    return m_version;
+  }
+
+  // the cached encodings, or null if there are none made from the current version
+  SerializedString encodedArgs() {
+    return current(m_encodedArgs);
+  }
+
+  SerializedString encodedIds() {
+    return current(m_encodedIds);
+  }
+
+  // keep an encoding made from the given version, see encodingVersion. An encoding started before
+  // an encodingChanged is never used after it, and never replaces one made from a later version.
+  void cacheArgs(int version, SerializedString encoded) {
+    cache(ARGS, m_encodedArgs, version, encoded);
+  }
+
+  void cacheIds(int version, SerializedString encoded) {
+    cache(IDS, m_encodedIds, version, encoded);
+  }
+
+  private SerializedString current(Encoding encoding) {
+    return encoding != null && encoding.m_version == m_version ? encoding.m_value : null;
+  }
+
+  private void cache(
+      AtomicReferenceFieldUpdater<SessionRequestable, Encoding> field,
+      Encoding seen,
+      int version,
+      SerializedString encoded) {
+    if (seen != null && seen.m_version - version >= 0) return;
+    // if the version moves on before this lands, readers see it's stale and skip it
+    field.compareAndSet(this, seen, new Encoding(version, encoded));
+  }
+
+  // an encoding and the version it was made from
+  private static final class Encoding {
+    Encoding(int version, SerializedString value) {
+      m_version = version;
+      m_value = value;
+    }
+
+    final int m_version;
+    final SerializedString m_value;
+  }
+
   private boolean _callComplete = false;
+  // JSON encodings of serializeArgs and serializeIds, kept by CausalClient if cacheEncoding allows,
+  // and the version of the args and ids, bumped by encodingChanged
+  private volatile int m_version = 0;
+  private volatile Encoding m_encodedArgs = null;
+  private volatile Encoding m_encodedIds = null;
+
+  private static final AtomicIntegerFieldUpdater<SessionRequestable> VERSION =
+      AtomicIntegerFieldUpdater.newUpdater(SessionRequestable.class, "m_version");
+  private static final AtomicReferenceFieldUpdater<SessionRequestable, Encoding> ARGS =
+      AtomicReferenceFieldUpdater.newUpdater(
+          SessionRequestable.class, Encoding.class, "m_encodedArgs");
+  private static final AtomicReferenceFieldUpdater<SessionRequestable, Encoding> IDS =
+      AtomicReferenceFieldUpdater.newUpdater(
+          SessionRequestable.class, Encoding.class, "m_encodedIds");
 }
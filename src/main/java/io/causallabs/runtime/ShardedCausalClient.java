@@ -0,0 +1,86 @@
+package io.causallabs.runtime;
+
+import java.util.Collection;
+import java.util.List;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+
+/**
+ * A client that spreads sessions over several impression servers without a load balancer in
+ * between. Traffic is routed by a consistent hash of the session's serialized ids, so each session
+ * sticks to one server and keeps hitting the arguments that server has memoized for it. The servers
+ * can be changed while the client is running, which only moves the sessions whose part of the ring
+ * changed hands.
+ *
+ * <p>Signals, keep alives and externals follow their session. Replayed traffic, which has no
+ * session, goes to the first server. Options such as deadlines, hedging, batching and the circuit
+ * breaker are shared by all the servers.
+ */
+public class ShardedCausalClient extends CausalClient {
+
+  /**
+   * Create a client that shards sessions over the impression servers. The caller closes it.
+   *
+   * @param impressionServerUrls the impression servers, at least one
+   * @return the new client
+   */
+  public static ShardedCausalClient create(Collection<String> impressionServerUrls) {
+    return create(
+        impressionServerUrls, HttpAsyncClientBuilder.create().disableAutomaticRetries().build());
+  }
+
+  /**
+   * Create a client that shards sessions over the impression servers. The caller closes it.
+   *
+   * @param impressionServerUrls the impression servers, at least one
+   * @param httpClient the http client used for every server, started by this call and closed with
+   *     the client
+   * @return the new client
+   */
+  public static ShardedCausalClient create(
+      Collection<String> impressionServerUrls, CloseableHttpAsyncClient httpClient) {
+    return new ShardedCausalClient(
+        new HashRing(impressionServerUrls, POINTS_PER_SERVER), httpClient);
+  }
+
+  /**
+   * Replace the impression servers. Requests already sent are not affected, later ones are routed
+   * over the new servers. Sessions on servers that are in both sets mostly stay where they are.
+   *
+   * @param impressionServerUrls the impression servers, at least one
+   */
+  public void setImpressionServers(Collection<String> impressionServerUrls) {
+    m_ring = new HashRing(impressionServerUrls, POINTS_PER_SERVER);
+  }
+
+  /** The impression servers sessions are currently routed over. */
+  public List<String> getImpressionServers() {
+    return m_ring.nodes();
+  }
+
+  /**
+   * The impression server the session's traffic currently goes to.
+   *
+   * @param session the session
+   * @return the server's url
+   */
+  public String impressionServerFor(SessionRequestable session) {
+    return serverUrl(session);
+  }
+
+  @Override
+  String serverUrl(SessionRequestable session) {
+    HashRing ring = m_ring;
+    if (session == null) return ring.nodes().get(0);
+    return ring.node(sessionHash(session));
+  }
+
+  private ShardedCausalClient(HashRing ring, CloseableHttpAsyncClient client) {
+    super(ring.nodes().get(0), client);
+    m_ring = ring;
+  }
+
+  // enough points that each server's share of the sessions is within a few percent of even
+  private static final int POINTS_PER_SERVER = 160;
+  private volatile HashRing m_ring;
+}
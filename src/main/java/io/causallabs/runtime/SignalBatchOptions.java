@@ -0,0 +1,129 @@
+package io.causallabs.runtime;
+
+import java.time.Duration;
+
+/**
+ * Options that control how signals, keep alives and externals are batched before being sent to the
+ * impression server. See {@link CausalClient#enableSignalBatching(SignalBatchOptions)}.
+ */
+public class SignalBatchOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** What to do with a signal when the buffer is already holding maxBufferedBytes */
+  public enum OverflowPolicy {
+    /** Fail the signal's future immediately */
+    DROP,
+    /** Wait up to maxBlock for space, then drop */
+    BLOCK
+  }
+
+  public static class Builder {
+
+    /**
+     * Flush a batch once it holds this many payloads.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxBatchSize(int x) {
+      if (x < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+      m_obj.m_maxBatchSize = x;
+      return this;
+    }
+
+    /**
+     * Flush a batch once its payloads add up to this many bytes.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxBatchBytes(int x) {
+      if (x < 1) throw new IllegalArgumentException("maxBatchBytes must be positive");
+      m_obj.m_maxBatchBytes = x;
+      return this;
+    }
+
+    /**
+     * Maximum time a payload waits for its batch to fill up before it is sent.
+     *
+     * @param x
+     * @return
+     */
+    public Builder linger(Duration x) {
+      m_obj.m_lingerNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Hard cap on the bytes held by the batcher, including batches that have been sent but not
+     * acknowledged.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxBufferedBytes(long x) {
+      if (x < 1) throw new IllegalArgumentException("maxBufferedBytes must be positive");
+      m_obj.m_maxBufferedBytes = x;
+      return this;
+    }
+
+    /**
+     * What to do when the buffer is full.
+     *
+     * @param x
+     * @return
+     */
+    public Builder overflowPolicy(OverflowPolicy x) {
+      m_obj.m_overflowPolicy = x;
+      return this;
+    }
+
+    /**
+     * How long to wait for space when the overflow policy is BLOCK.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxBlock(Duration x) {
+      m_obj.m_maxBlockNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Number of independent batches per endpoint. Payloads are assigned to a lane by session, and
+     * each lane only has one batch outstanding at a time, so a session's batches are sent in order.
+     * See {@link CausalClient#enableSignalBatching} for when they may still arrive out of order.
+     *
+     * @param x
+     * @return
+     */
+    public Builder lanes(int x) {
+      if (x < 1) throw new IllegalArgumentException("lanes must be positive");
+      m_obj.m_lanes = x;
+      return this;
+    }
+
+    public SignalBatchOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {}
+
+    SignalBatchOptions m_obj = new SignalBatchOptions();
+  }
+
+  int m_maxBatchSize = 100;
+  int m_maxBatchBytes = 256 * 1024;
+  long m_lingerNanos = Duration.ofMillis(10).toNanos();
+  long m_maxBufferedBytes = 16 * 1024 * 1024;
+  OverflowPolicy m_overflowPolicy = OverflowPolicy.DROP;
+  long m_maxBlockNanos = Duration.ofSeconds(1).toNanos();
+  int m_lanes = 4;
+
+  private SignalBatchOptions() {}
+
+  public static SignalBatchOptions DEFAULTS = new SignalBatchOptions();
+}
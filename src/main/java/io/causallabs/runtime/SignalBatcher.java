@@ -0,0 +1,447 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.Header;
+
+/**
+ * Buffers signal, keep alive and external payloads per endpoint and sends them to the impression
+ * server as a single JSON array.
+ *
+ * <p>The server answers a batch with a 200 and either an empty body, meaning every payload was
+ * accepted, or an array with one entry per payload. A null entry means success, otherwise the entry
+ * is an object with a "code" and "message" that is treated exactly like a non 200 response to the
+ * individual payload. Any other response code applies to every payload in the batch.
+ *
+ * <p>A batch is sent with the headers its payloads' sessions add, so payloads whose sessions add
+ * different headers go in different batches.
+ */
+final class SignalBatcher {
+
+  SignalBatcher(CausalClient client, InFlightTracker inFlight, SignalBatchOptions options) {
+    m_client = client;
+    m_inFlight = inFlight;
+    m_options = options;
+    m_timer = new ScheduledThreadPoolExecutor(1, ClientThreads.factory("causal-signal-batcher"));
+    m_timer.setRemoveOnCancelPolicy(true);
+  }
+
+  CompletableFuture<Void> add(
+      String what,
+      MetricsSink.Endpoint endpoint,
+      SessionRequestable session,
+      URI uri,
+      BodyBuffer body,
+      RequestOptions options) {
+    CompletableFuture<Void> ret = new CompletableFuture<>();
+    int bytes = body.size();
+    if (!reserve(bytes)) {
+      body.release();
+      ApiException exception =
+          ApiException.fallback(503, () -> "Signal buffer full, dropping " + what);
+      m_client.log().warn(endpoint, 503, null, exception::getMessage, null);
+      m_client.metrics().apiError(endpoint, 503);
+      ret.completeExceptionally(exception);
+      return ret;
+    }
+    m_inFlight.begin();
+    Lane lane = lane(uri, session);
+    lane.m_lock.lock();
+    try {
+      lane.m_buffer.add(new Pending(what, endpoint, session, headers(session), body, options, ret));
+      lane.m_bufferedBytes += bytes;
+      if (lane.m_buffer.size() >= m_options.m_maxBatchSize
+          || lane.m_bufferedBytes >= m_options.m_maxBatchBytes) {
+        flushLocked(lane);
+      } else if (!lane.m_lingerScheduled && !lane.m_sending) {
+        try {
+          m_timer.schedule(() -> linger(lane), m_options.m_lingerNanos, TimeUnit.NANOSECONDS);
+          lane.m_lingerScheduled = true;
+        } catch (RejectedExecutionException e) {
+          // we are closing, don't wait around
+          flushLocked(lane);
+        }
+      }
+    } finally {
+      lane.m_lock.unlock();
+    }
+    return ret;
+  }
+
+  // send everything that is buffered without waiting for linger
+  void flush() {
+    for (Lane[] lanes : m_lanes.values()) {
+      for (Lane lane : lanes) {
+        lane.m_lock.lock();
+        try {
+          flushLocked(lane);
+        } finally {
+          lane.m_lock.unlock();
+        }
+      }
+    }
+  }
+
+  // flush what is buffered and stop the linger timer. Lanes that have a batch outstanding send the
+  // rest of their buffer when it completes.
+  void close() {
+    flush();
+    m_timer.shutdown();
+  }
+
+  private Lane lane(URI uri, SessionRequestable session) {
+    Lane[] lanes = m_lanes.get(uri);
+    if (lanes == null) {
+      lanes =
+          m_lanes.computeIfAbsent(
+              uri,
+              u -> {
+                Lane[] ret = new Lane[m_options.m_lanes];
+                for (int i = 0; i < ret.length; ++i) ret[i] = new Lane(u);
+                return ret;
+              });
+    }
+    if (lanes.length == 1 || session == null) return lanes[0];
+    return lanes[Math.floorMod(m_client.sessionKey(session).hashCode(), lanes.length)];
+  }
+
+  private void linger(Lane lane) {
+    lane.m_lock.lock();
+    try {
+      lane.m_lingerScheduled = false;
+      flushLocked(lane);
+    } finally {
+      lane.m_lock.unlock();
+    }
+  }
+
+  // take the next batch off the lane and send it. A batch the http client refuses fails on its
+  // own and the next one is tried. Must hold the lane's lock.
+  private void flushLocked(Lane lane) {
+    while (!lane.m_sending && !lane.m_buffer.isEmpty()) {
+      List<Pending> batch =
+          new ArrayList<>(Math.min(lane.m_buffer.size(), m_options.m_maxBatchSize));
+      int bytes = 0;
+      while (!lane.m_buffer.isEmpty() && batch.size() < m_options.m_maxBatchSize) {
+        Pending next = lane.m_buffer.peek();
+        if (!batch.isEmpty()
+            && (bytes + next.m_body.size() > m_options.m_maxBatchBytes
+                || !sameHeaders(batch.get(0).m_headers, next.m_headers))) {
+          break;
+        }
+        batch.add(lane.m_buffer.poll());
+        bytes += next.m_body.size();
+      }
+      lane.m_bufferedBytes -= bytes;
+      lane.m_sending = true;
+      try {
+        send(lane, batch, bytes);
+      } catch (RuntimeException e) {
+        // no callback will run, the body has been released
+        lane.m_sending = false;
+        m_client
+            .log()
+            .error(
+                MetricsSink.Endpoint.BATCH,
+                -1,
+                null,
+                () -> "Error sending batch to " + lane.m_uri,
+                e);
+        for (Pending p : batch) p.m_future.completeExceptionally(e);
+        for (int i = 0; i < batch.size(); ++i) m_inFlight.end();
+        release(bytes);
+      }
+    }
+  }
+
+  private void send(Lane lane, List<Pending> batch, int bytes) {
+    BodyBuffer body = new BodyBuffer();
+    body.write('[');
+    for (int i = 0; i < batch.size(); ++i) {
+      if (i > 0) body.write(',');
+      BodyBuffer payload = batch.get(i).m_body;
+      body.append(payload);
+      payload.release();
+    }
+    body.write(']');
+    Header[] headers = batch.get(0).m_headers;
+    m_client.sendRaw(
+        MetricsSink.Endpoint.BATCH,
+        lane.m_uri,
+        headers.length == 0
+            ? null
+            : builder -> {
+              for (Header header : headers) builder.addHeader(header);
+            },
+        body,
+        new FutureCallback<SimpleHttpResponse>() {
+          @Override
+          public void completed(SimpleHttpResponse result) {
+            try {
+              if (result.getCode() == 200) completeEach(batch, result.getBodyText());
+              else if (CausalClient.shouldRetry(result.getCode())
+                  && m_client.spool(lane.m_uri, body)) {
+                m_client
+                    .log()
+                    .warn(
+                        MetricsSink.Endpoint.BATCH,
+                        result.getCode(),
+                        null,
+                        () -> "Spooled batch of " + batch.size() + " after " + result.getCode(),
+                        null);
+                for (Pending p : batch) p.m_future.complete(null);
+              } else {
+                for (Pending p : batch) {
+                  m_client.completeSignal(
+                      p.m_what,
+                      p.m_endpoint,
+                      p.m_session,
+                      result.getCode(),
+                      result.getBodyText(),
+                      p.m_options,
+                      p.m_future);
+                }
+              }
+            } finally {
+              done(lane, batch, bytes);
+            }
+          }
+
+          @Override
+          public void failed(Exception ex) {
+            try {
+              if (m_client.spool(lane.m_uri, body)) {
+                m_client
+                    .log()
+                    .warn(
+                        MetricsSink.Endpoint.BATCH,
+                        500,
+                        null,
+                        () ->
+                            "Spooled batch of " + batch.size() + " after error: " + ex.getMessage(),
+                        null);
+                for (Pending p : batch) p.m_future.complete(null);
+                return;
+              }
+              m_client
+                  .log()
+                  .error(
+                      MetricsSink.Endpoint.BATCH,
+                      500,
+                      null,
+                      () -> "Error sending batch of " + batch.size() + " to " + lane.m_uri,
+                      ex);
+              for (Pending p : batch) p.m_future.completeExceptionally(ex);
+            } finally {
+              done(lane, batch, bytes);
+            }
+          }
+
+          @Override
+          public void cancelled() {
+            try {
+              m_client
+                  .log()
+                  .error(
+                      MetricsSink.Endpoint.BATCH,
+                      -1,
+                      null,
+                      () -> "Request cancelled sending batch to " + lane.m_uri,
+                      null);
+              for (Pending p : batch)
+                p.m_future.completeExceptionally(new InterruptedException("Request cancelled"));
+            } finally {
+              done(lane, batch, bytes);
+            }
+          }
+        });
+  }
+
+  // complete the individual futures from the per payload results of a successful batch
+  private void completeEach(List<Pending> batch, String body) {
+    int index = 0;
+    if (body != null && !body.isEmpty()) {
+      try {
+        JsonParser parser = CausalClient.m_mapper.getFactory().createParser(body);
+        if (parser.nextToken() == JsonToken.START_ARRAY) {
+          while (parser.nextToken() != JsonToken.END_ARRAY && index < batch.size()) {
+            Pending p = batch.get(index++);
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+              parser.skipChildren();
+              p.m_future.complete(null);
+              continue;
+            }
+            int code = 200;
+            String message = "";
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+              String field = parser.currentName();
+              parser.nextToken();
+              if (field.equals("code")) code = parser.getIntValue();
+              else if (field.equals("message")) message = parser.getText();
+              else parser.skipChildren();
+            }
+            m_client.completeSignal(
+                p.m_what, p.m_endpoint, p.m_session, code, message, p.m_options, p.m_future);
+          }
+        }
+      } catch (IOException e) {
+        // the server accepted the batch, so don't fail the payloads we couldn't read results for
+        CausalClient.logger.warn("Malformed batch response, assuming success: " + e.getMessage());
+      }
+    }
+    for (; index < batch.size(); ++index) batch.get(index).m_future.complete(null);
+  }
+
+  private void done(Lane lane, List<Pending> batch, int bytes) {
+    for (int i = 0; i < batch.size(); ++i) m_inFlight.end();
+    release(bytes);
+    lane.m_lock.lock();
+    try {
+      lane.m_sending = false;
+      // anything that arrived while we were sending has already waited a round trip
+      flushLocked(lane);
+    } finally {
+      lane.m_lock.unlock();
+    }
+  }
+
+  // the headers the session adds to its requests
+  private static Header[] headers(SessionRequestable session) {
+    if (session == null) return NO_HEADERS;
+    SimpleRequestBuilder builder = SimpleRequestBuilder.post();
+    session.addHeaders(builder);
+    Header[] ret = builder.getHeaders();
+    return ret == null ? NO_HEADERS : ret;
+  }
+
+  private static boolean sameHeaders(Header[] a, Header[] b) {
+    if (a.length != b.length) return false;
+    for (int i = 0; i < a.length; ++i) {
+      if (!a[i].getName().equalsIgnoreCase(b[i].getName())
+          || !Objects.equals(a[i].getValue(), b[i].getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // claim space in the buffer, applying the overflow policy
+  private boolean reserve(int bytes) {
+    if (bytes > m_options.m_maxBufferedBytes) return false;
+    if (tryReserve(bytes)) return true;
+    if (m_options.m_overflowPolicy == SignalBatchOptions.OverflowPolicy.DROP) return false;
+    long deadline = System.nanoTime() + m_options.m_maxBlockNanos;
+    m_blocked.incrementAndGet();
+    try {
+      m_spaceLock.lock();
+      try {
+        while (!tryReserve(bytes)) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) return false;
+          m_spaceFreed.awaitNanos(remaining);
+        }
+        return true;
+      } finally {
+        m_spaceLock.unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      m_blocked.decrementAndGet();
+    }
+  }
+
+  private boolean tryReserve(int bytes) {
+    while (true) {
+      long current = m_bufferedBytes.get();
+      if (current + bytes > m_options.m_maxBufferedBytes) return false;
+      if (m_bufferedBytes.compareAndSet(current, current + bytes)) return true;
+    }
+  }
+
+  private void release(int bytes) {
+    m_bufferedBytes.addAndGet(-bytes);
+    if (m_blocked.get() > 0) {
+      m_spaceLock.lock();
+      try {
+        m_spaceFreed.signalAll();
+      } finally {
+        m_spaceLock.unlock();
+      }
+    }
+  }
+
+  private static final class Lane {
+    Lane(URI uri) {
+      m_uri = uri;
+    }
+
+    final URI m_uri;
+    final ReentrantLock m_lock = new ReentrantLock();
+    // guarded by m_lock
+    final ArrayDeque<Pending> m_buffer = new ArrayDeque<>();
+    int m_bufferedBytes = 0;
+    boolean m_sending = false;
+    boolean m_lingerScheduled = false;
+  }
+
+  private static final class Pending {
+    Pending(
+        String what,
+        MetricsSink.Endpoint endpoint,
+        SessionRequestable session,
+        Header[] headers,
+        BodyBuffer body,
+        RequestOptions options,
+        CompletableFuture<Void> future) {
+      m_what = what;
+      m_endpoint = endpoint;
+      m_session = session;
+      m_headers = headers;
+      m_body = body;
+      m_options = options;
+      m_future = future;
+    }
+
+    final String m_what;
+    final MetricsSink.Endpoint m_endpoint;
+    final SessionRequestable m_session;
+    final Header[] m_headers;
+    final BodyBuffer m_body;
+    final RequestOptions m_options;
+    final CompletableFuture<Void> m_future;
+  }
+
+  private static final Header[] NO_HEADERS = new Header[0];
+
+  private final CausalClient m_client;
+  private final InFlightTracker m_inFlight;
+  private final SignalBatchOptions m_options;
+  private final ScheduledThreadPoolExecutor m_timer;
+  private final ConcurrentHashMap<URI, Lane[]> m_lanes = new ConcurrentHashMap<>();
+  private final AtomicLong m_bufferedBytes = new AtomicLong();
+  private final AtomicInteger m_blocked = new AtomicInteger();
+  // locks rather than monitors, so callers on virtual threads don't pin their carrier while they
+  // wait for space or hand a batch to the http client
+  private final ReentrantLock m_spaceLock = new ReentrantLock();
+  private final Condition m_spaceFreed = m_spaceLock.newCondition();
+}
@@ -0,0 +1,67 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A signal or external, written but not yet sent, for submitting to a {@link SignalProcessor}. The
+ * generator comes from {@link CausalClient#createGenerator()} or {@link
+ * CausalClient#externalGenerator}, exactly as for {@link CausalClient#signal} and {@link
+ * CausalClient#signalExternal}, and belongs to the payload once it is made.
+ */
+public final class SignalPayload {
+
+  /**
+   * A payload for {@link CausalClient#signal}.
+   *
+   * @param session the session the event belongs to
+   * @param gen the generator the event was written to
+   * @param options request options, or null
+   * @return the payload
+   */
+  public static SignalPayload signal(
+      SessionRequestable session, JsonGenerator gen, RequestOptions options) {
+    return new SignalPayload(session, gen, options, null);
+  }
+
+  /**
+   * A payload for {@link CausalClient#signalExternal}.
+   *
+   * @param session the session the external belongs to
+   * @param gen the generator from externalGenerator, with the value written
+   * @param externalName the external's name
+   * @return the payload
+   */
+  public static SignalPayload external(
+      SessionRequestable session, JsonGenerator gen, String externalName) {
+    return new SignalPayload(session, gen, null, externalName);
+  }
+
+  public SessionRequestable getSession() {
+    return m_session;
+  }
+
+  /** The external's name, null for a signal */
+  public String getExternalName() {
+    return m_externalName;
+  }
+
+  // send the payload through client
+  CompletableFuture<Void> send(CausalClient client) {
+    if (m_externalName != null) return client.sendExternal(m_session, m_gen, m_externalName);
+    return client.sendSignal(m_session, m_gen, m_options);
+  }
+
+  private SignalPayload(
+      SessionRequestable session, JsonGenerator gen, RequestOptions options, String externalName) {
+    m_session = session;
+    m_gen = gen;
+    m_options = options;
+    m_externalName = externalName;
+  }
+
+  private final SessionRequestable m_session;
+  private final JsonGenerator m_gen;
+  private final RequestOptions m_options;
+  private final String m_externalName;
+}
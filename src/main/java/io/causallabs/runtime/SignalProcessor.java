@@ -0,0 +1,198 @@
+package io.causallabs.runtime;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Sends signals and externals with backpressure. Subscribe it to a publisher of {@link
+ * SignalPayload}s and it requests no more than its window of payloads that are still being sent, so
+ * a burst is held back at its source instead of piling up as futures. Each payload's outcome is
+ * published as a {@link SignalResult} to at most one subscriber. Without one, results are dropped
+ * as soon as the payload completes. With one, a payload holds its place in the window until its
+ * result has been delivered, so a slow results subscriber also slows the signals down. Cancelling
+ * the results subscription does not stop the signals.
+ *
+ * <p>This is a Reactive Streams processor, which frameworks such as Reactor and RxJava consume
+ * directly. On Java 9 and later, org.reactivestreams.FlowAdapters.toFlowProcessor turns it into a
+ * java.util.concurrent.Flow.Processor.
+ */
+public final class SignalProcessor implements Processor<SignalPayload, SignalResult> {
+
+  SignalProcessor(CausalClient client, int window) {
+    if (window < 1) throw new IllegalArgumentException("window must be positive");
+    m_client = client;
+    m_window = window;
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription) {
+    Objects.requireNonNull(subscription);
+    if (!m_upstream.compareAndSet(null, subscription)) {
+      // we can only be subscribed once
+      subscription.cancel();
+      return;
+    }
+    subscription.request(m_window);
+  }
+
+  @Override
+  public void onNext(SignalPayload payload) {
+    Objects.requireNonNull(payload);
+    m_outstanding.incrementAndGet();
+    CompletableFuture<Void> sent;
+    try {
+      sent = payload.send(m_client);
+    } catch (RuntimeException e) {
+      sent = new CompletableFuture<>();
+      sent.completeExceptionally(e);
+    }
+    sent.whenComplete((v, e) -> completed(new SignalResult(payload, unwrap(e))));
+  }
+
+  @Override
+  public void onError(Throwable error) {
+    Objects.requireNonNull(error);
+    m_error = error;
+    m_upstreamDone = true;
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    m_upstreamDone = true;
+    drain();
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super SignalResult> subscriber) {
+    Objects.requireNonNull(subscriber);
+    if (!m_subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(EMPTY);
+      subscriber.onError(new IllegalStateException("A signal processor has one subscriber"));
+      return;
+    }
+    subscriber.onSubscribe(
+        new Subscription() {
+          @Override
+          public void request(long n) {
+            if (n <= 0) {
+              m_requestError =
+                  new IllegalArgumentException("Requested " + n + " results, must be positive");
+            } else {
+              addDemand(n);
+            }
+            drain();
+          }
+
+          @Override
+          public void cancel() {
+            m_cancelled = true;
+            drain();
+          }
+        });
+    m_downstream = subscriber;
+    drain();
+  }
+
+  /** Payloads requested from upstream whose results haven't been dropped or delivered */
+  public int outstanding() {
+    return m_outstanding.get() + m_results.size();
+  }
+
+  private void completed(SignalResult result) {
+    if (m_downstream != null && !m_cancelled) m_results.offer(result);
+    else m_freed.incrementAndGet();
+    m_outstanding.decrementAndGet();
+    drain();
+  }
+
+  private void addDemand(long n) {
+    while (true) {
+      long current = m_demand.get();
+      long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+      if (m_demand.compareAndSet(current, next)) return;
+    }
+  }
+
+  // deliver results, return their places in the window to upstream and finish. Runs on one thread
+  // at a time, whichever calls it first, and loops while others called it in the meantime.
+  private void drain() {
+    if (m_wip.getAndIncrement() != 0) return;
+    int missed = 1;
+    do {
+      Subscriber<? super SignalResult> down = m_finished ? null : m_downstream;
+      if (down != null && m_requestError != null) {
+        m_finished = true;
+        m_cancelled = true;
+        down.onError(m_requestError);
+        down = null;
+      }
+      if (m_cancelled) {
+        down = null;
+        while (m_results.poll() != null) m_freed.incrementAndGet();
+      } else if (down != null) {
+        long demand = m_demand.get();
+        long emitted = 0;
+        SignalResult next;
+        while (emitted != demand && (next = m_results.poll()) != null) {
+          down.onNext(next);
+          ++emitted;
+        }
+        m_freed.addAndGet((int) emitted);
+        if (emitted != 0 && demand != Long.MAX_VALUE) m_demand.addAndGet(-emitted);
+      }
+      int freed = m_freed.getAndSet(0);
+      Subscription up = m_upstream.get();
+      if (freed > 0 && up != null && !m_upstreamDone) up.request(freed);
+      if (down != null && m_upstreamDone && m_outstanding.get() == 0 && m_results.isEmpty()) {
+        m_finished = true;
+        if (m_error != null) down.onError(m_error);
+        else down.onComplete();
+      }
+      missed = m_wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    if (error instanceof CompletionException && error.getCause() != null) return error.getCause();
+    return error;
+  }
+
+  private static final Subscription EMPTY =
+      new Subscription() {
+        @Override
+        public void request(long n) {}
+
+        @Override
+        public void cancel() {}
+      };
+
+  private final CausalClient m_client;
+  private final int m_window;
+  private final AtomicReference<Subscription> m_upstream = new AtomicReference<>();
+  private final AtomicBoolean m_subscribed = new AtomicBoolean();
+  private volatile Subscriber<? super SignalResult> m_downstream = null;
+  // payloads being sent
+  private final AtomicInteger m_outstanding = new AtomicInteger();
+  // results waiting for demand
+  private final ConcurrentLinkedQueue<SignalResult> m_results = new ConcurrentLinkedQueue<>();
+  // places in the window to give back to upstream
+  private final AtomicInteger m_freed = new AtomicInteger();
+  private final AtomicLong m_demand = new AtomicLong();
+  private final AtomicInteger m_wip = new AtomicInteger();
+  private volatile boolean m_upstreamDone = false;
+  private volatile Throwable m_error = null;
+  private volatile boolean m_cancelled = false;
+  private volatile IllegalArgumentException m_requestError = null;
+  // the results subscriber has been sent onComplete or onError. Only touched by drain
+  private boolean m_finished = false;
+}
@@ -0,0 +1,31 @@
+package io.causallabs.runtime;
+
+/** The outcome of a payload sent through a {@link SignalProcessor}. */
+public final class SignalResult {
+
+  /** The payload that was sent */
+  public SignalPayload getPayload() {
+    return m_payload;
+  }
+
+  /** Did the impression server accept the payload? */
+  public boolean isSuccess() {
+    return m_error == null;
+  }
+
+  /**
+   * Why the payload failed, null if it succeeded. An {@link ApiException} if the impression server
+   * refused it.
+   */
+  public Throwable getError() {
+    return m_error;
+  }
+
+  SignalResult(SignalPayload payload, Throwable error) {
+    m_payload = payload;
+    m_error = error;
+  }
+
+  private final SignalPayload m_payload;
+  private final Throwable m_error;
+}
@@ -0,0 +1,376 @@
+package io.causallabs.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.core5.concurrent.FutureCallback;
+
+/**
+ * An append only, memory mapped queue of payloads for the impression server, with a background
+ * thread that replays them at a limited rate.
+ *
+ * <p>The spool is a directory of fixed size segment files, numbered in the order they were written.
+ * Each record is its length, a CRC32 of its contents, the target URI and the payload. A zero length
+ * ends the written part of a segment. Appending copies the payload into the mapped segment and
+ * moves to a new segment when the current one is full. The replayer's position is kept in a small
+ * mapped offset file, with a checksum, and is updated after every payload the server accepts. On
+ * restart the writer resumes after the last intact record and the replayer resumes from the saved
+ * offset, so payloads are delivered at least once. Segments are deleted once replayed.
+ */
+final class Spool implements Closeable {
+
+  Spool(CausalClient client, SpoolOptions options) throws IOException {
+    m_client = client;
+    m_options = options;
+    m_directory = options.m_directory;
+    if (!m_directory.isDirectory() && !m_directory.mkdirs())
+      throw new IOException("Can't create spool directory " + m_directory);
+    m_maxSegments = (int) Math.max(2, options.m_maxBytes / options.m_segmentBytes);
+    m_offsets = map(new File(m_directory, OFFSET_FILE), OFFSET_BYTES);
+
+    List<Long> segments = segments();
+    if (segments.isEmpty()) {
+      m_writeSeq = 1;
+      m_writer = map(segmentFile(m_writeSeq), options.m_segmentBytes);
+      m_writePos = 0;
+    } else {
+      m_writeSeq = segments.get(segments.size() - 1);
+      m_writer = map(segmentFile(m_writeSeq), options.m_segmentBytes);
+      m_writePos = lastRecordEnd(m_writer, options.m_segmentBytes);
+    }
+    long seq = m_offsets.getLong(0);
+    long pos = m_offsets.getLong(8);
+    if (m_offsets.getLong(16) == checksum(seq, pos)
+        && !segments.isEmpty()
+        && seq >= segments.get(0)
+        && seq <= m_writeSeq) {
+      m_readSeq = seq;
+      m_readPos = (int) pos;
+    } else {
+      // never replayed, or the offset was damaged. Start over rather than lose anything.
+      m_readSeq = segments.isEmpty() ? m_writeSeq : segments.get(0);
+      m_readPos = 0;
+    }
+
+    m_replayer = new ScheduledThreadPoolExecutor(1, ClientThreads.factory("causal-spool-replayer"));
+    m_replayer.scheduleWithFixedDelay(
+        this::replay, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  boolean spoolAll() {
+    return m_options.m_spoolAll;
+  }
+
+  /**
+   * Append a payload for uri. The caller still owns body.
+   *
+   * @return false if the payload doesn't fit in the spool
+   */
+  boolean append(URI uri, BodyBuffer body) {
+    m_lock.lock();
+    try {
+      return appendLocked(uri, body);
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  private boolean appendLocked(URI uri, BodyBuffer body) {
+    if (m_closed) return false;
+    byte[] target = uri.toString().getBytes(StandardCharsets.UTF_8);
+    int length = 2 + target.length + body.size();
+    // leave room for the marker that ends the segment
+    int needed = HEADER + length + 4;
+    if (needed > m_options.m_segmentBytes) return false;
+    if (m_writePos + needed > m_options.m_segmentBytes) {
+      if (m_writeSeq + 1 - m_readSeq + 1 > m_maxSegments) return false;
+      try {
+        rotate();
+      } catch (IOException e) {
+        CausalClient.logger.error("Error creating spool segment", e);
+        return false;
+      }
+    }
+    int start = m_writePos;
+    ByteBuffer out = m_writer;
+    out.position(start + HEADER);
+    out.putShort((short) target.length);
+    out.put(target);
+    for (int pos = 0; pos < body.size(); ) {
+      ByteBuffer chunk = body.chunkAt(pos);
+      pos += chunk.remaining();
+      out.put(chunk);
+    }
+    int end = out.position();
+    out.putInt(end, 0);
+    out.putInt(start + 4, crc(out, start + HEADER, end));
+    out.putInt(start, length);
+    m_writePos = end;
+    return true;
+  }
+
+  // stop replaying and flush what was written to disk
+  @Override
+  public void close() {
+    m_replayer.shutdown();
+    try {
+      m_replayer.awaitTermination(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    m_lock.lock();
+    try {
+      m_closed = true;
+      m_writer.force();
+      m_offsets.force();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  private void rotate() throws IOException {
+    m_writer.force();
+    MappedByteBuffer next = map(segmentFile(m_writeSeq + 1), m_options.m_segmentBytes);
+    m_writer = next;
+    m_writePos = 0;
+    m_writeSeq++;
+  }
+
+  // send up to a tick's worth of payloads, stopping at the first one the server can't take
+  private void replay() {
+    try {
+      if (System.nanoTime() - m_retryAt < 0) return;
+      int budget = Math.max(1, m_options.m_replayRate * TICK_MILLIS / 1000);
+      for (; budget > 0 && !m_replayer.isShutdown(); --budget) {
+        Record record = next();
+        if (record == null) return;
+        int code = send(record);
+        if (code < 0 || code == 429 || code >= 500) {
+          m_retryAt = System.nanoTime() + m_options.m_retryDelayNanos;
+          return;
+        }
+        if (code != 200) {
+          int refused = code;
+          m_client
+              .log()
+              .warn(
+                  MetricsSink.Endpoint.REPLAY,
+                  refused,
+                  null,
+                  () -> "Impression server refused spooled payload with " + refused,
+                  null);
+        }
+        commit(record.m_end);
+      }
+    } catch (IOException | RuntimeException e) {
+      CausalClient.logger.error("Error replaying spool", e);
+      m_retryAt = System.nanoTime() + m_options.m_retryDelayNanos;
+    }
+  }
+
+  // the next intact record to replay, or null if we have caught up with the writer
+  private Record next() throws IOException {
+    while (true) {
+      long writeSeq;
+      int limit;
+      m_lock.lock();
+      try {
+        writeSeq = m_writeSeq;
+        limit = m_readSeq == writeSeq ? m_writePos : m_options.m_segmentBytes;
+      } finally {
+        m_lock.unlock();
+      }
+      if (m_reader == null) m_reader = map(segmentFile(m_readSeq), m_options.m_segmentBytes);
+      int end = recordEnd(m_reader, m_readPos, limit);
+      if (end >= 0) return new Record(m_reader, m_readPos, end);
+      if (m_readSeq == writeSeq) return null;
+      // the rest of this segment is empty or damaged, move on to the next one
+      File done = segmentFile(m_readSeq);
+      m_reader = null;
+      m_lock.lock();
+      try {
+        m_readSeq++;
+      } finally {
+        m_lock.unlock();
+      }
+      m_readPos = 0;
+      saveOffset();
+      if (!done.delete()) CausalClient.logger.warn("Couldn't delete spool segment " + done);
+    }
+  }
+
+  private int send(Record record) {
+    CompletableFuture<Integer> code = new CompletableFuture<>();
+    m_client.sendRaw(
+        MetricsSink.Endpoint.REPLAY,
+        record.m_uri,
+        null,
+        record.m_body,
+        new FutureCallback<SimpleHttpResponse>() {
+          @Override
+          public void completed(SimpleHttpResponse result) {
+            code.complete(result.getCode());
+          }
+
+          @Override
+          public void failed(Exception ex) {
+            code.complete(-1);
+          }
+
+          @Override
+          public void cancelled() {
+            code.complete(-1);
+          }
+        });
+    try {
+      return code.get(SEND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return -1;
+    } catch (ExecutionException | TimeoutException e) {
+      return -1;
+    }
+  }
+
+  private void commit(int position) {
+    m_readPos = position;
+    saveOffset();
+  }
+
+  private void saveOffset() {
+    long seq = m_readSeq;
+    long pos = m_readPos;
+    m_offsets.putLong(0, seq);
+    m_offsets.putLong(8, pos);
+    m_offsets.putLong(16, checksum(seq, pos));
+  }
+
+  private List<Long> segments() {
+    List<Long> ret = new ArrayList<>();
+    String[] names = m_directory.list();
+    if (names == null) return ret;
+    for (String name : names) {
+      if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+      try {
+        ret.add(
+            Long.parseLong(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+      } catch (NumberFormatException e) {
+        // not one of ours
+      }
+    }
+    Collections.sort(ret);
+    return ret;
+  }
+
+  private File segmentFile(long seq) {
+    return new File(m_directory, String.format("%s%019d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+  }
+
+  private static MappedByteBuffer map(File file, int size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  // the end of the last intact record in a segment, where appending resumes
+  private static int lastRecordEnd(ByteBuffer segment, int limit) {
+    int pos = 0;
+    for (int end; (end = recordEnd(segment, pos, limit)) >= 0; ) pos = end;
+    return pos;
+  }
+
+  // the end of the record at pos, or -1 if there isn't a complete, intact record there
+  private static int recordEnd(ByteBuffer segment, int pos, int limit) {
+    if (pos + HEADER > limit) return -1;
+    int length = segment.getInt(pos);
+    if (length <= 0 || length > limit - pos - HEADER) return -1;
+    int end = pos + HEADER + length;
+    if (crc(segment, pos + HEADER, end) != segment.getInt(pos + 4)) return -1;
+    return end;
+  }
+
+  private static int crc(ByteBuffer segment, int from, int to) {
+    ByteBuffer range = segment.duplicate();
+    range.limit(to);
+    range.position(from);
+    CRC32 crc = new CRC32();
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+
+  private static long checksum(long seq, long pos) {
+    return (seq * 31 + pos) ^ 0x5350_4f4f_4c5fL;
+  }
+
+  // a payload read back from a segment
+  private static final class Record {
+    Record(ByteBuffer segment, int start, int end) {
+      ByteBuffer in = segment.duplicate();
+      in.limit(end);
+      in.position(start + HEADER);
+      byte[] target = new byte[in.getShort()];
+      in.get(target);
+      m_uri = URI.create(new String(target, StandardCharsets.UTF_8));
+      byte[] scratch = new byte[Math.min(in.remaining(), BufferPool.CHUNK_SIZE)];
+      while (in.hasRemaining()) {
+        int n = Math.min(scratch.length, in.remaining());
+        in.get(scratch, 0, n);
+        m_body.write(scratch, 0, n);
+      }
+      m_end = end;
+    }
+
+    final URI m_uri;
+    final BodyBuffer m_body = new BodyBuffer();
+    final int m_end;
+  }
+
+  // length and crc
+  private static final int HEADER = 8;
+  // segment, position and checksum
+  private static final int OFFSET_BYTES = 24;
+  private static final String OFFSET_FILE = "offset";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final int TICK_MILLIS = 100;
+  private static final int SEND_TIMEOUT_SECONDS = 30;
+
+  private final CausalClient m_client;
+  private final SpoolOptions m_options;
+  private final File m_directory;
+  private final int m_maxSegments;
+  private final MappedByteBuffer m_offsets;
+  private final ScheduledThreadPoolExecutor m_replayer;
+  // writer state, guarded by m_lock
+  private MappedByteBuffer m_writer;
+  private volatile int m_writePos;
+  private volatile long m_writeSeq;
+  private boolean m_closed = false;
+  // guards the writer. A lock rather than a monitor, so that callers on virtual threads don't pin
+  // their carrier while a segment is created
+  private final ReentrantLock m_lock = new ReentrantLock();
+  // replayer state, only touched by the replay thread. m_readSeq is also read by append.
+  private volatile long m_readSeq;
+  private int m_readPos;
+  private MappedByteBuffer m_reader;
+  private long m_retryAt = System.nanoTime();
+}
@@ -0,0 +1,95 @@
+package io.causallabs.runtime;
+
+import java.io.File;
+import java.time.Duration;
+
+/**
+ * Options for the disk spool that keeps signals, keep alives and externals the impression server
+ * couldn't take. See {@link CausalClient#enableSpool(SpoolOptions)}.
+ */
+public class SpoolOptions {
+
+  public static Builder builder(File directory) {
+    return new Builder(directory);
+  }
+
+  public static class Builder {
+
+    /**
+     * Size of each spool file. Payloads larger than this can't be spooled.
+     *
+     * @param x
+     * @return
+     */
+    public Builder segmentBytes(int x) {
+      if (x < 1024) throw new IllegalArgumentException("segmentBytes must be at least 1024");
+      m_obj.m_segmentBytes = x;
+      return this;
+    }
+
+    /**
+     * Maximum disk space used by the spool. Payloads that don't fit are dropped.
+     *
+     * @param x
+     * @return
+     */
+    public Builder maxBytes(long x) {
+      if (x < 1) throw new IllegalArgumentException("maxBytes must be positive");
+      m_obj.m_maxBytes = x;
+      return this;
+    }
+
+    /**
+     * Maximum payloads per second replayed to the impression server.
+     *
+     * @param x
+     * @return
+     */
+    public Builder replayRate(int x) {
+      if (x < 1) throw new IllegalArgumentException("replayRate must be positive");
+      m_obj.m_replayRate = x;
+      return this;
+    }
+
+    /**
+     * How long to wait before replaying again after the impression server refused a payload.
+     *
+     * @param x
+     * @return
+     */
+    public Builder retryDelay(Duration x) {
+      m_obj.m_retryDelayNanos = x.toNanos();
+      return this;
+    }
+
+    /**
+     * Spool every payload and let the replayer send them, rather than only those that failed.
+     *
+     * @param x
+     * @return
+     */
+    public Builder spoolAll(boolean x) {
+      m_obj.m_spoolAll = x;
+      return this;
+    }
+
+    public SpoolOptions build() {
+      return m_obj;
+    }
+
+    private Builder(File directory) {
+      m_obj.m_directory = directory;
+    }
+
+    SpoolOptions m_obj = new SpoolOptions();
+  }
+
+  File m_directory;
+  int m_segmentBytes = 16 * 1024 * 1024;
+  long m_maxBytes = 256L * 1024 * 1024;
+  int m_replayRate = 200;
+  long m_retryDelayNanos = Duration.ofSeconds(5).toNanos();
+  boolean m_spoolAll = false;
+
+  private SpoolOptions() {}
+}
@@ -0,0 +1,161 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.hc.client5.http.async.methods.AbstractBinResponseConsumer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpResponse;
+
+/**
+ * Consumes a JSON response by feeding the bytes to a non blocking Jackson parser as they arrive
+ * from the connection. Tokens are collected in a {@link TokenBuffer}, so the body is never held as
+ * a String and most of the tokenizing is done before the last byte arrives. Bodies of non 200
+ * responses are kept as text for error messages. Smile responses are tokenized the same way, so
+ * callers don't need to know which encoding the server chose.
+ */
+final class StreamingJsonConsumer
+    extends AbstractBinResponseConsumer<StreamingJsonConsumer.Response> {
+
+  /** The status and tokenized body of a response */
+  static final class Response {
+
+    int getCode() {
+      return m_code;
+    }
+
+    // the body as text, only kept for non 200 responses
+    String getBodyText() {
+      return m_text;
+    }
+
+    /**
+     * A parser over the tokens that were read. If the body could not be tokenized, the parser
+     * throws the original error once it reaches the point where tokenizing stopped.
+     */
+    JsonParser parser() {
+      JsonParser tokens = m_tokens.asParser();
+      if (m_error == null) return tokens;
+      return new JsonParserDelegate(tokens) {
+        @Override
+        public JsonToken nextToken() throws IOException {
+          JsonToken ret = super.nextToken();
+          if (ret == null) throw m_error;
+          return ret;
+        }
+      };
+    }
+
+    private int m_code;
+    private String m_text = "";
+    private TokenBuffer m_tokens;
+    private IOException m_error;
+  }
+
+  @Override
+  protected void start(HttpResponse response, ContentType contentType) throws IOException {
+    m_response = new Response();
+    m_response.m_code = response.getCode();
+    if (m_response.m_code == 200) {
+      JsonFactory factory =
+          CausalClient.isSmile(contentType)
+              ? CausalClient.m_smileFactory
+              : CausalClient.m_mapper.getFactory();
+      m_parser = factory.createNonBlockingByteArrayParser();
+      m_response.m_tokens = new TokenBuffer(m_parser, null);
+    } else {
+      m_errorBody = new ByteArrayOutputStream();
+    }
+  }
+
+  @Override
+  protected int capacityIncrement() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+    if (m_parser != null) {
+      if (m_response.m_error == null && src.hasRemaining()) feed(src);
+      src.position(src.limit());
+      if (endOfStream && m_response.m_error == null) {
+        ((ByteArrayFeeder) m_parser.getNonBlockingInputFeeder()).endOfInput();
+        drain();
+      }
+    } else if (m_errorBody != null) {
+      int n = Math.min(src.remaining(), MAX_ERROR_BODY - m_errorBody.size());
+      if (src.hasArray()) {
+        m_errorBody.write(src.array(), src.arrayOffset() + src.position(), n);
+      } else {
+        for (int i = 0; i < n; ++i) m_errorBody.write(src.get(src.position() + i));
+      }
+      src.position(src.limit());
+    }
+  }
+
+  private void feed(ByteBuffer src) {
+    ByteArrayFeeder feeder = (ByteArrayFeeder) m_parser.getNonBlockingInputFeeder();
+    try {
+      if (src.hasArray()) {
+        int start = src.arrayOffset() + src.position();
+        feeder.feedInput(src.array(), start, start + src.remaining());
+      } else {
+        if (m_scratch == null || m_scratch.length < src.remaining())
+          m_scratch = new byte[Math.max(src.remaining(), 8192)];
+        int n = src.remaining();
+        src.duplicate().get(m_scratch, 0, n);
+        feeder.feedInput(m_scratch, 0, n);
+      }
+      // the parser refers to the fed bytes, so consume them before the buffer is reused
+      drain();
+    } catch (IOException e) {
+      m_response.m_error = e;
+    }
+  }
+
+  private void drain() {
+    try {
+      JsonToken token;
+      while ((token = m_parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+        m_response.m_tokens.copyCurrentEvent(m_parser);
+      }
+    } catch (IOException e) {
+      m_response.m_error = e;
+    }
+  }
+
+  @Override
+  protected Response buildResult() {
+    if (m_errorBody != null) {
+      m_response.m_text = new String(m_errorBody.toByteArray(), StandardCharsets.UTF_8);
+    }
+    return m_response;
+  }
+
+  @Override
+  public void releaseResources() {
+    if (m_parser != null) {
+      try {
+        m_parser.close();
+      } catch (IOException e) {
+        // nothing to release
+      }
+      m_parser = null;
+    }
+  }
+
+  // only keep enough of an error body for a log message
+  private static final int MAX_ERROR_BODY = 64 * 1024;
+
+  private Response m_response;
+  private JsonParser m_parser;
+  private ByteArrayOutputStream m_errorBody;
+  private byte[] m_scratch;
+}
@@ -0,0 +1,82 @@
+package io.causallabs.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/** Reads the records of a file written by a {@link TrafficRecorder}, in order. */
+public class TrafficReader implements Closeable {
+
+  /**
+   * @param file
+   * @throws IOException if the file can't be read or wasn't written by a TrafficRecorder
+   */
+  public TrafficReader(File file) throws IOException {
+    m_in =
+        new DataInputStream(
+            new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 65536));
+    byte[] magic = new byte[TrafficRecorder.MAGIC.length];
+    try {
+      m_in.readFully(magic);
+    } catch (EOFException e) {
+      magic = null;
+    }
+    if (!Arrays.equals(magic, TrafficRecorder.MAGIC)) {
+      m_in.close();
+      throw new IOException(file + " is not a traffic recording");
+    }
+  }
+
+  /**
+   * @return the next record, or null at the end of the file
+   * @throws IOException if the file can't be read or is corrupt
+   */
+  public TrafficRecord next() throws IOException {
+    try {
+      long delta = readVarLong();
+      if (delta < 0) return null;
+      m_offset += delta;
+      MetricsSink.Endpoint endpoint = TrafficRecorder.endpoint(m_in.readUnsignedByte());
+      if (endpoint == null) throw new IOException("Corrupt traffic recording");
+      boolean smile = m_in.readUnsignedByte() != 0;
+      long length = readVarLong();
+      if (length < 0) return null;
+      if (length > Integer.MAX_VALUE) throw new IOException("Corrupt traffic recording");
+      byte[] body = new byte[(int) length];
+      m_in.readFully(body);
+      return new TrafficRecord(endpoint, m_offset, smile, body);
+    } catch (EOFException e) {
+      // a recording that wasn't closed cleanly ends where it was cut off
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_in.close();
+  }
+
+  // -1 if the stream ends cleanly before the first byte
+  private long readVarLong() throws IOException {
+    long ret = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = m_in.read();
+      if (b < 0) {
+        if (shift == 0) return -1;
+        throw new EOFException();
+      }
+      ret |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return ret;
+    }
+    throw new IOException("Corrupt traffic recording");
+  }
+
+  private final DataInputStream m_in;
+  private long m_offset = 0;
+}
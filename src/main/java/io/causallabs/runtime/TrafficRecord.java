@@ -0,0 +1,50 @@
+package io.causallabs.runtime;
+
+/** A payload the client sent, as written by a {@link TrafficRecorder}. */
+public final class TrafficRecord {
+
+  public MetricsSink.Endpoint getEndpoint() {
+    return m_endpoint;
+  }
+
+  /** Time since the recording started, in nanoseconds */
+  public long getOffsetNanos() {
+    return m_offsetNanos;
+  }
+
+  /** True if the body is Smile encoded, false if it is JSON */
+  public boolean isSmile() {
+    return m_smile;
+  }
+
+  public byte[] getBody() {
+    return m_body;
+  }
+
+  TrafficRecord(MetricsSink.Endpoint endpoint, long offsetNanos, boolean smile, byte[] body) {
+    m_endpoint = endpoint;
+    m_offsetNanos = offsetNanos;
+    m_smile = smile;
+    m_body = body;
+  }
+
+  // the path the payload was sent to
+  String path() {
+    switch (m_endpoint) {
+      case FEATURES:
+      case FEATURES_BATCH:
+        return "/features";
+      case IMPRESSIONS:
+        return "/impression";
+      case EXTERNAL:
+        return "/external";
+      default:
+        return "/signal";
+    }
+  }
+
+  private final MetricsSink.Endpoint m_endpoint;
+  private final long m_offsetNanos;
+  private final boolean m_smile;
+  private final byte[] m_body;
+}
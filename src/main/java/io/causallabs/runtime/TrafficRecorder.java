@@ -0,0 +1,180 @@
+package io.causallabs.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.apache.hc.core5.http.ContentType;
+
+/**
+ * Captures a sample of the /features bodies, signals, keep alives, externals and impressions a
+ * client sends into a compact file, for {@link TrafficReplayer} to replay. See {@link
+ * CausalClient#setTrafficRecorder(TrafficRecorder)}.
+ *
+ * <p>Sampled payloads are copied and queued, and a background thread writes them, so the sending
+ * threads never wait on the disk. Payloads are dropped if the writer falls behind. Session headers
+ * are not recorded.
+ *
+ * <p>The file is gzipped. After a header, each record is the time since the previous one in
+ * nanoseconds, the endpoint's code, the encoding and the body, with variable length integers. The
+ * endpoint codes are fixed, so recordings stay readable as endpoints are added.
+ */
+public class TrafficRecorder implements Closeable {
+
+  /**
+   * Start recording to a file, replacing anything in it.
+   *
+   * @param file
+   * @param sampleRate the fraction of payloads to record, between 0 and 1
+   * @return the recorder
+   * @throws IOException if the file can't be written
+   */
+  public static TrafficRecorder open(File file, double sampleRate) throws IOException {
+    if (sampleRate < 0 || sampleRate > 1)
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+    return new TrafficRecorder(file, sampleRate);
+  }
+
+  /** Number of payloads written so far */
+  public long recorded() {
+    return m_recorded.get();
+  }
+
+  /** Number of sampled payloads dropped because the writer fell behind */
+  public long dropped() {
+    return m_dropped.get();
+  }
+
+  /** Write what has been queued and close the file. */
+  @Override
+  public void close() {
+    if (m_closed) return;
+    m_closed = true;
+    try {
+      m_writer.join(TimeUnit.SECONDS.toMillis(30));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // called as a payload is sent, the caller still owns body
+  void record(MetricsSink.Endpoint endpoint, ContentType contentType, BodyBuffer body) {
+    if (m_closed) return;
+    if (m_sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= m_sampleRate) return;
+    TrafficRecord record =
+        new TrafficRecord(
+            endpoint,
+            System.nanoTime() - m_started,
+            CausalClient.isSmile(contentType),
+            body.toByteArray());
+    if (!m_queue.offer(record)) m_dropped.incrementAndGet();
+  }
+
+  private TrafficRecorder(File file, double sampleRate) throws IOException {
+    m_sampleRate = sampleRate;
+    m_out =
+        new DataOutputStream(
+            new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), 65536));
+    m_out.write(MAGIC);
+    m_writer = ClientThreads.factory("causal-traffic-recorder").newThread(this::write);
+    m_writer.start();
+  }
+
+  private void write() {
+    long previous = 0;
+    try {
+      while (true) {
+        TrafficRecord record = m_queue.poll(100, TimeUnit.MILLISECONDS);
+        if (record == null) {
+          if (m_closed && m_queue.isEmpty()) break;
+          continue;
+        }
+        // records may be queued slightly out of order, keep the deltas non negative
+        long offset = Math.max(previous, record.getOffsetNanos());
+        writeVarLong(offset - previous);
+        previous = offset;
+        m_out.writeByte(code(record.getEndpoint()));
+        m_out.writeByte(record.isSmile() ? 1 : 0);
+        writeVarLong(record.getBody().length);
+        m_out.write(record.getBody());
+        m_recorded.incrementAndGet();
+      }
+    } catch (IOException e) {
+      CausalClient.logger.error("Error writing traffic recording, stopping", e);
+      m_closed = true;
+    } catch (InterruptedException e) {
+      // stop where we are
+    } finally {
+      try {
+        m_out.close();
+      } catch (IOException e) {
+        CausalClient.logger.error("Error closing traffic recording", e);
+      }
+    }
+  }
+
+  // the endpoint's code in a recording. Never change or reuse one, give new endpoints new codes.
+  static int code(MetricsSink.Endpoint endpoint) {
+    switch (endpoint) {
+      case FEATURES:
+        return 0;
+      case SIGNAL:
+        return 1;
+      case EXTERNAL:
+        return 2;
+      case KEEP_ALIVE:
+        return 3;
+      case IMPRESSIONS:
+        return 4;
+      case BATCH:
+        return 5;
+      case REPLAY:
+        return 6;
+      case FEATURES_BATCH:
+        return 7;
+      default:
+        throw new IllegalArgumentException("No recording code for " + endpoint);
+    }
+  }
+
+  // the endpoint with a code, or null if there is none
+  static MetricsSink.Endpoint endpoint(int code) {
+    return code < ENDPOINTS.length ? ENDPOINTS[code] : null;
+  }
+
+  private void writeVarLong(long x) throws IOException {
+    while ((x & ~0x7FL) != 0) {
+      m_out.writeByte((int) (x & 0x7F) | 0x80);
+      x >>>= 7;
+    }
+    m_out.writeByte((int) x);
+  }
+
+  static final byte[] MAGIC = {'C', 'T', 'R', 'F', 0, 0, 0, 1};
+  private static final int QUEUE_SIZE = 4096;
+  // the endpoints indexed by code, which run from 0 without gaps
+  private static final MetricsSink.Endpoint[] ENDPOINTS =
+      new MetricsSink.Endpoint[MetricsSink.Endpoint.values().length];
+
+  static {
+    for (MetricsSink.Endpoint endpoint : MetricsSink.Endpoint.values()) {
+      ENDPOINTS[code(endpoint)] = endpoint;
+    }
+  }
+
+  private final double m_sampleRate;
+  private final long m_started = System.nanoTime();
+  private final DataOutputStream m_out;
+  private final Thread m_writer;
+  private final ArrayBlockingQueue<TrafficRecord> m_queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+  private final AtomicLong m_recorded = new AtomicLong();
+  private final AtomicLong m_dropped = new AtomicLong();
+  private volatile boolean m_closed = false;
+}
@@ -0,0 +1,241 @@
+package io.causallabs.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.hc.core5.concurrent.FutureCallback;
+
+/**
+ * Replays a file written by a {@link TrafficRecorder} against an impression server, or a stub, at a
+ * multiple of the recorded rate with a limit on concurrent exchanges. Payloads go through the
+ * client's http stack and /features responses are tokenized as the client does, so the report
+ * reflects the client's costs as well as the server's. If the limit is reached the replay falls
+ * behind the recorded schedule rather than dropping payloads.
+ */
+public class TrafficReplayer {
+
+  /**
+   * @param client the client to send through
+   * @param speed multiple of the recorded rate, or 0 to send as fast as the concurrency allows
+   * @param concurrency maximum number of exchanges in flight
+   */
+  public TrafficReplayer(CausalClient client, double speed, int concurrency) {
+    if (speed < 0) throw new IllegalArgumentException("speed must not be negative");
+    if (concurrency < 1) throw new IllegalArgumentException("concurrency must be positive");
+    m_client = client;
+    m_speed = speed;
+    m_concurrency = concurrency;
+  }
+
+  /** What a replay measured */
+  public static final class Report {
+
+    /** Number of payloads sent */
+    public long sent() {
+      return m_sent;
+    }
+
+    /** Number of exchanges that failed without a response */
+    public long failed() {
+      long ret = 0;
+      for (MetricsSink.Endpoint endpoint : MetricsSink.Endpoint.values())
+        ret += m_metrics.statusCount(endpoint, -1);
+      return ret;
+    }
+
+    /** Payloads per second */
+    public double throughput() {
+      return m_elapsedNanos == 0 ? 0 : m_sent * 1e9 / m_elapsedNanos;
+    }
+
+    /** Latencies and statuses per endpoint */
+    public CausalMetrics metrics() {
+      return m_metrics;
+    }
+
+    /** Process CPU time per payload in nanoseconds, or -1 if the JVM doesn't report it */
+    public long cpuNanosPerRequest() {
+      return m_cpuNanos < 0 || m_sent == 0 ? -1 : m_cpuNanos / m_sent;
+    }
+
+    /** Bytes allocated per payload by the process, or -1 if the JVM doesn't report it */
+    public long allocatedBytesPerRequest() {
+      return m_allocatedBytes < 0 || m_sent == 0 ? -1 : m_allocatedBytes / m_sent;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder ret = new StringBuilder();
+      ret.append(
+          String.format(
+              "sent %d in %.1fs, %.0f/s, %d failed, cpu %dus/request, allocated %d bytes/request%n",
+              m_sent,
+              m_elapsedNanos / 1e9,
+              throughput(),
+              failed(),
+              cpuNanosPerRequest() / 1000,
+              allocatedBytesPerRequest()));
+      for (MetricsSink.Endpoint endpoint : MetricsSink.Endpoint.values()) {
+        LatencyHistogram latency = m_metrics.latency(endpoint);
+        if (latency.count() == 0) continue;
+        ret.append(
+            String.format(
+                "%-12s n=%d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms%n",
+                endpoint,
+                latency.count(),
+                latency.valueAtPercentile(50) / 1e6,
+                latency.valueAtPercentile(90) / 1e6,
+                latency.valueAtPercentile(99) / 1e6,
+                latency.valueAtPercentile(99.9) / 1e6,
+                latency.max() / 1e6));
+        ret.append("             statuses");
+        for (int status = -1; status < 600; ++status) {
+          long n = m_metrics.statusCount(endpoint, status);
+          if (n > 0) ret.append(' ').append(status).append('=').append(n);
+        }
+        ret.append(String.format("%n"));
+      }
+      return ret.toString();
+    }
+
+    private final CausalMetrics m_metrics = new CausalMetrics();
+    private long m_sent;
+    private long m_elapsedNanos;
+    private long m_cpuNanos;
+    private long m_allocatedBytes;
+  }
+
+  /**
+   * Send every record, waiting for the last response.
+   *
+   * @param reader
+   * @return what was measured
+   * @throws IOException if the recording can't be read
+   * @throws InterruptedException
+   */
+  public Report replay(TrafficReader reader) throws IOException, InterruptedException {
+    Report report = new Report();
+    Semaphore permits = new Semaphore(m_concurrency);
+    AtomicLong sent = new AtomicLong();
+    long cpu = cpuNanos();
+    long allocated = allocatedBytes();
+    long started = System.nanoTime();
+    for (TrafficRecord record; (record = reader.next()) != null; ) {
+      if (m_speed > 0) {
+        long due = started + (long) (record.getOffsetNanos() / m_speed);
+        for (long wait; (wait = due - System.nanoTime()) > 0; ) LockSupport.parkNanos(wait);
+      }
+      permits.acquire();
+      MetricsSink.Endpoint endpoint = record.getEndpoint();
+      long sentAt = System.nanoTime();
+      sent.incrementAndGet();
+      m_client.sendRecorded(
+          record,
+          new FutureCallback<Integer>() {
+            @Override
+            public void completed(Integer status) {
+              done(status);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+              done(-1);
+            }
+
+            @Override
+            public void cancelled() {
+              done(-1);
+            }
+
+            private void done(int status) {
+              report.m_metrics.exchangeCompleted(endpoint, status, System.nanoTime() - sentAt);
+              permits.release();
+            }
+          });
+    }
+    permits.acquire(m_concurrency);
+    report.m_elapsedNanos = System.nanoTime() - started;
+    report.m_sent = sent.get();
+    long cpuAfter = cpuNanos();
+    report.m_cpuNanos = cpu < 0 || cpuAfter < 0 ? -1 : cpuAfter - cpu;
+    long allocatedAfter = allocatedBytes();
+    report.m_allocatedBytes = allocated < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocated;
+    return report;
+  }
+
+  private static long cpuNanos() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (!(os instanceof com.sun.management.OperatingSystemMXBean)) return -1;
+    return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+  }
+
+  // allocated by the threads alive now, so threads that exited during the replay are missed
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+    com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+    if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled()) return -1;
+    long ret = 0;
+    for (long bytes : sun.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (bytes > 0) ret += bytes;
+    }
+    return ret;
+  }
+
+  /**
+   * Replay a recording and print the report. Options:
+   *
+   * <pre>
+   * --file traffic.rec          the recording
+   * --target http://host/iserver  the impression server, or a stub
+   * --speed 1                   multiple of the recorded rate, 0 for as fast as possible
+   * --concurrency 64            maximum exchanges in flight
+   * </pre>
+   *
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    File file = null;
+    String target = null;
+    double speed = 1;
+    int concurrency = 64;
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--file":
+          file = new File(value);
+          break;
+        case "--target":
+          target = value;
+          break;
+        case "--speed":
+          speed = Double.parseDouble(value);
+          break;
+        case "--concurrency":
+          concurrency = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (file == null || target == null)
+      throw new IllegalArgumentException("--file and --target are required");
+    CausalClient client = CausalClient.init(target);
+    try (TrafficReader reader = new TrafficReader(file)) {
+      System.out.print(new TrafficReplayer(client, speed, concurrency).replay(reader));
+    } finally {
+      client.close();
+    }
+  }
+
+  private final CausalClient m_client;
+  private final double m_speed;
+  private final int m_concurrency;
+}
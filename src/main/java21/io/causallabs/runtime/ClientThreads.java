@@ -0,0 +1,41 @@
+package io.causallabs.runtime;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes the threads the client runs in the background: timers, the signal batcher, the spool
+ * replayer and the traffic recorder, and says where responses are delivered. This is the Java 21
+ * version from the multi-release jar. When the io.causallabs.virtualThreads system property is true
+ * they are virtual threads, which are always daemons, and each response is delivered on a virtual
+ * thread of its own, so a deserializeResponse that blocks doesn't hold up the http client's I/O
+ * threads. Otherwise they are daemon platform threads and responses are delivered on the I/O
+ * threads, as on older versions.
+ */
+final class ClientThreads {
+
+  // a factory for daemon threads called name
+  static ThreadFactory factory(String name) {
+    if (VIRTUAL) return Thread.ofVirtual().name(name).factory();
+    return r -> {
+      Thread t = Executors.defaultThreadFactory().newThread(r);
+      t.setName(name);
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  // where successful responses are handed to their handlers, which deserialize them into the
+  // caller's objects. Null to hand them over on the http client's I/O thread.
+  static Executor completions() {
+    return COMPLETIONS;
+  }
+
+  private ClientThreads() {}
+
+  static final String VIRTUAL_PROPERTY = "io.causallabs.virtualThreads";
+  private static final boolean VIRTUAL = Boolean.getBoolean(VIRTUAL_PROPERTY);
+  private static final Executor COMPLETIONS =
+      VIRTUAL ? Executors.newThreadPerTaskExecutor(factory("causal-response")) : null;
+}
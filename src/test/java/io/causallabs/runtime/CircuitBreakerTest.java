@@ -0,0 +1,112 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+  @Test
+  void closesAgainOnceEveryProbeSucceeds() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(options(2));
+    open(breaker);
+    assertNull(breaker.tryAcquire());
+
+    Thread.sleep(OPEN_MILLIS * 2);
+    CircuitBreaker.Phase first = breaker.tryAcquire();
+    CircuitBreaker.Phase second = breaker.tryAcquire();
+    assertNotNull(first);
+    assertNotNull(second);
+    assertEquals(CircuitState.HALF_OPEN, breaker.state());
+    // only the probes are let through
+    assertNull(breaker.tryAcquire());
+
+    breaker.succeeded(first);
+    assertEquals(CircuitState.HALF_OPEN, breaker.state());
+    breaker.succeeded(second);
+    assertEquals(CircuitState.CLOSED, breaker.state());
+    assertEquals(
+        Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), m_transitions);
+  }
+
+  @Test
+  void aFailedProbeOpensItAgain() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(options(2));
+    open(breaker);
+
+    Thread.sleep(OPEN_MILLIS * 2);
+    CircuitBreaker.Phase first = breaker.tryAcquire();
+    CircuitBreaker.Phase second = breaker.tryAcquire();
+    breaker.succeeded(first);
+    breaker.failed(second);
+    assertEquals(CircuitState.OPEN, breaker.state());
+    assertNull(breaker.tryAcquire());
+  }
+
+  @Test
+  void anAbandonedProbeOpensItAgain() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(options(1));
+    // abandoning a request while closed counts for nothing
+    breaker.abandoned(breaker.tryAcquire());
+    open(breaker);
+
+    Thread.sleep(OPEN_MILLIS * 2);
+    breaker.abandoned(breaker.tryAcquire());
+    assertEquals(CircuitState.OPEN, breaker.state());
+  }
+
+  @Test
+  void ignoresOutcomesFromAnEarlierPhase() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(options(1));
+    // let two requests through while closed that only report back much later
+    CircuitBreaker.Phase lateFailure = breaker.tryAcquire();
+    CircuitBreaker.Phase lateSuccess = breaker.tryAcquire();
+    open(breaker);
+
+    Thread.sleep(OPEN_MILLIS * 2);
+    CircuitBreaker.Phase probe = breaker.tryAcquire();
+    assertNotNull(probe);
+    breaker.failed(lateFailure);
+    assertEquals(CircuitState.HALF_OPEN, breaker.state());
+    breaker.succeeded(lateSuccess);
+    assertEquals(CircuitState.HALF_OPEN, breaker.state());
+
+    // a probe from an earlier half open period doesn't count for the next one either
+    breaker.failed(probe);
+    assertEquals(CircuitState.OPEN, breaker.state());
+    Thread.sleep(OPEN_MILLIS * 2);
+    CircuitBreaker.Phase nextProbe = breaker.tryAcquire();
+    breaker.succeeded(probe);
+    assertEquals(CircuitState.HALF_OPEN, breaker.state());
+    breaker.succeeded(nextProbe);
+    assertEquals(CircuitState.CLOSED, breaker.state());
+  }
+
+  // fail enough requests to open the breaker
+  private static void open(CircuitBreaker breaker) {
+    for (int i = 0; i < MINIMUM_REQUESTS; ++i) breaker.failed(breaker.tryAcquire());
+    assertEquals(CircuitState.OPEN, breaker.state());
+  }
+
+  private CircuitBreakerOptions options(int probes) {
+    return CircuitBreakerOptions.builder()
+        .failureRateThreshold(0.5)
+        .window(10)
+        .minimumRequests(MINIMUM_REQUESTS)
+        .openDuration(Duration.ofMillis(OPEN_MILLIS))
+        .probes(probes)
+        .listener((from, to) -> m_transitions.add(from + "->" + to))
+        .build();
+  }
+
+  private static final int MINIMUM_REQUESTS = 4;
+  private static final long OPEN_MILLIS = 50;
+
+  private final List<String> m_transitions = new ArrayList<>();
+}
@@ -0,0 +1,183 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HedgerTest {
+
+  @BeforeEach
+  void start() throws IOException {
+    m_server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    m_server.setExecutor(Executors.newCachedThreadPool());
+    m_server.createContext(
+        "/",
+        exchange -> {
+          try (InputStream in = exchange.getRequestBody()) {
+            while (in.read() >= 0) {}
+          }
+          m_received.incrementAndGet();
+          if (m_hold.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            try {
+              m_release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          byte[] body = RESPONSE.getBytes(StandardCharsets.UTF_8);
+          try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+          } catch (IOException e) {
+            // the client cancelled the exchange
+          }
+          exchange.close();
+        });
+    m_server.start();
+    m_client = CausalClient.create("http://localhost:" + m_server.getAddress().getPort());
+  }
+
+  @AfterEach
+  void stop() {
+    m_release.countDown();
+    m_client.close();
+    m_server.stop(0);
+  }
+
+  @Test
+  void doesNotHedgeUntilTheWindowIsFull() {
+    Hedger hedger = new Hedger(options(1).window(10).build());
+    for (int i = 0; i < 9; ++i) hedger.record(TimeUnit.MILLISECONDS.toNanos(20 * i));
+    assertEquals(-1, hedger.delayNanos());
+    // 0, 20, ... 180ms, whose median is above the minimum delay
+    hedger.record(TimeUnit.MILLISECONDS.toNanos(180));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), hedger.delayNanos());
+  }
+
+  @Test
+  void spendsNoMoreThanTheBudget() {
+    Hedger hedger = new Hedger(options(0.5).build());
+    assertFalse(hedger.tryHedge());
+    hedger.requested();
+    assertFalse(hedger.tryHedge());
+    hedger.requested();
+    assertTrue(hedger.tryHedge());
+    assertFalse(hedger.tryHedge());
+
+    // a quiet period banks a few hedges, not one per request
+    for (int i = 0; i < 1000; ++i) hedger.requested();
+    int hedges = 0;
+    while (hedger.tryHedge()) ++hedges;
+    assertTrue(hedges > 0 && hedges < 100, "hedges " + hedges);
+  }
+
+  @Test
+  void theFirstResponseWinsAndCancelsTheOtherExchange() throws Exception {
+    warmUp(1);
+    m_hold.set(1);
+    TestFeature feature = new TestFeature();
+    CompletableFuture<Void> result = m_client.requestAsync(new TestSession("a"), feature);
+
+    // the primary is held at the server, the hedge answers it
+    assertNull(result.get(5, TimeUnit.SECONDS));
+    assertEquals(7, feature.x());
+    assertEquals(2, m_received.get());
+    // the losing exchange is cancelled rather than left waiting for the server
+    assertTrue(m_client.drain(Duration.ofSeconds(5)));
+  }
+
+  @Test
+  void hedgesNoMoreThanTheBudgetAllows() throws Exception {
+    // the warm up earns exactly one hedge
+    warmUp(1.0 / WINDOW);
+    m_hold.set(1);
+    CompletableFuture<Void> hedged = m_client.requestAsync(new TestSession("a"), new TestFeature());
+    assertNull(hedged.get(5, TimeUnit.SECONDS));
+    assertEquals(2, m_received.get());
+
+    m_hold.set(1);
+    CompletableFuture<Void> unhedged =
+        m_client.requestAsync(new TestSession("a"), new TestFeature());
+    Thread.sleep(10 * DELAY_MILLIS);
+    assertFalse(unhedged.isDone());
+    assertEquals(3, m_received.get());
+    m_release.countDown();
+    assertNull(unhedged.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void aHedgeThatCantBeSentLeavesTheCallToThePrimary() throws Exception {
+    warmUp(1);
+    m_hold.set(1);
+    TestFeature feature = new TestFeature();
+    // the session's headers fail on the second exchange, the hedge
+    CompletableFuture<Void> result = m_client.requestAsync(new FailingSession(1), feature);
+    Thread.sleep(10 * DELAY_MILLIS);
+    assertFalse(result.isDone());
+    assertEquals(1, m_received.get());
+
+    m_release.countDown();
+    assertNull(result.get(5, TimeUnit.SECONDS));
+    assertEquals(7, feature.x());
+    assertTrue(m_client.drain(Duration.ofSeconds(5)));
+  }
+
+  // fill the hedger's window with fast responses, so it hedges after its minimum delay
+  private void warmUp(double budget) throws Exception {
+    m_client.enableHedging(options(budget).window(WINDOW).build());
+    for (int i = 0; i < WINDOW; ++i) m_client.request(new TestSession("warm"), new TestFeature());
+    m_received.set(0);
+  }
+
+  private static HedgeOptions.Builder options(double budget) {
+    return HedgeOptions.builder()
+        .percentile(0.5)
+        .minDelay(Duration.ofMillis(DELAY_MILLIS))
+        .budget(budget);
+  }
+
+  // a session whose headers can only be added a number of times
+  private static final class FailingSession extends TestSession {
+    FailingSession(int exchanges) {
+      super("failing");
+      m_exchanges = new AtomicInteger(exchanges);
+    }
+
+    @Override
+    public void addHeaders(SimpleRequestBuilder builder) {
+      if (m_exchanges.decrementAndGet() < 0) throw new IllegalStateException("No more headers");
+      super.addHeaders(builder);
+    }
+
+    private final AtomicInteger m_exchanges;
+  }
+
+  private static final int WINDOW = 10;
+  private static final long DELAY_MILLIS = 50;
+  private static final String RESPONSE = "{\"session\":{},\"impressions\":[{\"x\":7}]}";
+
+  private HttpServer m_server;
+  private CausalClient m_client;
+  private final AtomicInteger m_received = new AtomicInteger();
+  // how many of the next requests the server holds until m_release
+  private final AtomicInteger m_hold = new AtomicInteger();
+  private final CountDownLatch m_release = new CountDownLatch(1);
+}
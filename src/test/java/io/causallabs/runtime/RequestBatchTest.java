@@ -0,0 +1,101 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RequestBatchTest {
+
+  @BeforeEach
+  void start() throws IOException {
+    m_server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    m_server.createContext(
+        "/",
+        exchange -> {
+          try (InputStream in = exchange.getRequestBody()) {
+            while (in.read() >= 0) {}
+          }
+          byte[] body = m_response.getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, body.length);
+          exchange.getResponseBody().write(body);
+          exchange.close();
+        });
+    m_server.start();
+    m_client = CausalClient.create("http://localhost:" + m_server.getAddress().getPort());
+  }
+
+  @AfterEach
+  void stop() {
+    m_client.close();
+    m_server.stop(0);
+  }
+
+  @Test
+  void aMalformedElementOnlyFailsItsOwnSession() throws Exception {
+    m_response =
+        "["
+            + GOOD
+            // no session and no impressions
+            + ",{}"
+            // the feature's deserializer throws
+            + ",{\"session\":{},\"impressions\":[{\"x\":\"seven\"}]}"
+            // a refusal that can't be read
+            + ",{\"code\":\"bad\"}"
+            + ","
+            + GOOD
+            + "]";
+    List<BatchRequest> batch = batch(5);
+    m_client.requestBatchAsync(batch).get(10, TimeUnit.SECONDS);
+
+    for (int i : new int[] {0, 4}) {
+      assertNull(batch.get(i).getError(), "part " + i);
+      assertEquals(7, feature(batch, i).x());
+    }
+    for (int i : new int[] {1, 2, 3}) {
+      assertTrue(batch.get(i).getError() instanceof ApiException, "part " + i);
+      assertTrue(batch.get(i).result().isCompletedExceptionally());
+      assertTrue(feature(batch, i).getError() != null, "part " + i);
+    }
+  }
+
+  @Test
+  void aShortResponseFailsTheUnansweredSessions() throws Exception {
+    m_response = "[" + GOOD + "]";
+    List<BatchRequest> batch = batch(3);
+    m_client.requestBatchAsync(batch).get(10, TimeUnit.SECONDS);
+
+    assertNull(batch.get(0).getError());
+    assertTrue(batch.get(1).getError() instanceof ApiException);
+    assertTrue(batch.get(2).getError() instanceof ApiException);
+  }
+
+  private static List<BatchRequest> batch(int sessions) {
+    List<BatchRequest> ret = new ArrayList<>();
+    for (int i = 0; i < sessions; ++i)
+      ret.add(BatchRequest.of(new TestSession("session" + i), new TestFeature()));
+    return ret;
+  }
+
+  private static TestFeature feature(List<BatchRequest> batch, int i) {
+    return (TestFeature) batch.get(i).getRequests()[0];
+  }
+
+  private static final String GOOD = "{\"session\":{},\"impressions\":[{\"x\":7}]}";
+
+  private HttpServer m_server;
+  private CausalClient m_client;
+  private volatile String m_response;
+}
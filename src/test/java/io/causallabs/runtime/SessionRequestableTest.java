@@ -0,0 +1,43 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.junit.jupiter.api.Test;
+
+class SessionRequestableTest {
+
+  @Test
+  void keepsAnEncodingMadeFromTheCurrentVersion() {
+    TestSession session = new TestSession("a");
+    session.cacheArgs(session.encodingVersion(), new SerializedString("args"));
+    session.cacheIds(session.encodingVersion(), new SerializedString("ids"));
+    assertEquals("args", session.encodedArgs().getValue());
+    assertEquals("ids", session.encodedIds().getValue());
+
+    session.encodingChanged();
+    assertNull(session.encodedArgs());
+    assertNull(session.encodedIds());
+  }
+
+  @Test
+  void dropsAnEncodingInvalidatedWhileItWasMade() {
+    TestSession session = new TestSession("a");
+    // the version is read, then the session changes before the encoding is stored
+    int version = session.encodingVersion();
+    session.encodingChanged();
+    session.cacheArgs(version, new SerializedString("stale"));
+    assertNull(session.encodedArgs());
+  }
+
+  @Test
+  void neverReplacesANewerEncoding() {
+    TestSession session = new TestSession("a");
+    int stale = session.encodingVersion();
+    session.encodingChanged();
+    session.cacheArgs(session.encodingVersion(), new SerializedString("fresh"));
+    session.cacheArgs(stale, new SerializedString("stale"));
+    assertEquals("fresh", session.encodedArgs().getValue());
+  }
+}
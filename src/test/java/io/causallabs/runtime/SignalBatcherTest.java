@@ -0,0 +1,194 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SignalBatcherTest {
+
+  @BeforeEach
+  void start() throws IOException {
+    m_server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    m_server.setExecutor(Executors.newCachedThreadPool());
+    m_server.createContext(
+        "/",
+        exchange -> {
+          byte[] body = readAll(exchange.getRequestBody());
+          try {
+            m_release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          m_batches.add(
+              new Batch(
+                  exchange.getRequestHeaders().getFirst("X-Session"),
+                  CausalClient.m_mapper.readTree(body)));
+          byte[] response = m_response.getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(m_code, response.length == 0 ? -1 : response.length);
+          if (response.length > 0) exchange.getResponseBody().write(response);
+          exchange.close();
+        });
+    m_server.start();
+    m_client = CausalClient.create("http://localhost:" + m_server.getAddress().getPort());
+  }
+
+  @AfterEach
+  void stop() {
+    m_release.countDown();
+    m_client.close();
+    m_server.stop(0);
+  }
+
+  @Test
+  void flushesAFullBatchWithoutLingering() throws Exception {
+    m_client.enableSignalBatching(
+        SignalBatchOptions.builder().maxBatchSize(3).linger(Duration.ofMinutes(1)).build());
+    TestSession session = new TestSession("a");
+    List<Future<Void>> results = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) results.add(signal(session, i));
+
+    Batch batch = next();
+    assertEquals(3, batch.m_payloads.size());
+    for (Future<Void> result : results) assertNull(result.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void flushesAPartialBatchOnceItHasLingered() throws Exception {
+    m_client.enableSignalBatching(
+        SignalBatchOptions.builder().maxBatchSize(100).linger(Duration.ofMillis(50)).build());
+    TestSession session = new TestSession("a");
+    signal(session, 0);
+    signal(session, 1);
+
+    assertEquals(2, next().m_payloads.size());
+  }
+
+  @Test
+  void failsThePayloadsOfARefusedBatch() throws Exception {
+    m_code = 400;
+    m_client.enableSignalBatching(
+        SignalBatchOptions.builder().maxBatchSize(2).linger(Duration.ofMinutes(1)).build());
+    TestSession session = new TestSession("a");
+    Future<Void> first = signal(session, 0);
+    Future<Void> second = signal(session, 1);
+    assertStatus(400, first);
+    assertStatus(400, second);
+  }
+
+  @Test
+  void appliesEachPayloadsResult() throws Exception {
+    m_response = "[null,{\"code\":400,\"message\":\"Bad signal\"}]";
+    m_client.enableSignalBatching(
+        SignalBatchOptions.builder().maxBatchSize(2).linger(Duration.ofMinutes(1)).build());
+    TestSession session = new TestSession("a");
+    Future<Void> first = signal(session, 0);
+    Future<Void> second = signal(session, 1);
+    assertNull(first.get(10, TimeUnit.SECONDS));
+    assertStatus(400, second);
+  }
+
+  @Test
+  void sendsASessionsPayloadsInOrderWithItsHeaders() throws Exception {
+    // hold the first batch at the server, so the rest pile up behind it
+    m_release = new CountDownLatch(1);
+    m_client.enableSignalBatching(
+        SignalBatchOptions.builder()
+            .maxBatchSize(4)
+            .linger(Duration.ofMillis(10))
+            .lanes(1)
+            .build());
+    TestSession[] sessions = {new TestSession("a"), new TestSession("b")};
+    int count = 40;
+    for (int i = 0; i < count; ++i) signal(sessions[i % 3 == 0 ? 1 : 0], i);
+    m_release.countDown();
+
+    Map<String, Integer> last = new HashMap<>();
+    int received = 0;
+    while (received < count) {
+      Batch batch = next();
+      for (JsonNode payload : batch.m_payloads) {
+        String session = payload.get("session").asText();
+        int n = payload.get("n").asInt();
+        // a batch only holds payloads from sessions that add the same headers
+        assertEquals(session, batch.m_session);
+        assertTrue(last.getOrDefault(session, -1) < n, session + " " + n + " out of order");
+        last.put(session, n);
+        ++received;
+      }
+    }
+  }
+
+  private Future<Void> signal(TestSession session, int n) throws IOException {
+    JsonGenerator gen = m_client.createGenerator();
+    gen.writeStartObject();
+    gen.writeStringField("session", session.id());
+    gen.writeNumberField("n", n);
+    gen.writeEndObject();
+    return m_client.signal(session, gen, null);
+  }
+
+  private Batch next() throws InterruptedException {
+    Batch ret = m_batches.poll(10, TimeUnit.SECONDS);
+    if (ret == null) fail("No batch arrived");
+    return ret;
+  }
+
+  private static void assertStatus(int expected, Future<Void> result) throws Exception {
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("Expecting a " + expected);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ApiException, e.getCause().toString());
+      assertEquals(expected, ((ApiException) e.getCause()).getStatusCode());
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+    return out.toByteArray();
+  }
+
+  private static final class Batch {
+    Batch(String session, JsonNode payloads) {
+      m_session = session;
+      m_payloads = payloads;
+    }
+
+    final String m_session;
+    final JsonNode m_payloads;
+  }
+
+  private HttpServer m_server;
+  private CausalClient m_client;
+  private final BlockingQueue<Batch> m_batches = new LinkedBlockingQueue<>();
+  private volatile CountDownLatch m_release = new CountDownLatch(0);
+  private volatile int m_code = 200;
+  private volatile String m_response = "";
+}
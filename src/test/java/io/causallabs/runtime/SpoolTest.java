@@ -0,0 +1,185 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpoolTest {
+
+  @BeforeEach
+  void start() throws IOException {
+    m_server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    m_server.createContext(
+        "/",
+        exchange -> {
+          byte[] body = readAll(exchange.getRequestBody());
+          int code = m_code;
+          if (code == 200) m_accepted.add(new String(body, StandardCharsets.UTF_8));
+          exchange.sendResponseHeaders(code, -1);
+          exchange.close();
+        });
+    m_server.start();
+    m_uri = URI.create("http://localhost:" + m_server.getAddress().getPort() + "/iserver/signal");
+    m_client = CausalClient.create("http://localhost:" + m_server.getAddress().getPort());
+  }
+
+  @AfterEach
+  void stop() {
+    m_client.close();
+    m_server.stop(0);
+  }
+
+  @Test
+  void replaysAppendedPayloadsInOrder() throws Exception {
+    Spool spool = new Spool(m_client, options());
+    try {
+      for (int i = 0; i < 3; ++i) assertTrue(spool.append(m_uri, payload(i)));
+      for (int i = 0; i < 3; ++i) assertEquals(json(i), next());
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  void rotatesSegmentsAndRefusesWhenFull() throws Exception {
+    m_code = 503;
+    Spool spool = new Spool(m_client, options());
+    int appended = 0;
+    try {
+      while (spool.append(m_uri, payload(appended))) ++appended;
+    } finally {
+      spool.close();
+    }
+    // more than one segment's worth, and no more than the spool holds
+    assertTrue(appended > SEGMENT_BYTES / json(0).length(), "appended " + appended);
+    assertTrue(appended < MAX_BYTES / json(0).length(), "appended " + appended);
+
+    m_code = 200;
+    spool = new Spool(m_client, options());
+    try {
+      for (int i = 0; i < appended; ++i) assertEquals(json(i), next());
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  void resumesAfterRestart() throws Exception {
+    // the server is down, so nothing is replayed before the restart
+    m_code = 503;
+    Spool spool = new Spool(m_client, options());
+    for (int i = 0; i < 3; ++i) assertTrue(spool.append(m_uri, payload(i)));
+    spool.close();
+
+    m_code = 200;
+    spool = new Spool(m_client, options());
+    try {
+      for (int i = 0; i < 3; ++i) assertEquals(json(i), next());
+      // appending resumes where the previous run left off
+      assertTrue(spool.append(m_uri, payload(3)));
+      assertEquals(json(3), next());
+    } finally {
+      spool.close();
+    }
+
+    // everything was accepted before the close, so a third run has nothing to replay
+    spool = new Spool(m_client, options());
+    try {
+      assertNull(m_accepted.poll(500, TimeUnit.MILLISECONDS));
+    } finally {
+      spool.close();
+    }
+  }
+
+  @Test
+  void dropsACorruptedTail() throws Exception {
+    m_code = 503;
+    Spool spool = new Spool(m_client, options());
+    for (int i = 0; i < 2; ++i) assertTrue(spool.append(m_uri, payload(i)));
+    spool.close();
+
+    // damage the last byte of the second payload, as if the process died while writing it
+    File[] segments = m_directory.toFile().listFiles((dir, name) -> name.endsWith(".spool"));
+    assertEquals(1, segments.length);
+    try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+      long last = file.length() - 1;
+      file.seek(last);
+      while (file.readByte() == 0) file.seek(--last);
+      file.seek(last);
+      file.writeByte('{');
+    }
+
+    m_code = 200;
+    spool = new Spool(m_client, options());
+    try {
+      assertEquals(json(0), next());
+      // the damaged record is overwritten by the next append
+      assertTrue(spool.append(m_uri, payload(2)));
+      assertEquals(json(2), next());
+      assertNull(m_accepted.poll(500, TimeUnit.MILLISECONDS));
+    } finally {
+      spool.close();
+    }
+  }
+
+  private SpoolOptions options() {
+    return SpoolOptions.builder(m_directory.toFile())
+        .segmentBytes(SEGMENT_BYTES)
+        .maxBytes(MAX_BYTES)
+        .replayRate(1000)
+        .retryDelay(Duration.ofMillis(50))
+        .build();
+  }
+
+  private String next() throws InterruptedException {
+    return m_accepted.poll(10, TimeUnit.SECONDS);
+  }
+
+  private static String json(int n) {
+    return "{\"n\":" + n + ",\"pad\":\"" + PAD + "\"}";
+  }
+
+  private static BodyBuffer payload(int n) {
+    BodyBuffer ret = new BodyBuffer();
+    byte[] bytes = json(n).getBytes(StandardCharsets.UTF_8);
+    ret.write(bytes, 0, bytes.length);
+    return ret;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+    return out.toByteArray();
+  }
+
+  private static final int SEGMENT_BYTES = 4096;
+  private static final int MAX_BYTES = 4 * SEGMENT_BYTES;
+  private static final String PAD = new String(new char[200]).replace('\0', 'x');
+
+  @TempDir Path m_directory;
+  private HttpServer m_server;
+  private URI m_uri;
+  private CausalClient m_client;
+  private final BlockingQueue<String> m_accepted = new LinkedBlockingQueue<>();
+  private volatile int m_code = 200;
+}
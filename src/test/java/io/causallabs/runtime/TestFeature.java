@@ -0,0 +1,53 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// a feature named "Feature" with a single integer output, x, which is -1 until it is filled in
+class TestFeature extends Requestable {
+
+  @Override
+  public String featureName() {
+    return "Feature";
+  }
+
+  @Override
+  public void serializeArgs(JsonGenerator gen) {
+    try {
+      gen.writeStartObject();
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // like a generated deserializer with a bug, an x that isn't a number throws
+  @Override
+  public void deserializeResponse(JsonParser parser) throws ApiException {
+    try {
+      if (parser.currentToken() != JsonToken.START_OBJECT)
+        throw new ApiException("Expecting an object");
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        parser.nextToken();
+        if (!field.equals("x")) parser.skipChildren();
+        else if (!parser.currentToken().isNumeric())
+          throw new IllegalStateException("x is not a number");
+        else m_x = parser.getIntValue();
+      }
+      parser.nextToken();
+    } catch (IOException e) {
+      throw new ApiException(e.getMessage());
+    }
+    setComplete();
+  }
+
+  int x() {
+    return m_x;
+  }
+
+  private int m_x = -1;
+}
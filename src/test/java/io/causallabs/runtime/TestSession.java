@@ -0,0 +1,52 @@
+package io.causallabs.runtime;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+
+// a session identified by a single id, that ignores its response
+class TestSession extends SessionRequestable {
+
+  TestSession(String id) {
+    m_id = id;
+  }
+
+  @Override
+  public void serializeArgs(JsonGenerator gen) {
+    try {
+      gen.writeStartObject();
+      gen.writeStringField("id", m_id);
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void serializeIds(JsonGenerator gen) {
+    serializeArgs(gen);
+  }
+
+  @Override
+  public void deserializeResponse(JsonParser parser) throws ApiException {
+    try {
+      CausalClient.consumeValue(parser);
+    } catch (IOException e) {
+      throw new ApiException(e.getMessage());
+    }
+    setComplete();
+  }
+
+  @Override
+  public void addHeaders(SimpleRequestBuilder builder) {
+    builder.addHeader("X-Session", m_id);
+  }
+
+  String id() {
+    return m_id;
+  }
+
+  private final String m_id;
+}
@@ -0,0 +1,51 @@
+package io.causallabs.runtime;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import org.apache.hc.core5.http.ContentType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TrafficRecorderTest {
+
+  @Test
+  void endpointCodesNeverChange() {
+    // recordings already written depend on these
+    assertEquals(0, TrafficRecorder.code(MetricsSink.Endpoint.FEATURES));
+    assertEquals(1, TrafficRecorder.code(MetricsSink.Endpoint.SIGNAL));
+    assertEquals(2, TrafficRecorder.code(MetricsSink.Endpoint.EXTERNAL));
+    assertEquals(3, TrafficRecorder.code(MetricsSink.Endpoint.KEEP_ALIVE));
+    assertEquals(4, TrafficRecorder.code(MetricsSink.Endpoint.IMPRESSIONS));
+    assertEquals(5, TrafficRecorder.code(MetricsSink.Endpoint.BATCH));
+    assertEquals(6, TrafficRecorder.code(MetricsSink.Endpoint.REPLAY));
+    assertEquals(7, TrafficRecorder.code(MetricsSink.Endpoint.FEATURES_BATCH));
+  }
+
+  @Test
+  void readsBackEveryEndpoint(@TempDir Path dir) throws Exception {
+    File file = dir.resolve("traffic").toFile();
+    TrafficRecorder recorder = TrafficRecorder.open(file, 1);
+    for (MetricsSink.Endpoint endpoint : MetricsSink.Endpoint.values()) {
+      BodyBuffer body = new BodyBuffer();
+      byte[] bytes = endpoint.name().getBytes(StandardCharsets.UTF_8);
+      body.write(bytes, 0, bytes.length);
+      recorder.record(endpoint, ContentType.APPLICATION_JSON, body);
+      body.release();
+    }
+    recorder.close();
+
+    try (TrafficReader reader = new TrafficReader(file)) {
+      for (MetricsSink.Endpoint endpoint : MetricsSink.Endpoint.values()) {
+        TrafficRecord record = reader.next();
+        assertEquals(endpoint, record.getEndpoint());
+        assertArrayEquals(endpoint.name().getBytes(StandardCharsets.UTF_8), record.getBody());
+      }
+      assertNull(reader.next());
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package io.causallabs.stub;
+
+/** A failure the stub injects instead of a normal response. */
+public enum Fault {
+  /** 404, what the impression server answers for an unknown session or impression */
+  NOT_FOUND(404),
+  /** 410, what the impression server answers for an expired session */
+  GONE(410),
+  /** 500 */
+  SERVER_ERROR(500),
+  /** 503, the load shedding answer */
+  UNAVAILABLE(503),
+  /** 200 with a body that isn't valid JSON */
+  MALFORMED(200),
+  /** 200 whose body ends half way through, closing the connection */
+  TRUNCATED(200),
+  /** the connection is closed without a response */
+  RESET(-1);
+
+  Fault(int status) {
+    m_status = status;
+  }
+
+  /**
+   * @return the status of the response, or -1 if there is none
+   */
+  public int status() {
+    return m_status;
+  }
+
+  private final int m_status;
+}
@@ -0,0 +1,11 @@
+package io.causallabs.stub;
+
+/** How the stub answers a request for a feature. */
+public enum Gate {
+  /** with the feature's configured outputs */
+  ON,
+  /** "OFF", the feature is gated off and the client uses its control values */
+  OFF,
+  /** "UNKNOWN", as the impression server does for features it doesn't have yet */
+  UNKNOWN
+}
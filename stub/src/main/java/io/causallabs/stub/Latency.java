@@ -0,0 +1,128 @@
+package io.causallabs.stub;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** A distribution the stub draws its response delays from. */
+public abstract class Latency {
+
+  /**
+   * @param random
+   * @return the delay for the next response in nanoseconds
+   */
+  public abstract long nextNanos(Random random);
+
+  /**
+   * @return no delay
+   */
+  public static Latency none() {
+    return fixed(Duration.ZERO);
+  }
+
+  /**
+   * @param x
+   * @return always x
+   */
+  public static Latency fixed(Duration x) {
+    long nanos = x.toNanos();
+    return new Latency() {
+      @Override
+      public long nextNanos(Random random) {
+        return nanos;
+      }
+    };
+  }
+
+  /**
+   * @param min
+   * @param max
+   * @return uniformly distributed between min and max
+   */
+  public static Latency uniform(Duration min, Duration max) {
+    long lo = min.toNanos();
+    long range = max.toNanos() - lo;
+    if (range < 0) throw new IllegalArgumentException("max must not be less than min");
+    return new Latency() {
+      @Override
+      public long nextNanos(Random random) {
+        return lo + (long) (random.nextDouble() * range);
+      }
+    };
+  }
+
+  /**
+   * @param mean
+   * @return exponentially distributed with the given mean, as the gaps between independent arrivals
+   *     are
+   */
+  public static Latency exponential(Duration mean) {
+    double nanos = mean.toNanos();
+    return new Latency() {
+      @Override
+      public long nextNanos(Random random) {
+        return (long) (-nanos * Math.log(1 - random.nextDouble()));
+      }
+    };
+  }
+
+  /**
+   * A log normal distribution, the long tailed shape most service latencies have.
+   *
+   * @param median
+   * @param p99 the 99th percentile, at least the median
+   * @return log normally distributed with the given median and 99th percentile
+   */
+  public static Latency logNormal(Duration median, Duration p99) {
+    if (p99.compareTo(median) < 0)
+      throw new IllegalArgumentException("p99 must not be less than the median");
+    double mu = Math.log(Math.max(1, median.toNanos()));
+    // 2.326 is the 99th percentile of the standard normal distribution
+    double sigma = (Math.log(Math.max(1, p99.toNanos())) - mu) / 2.326;
+    return new Latency() {
+      @Override
+      public long nextNanos(Random random) {
+        return (long) Math.exp(mu + sigma * random.nextGaussian());
+      }
+    };
+  }
+
+  /**
+   * Parse a latency from the command line: none, fixed:5ms, uniform:1ms-10ms, exp:5ms or
+   * lognormal:5ms-50ms (median and p99). Durations are in ns, us, ms or s.
+   *
+   * @param x
+   * @return the latency
+   */
+  public static Latency parse(String x) {
+    String[] parts = x.split(":", 2);
+    String kind = parts[0];
+    if (kind.equals("none")) return none();
+    if (parts.length < 2) throw new IllegalArgumentException("Missing durations in latency " + x);
+    String[] args = parts[1].split("-");
+    switch (kind) {
+      case "fixed":
+        return fixed(duration(args[0]));
+      case "uniform":
+        return uniform(duration(args[0]), duration(args[1]));
+      case "exp":
+        return exponential(duration(args[0]));
+      case "lognormal":
+        return logNormal(duration(args[0]), duration(args[1]));
+      default:
+        throw new IllegalArgumentException("Unknown latency distribution " + kind);
+    }
+  }
+
+  static Duration duration(String x) {
+    String[][] units = {{"ns", "NANOSECONDS"}, {"us", "MICROSECONDS"}, {"ms", "MILLISECONDS"}};
+    for (String[] unit : units) {
+      if (x.endsWith(unit[0])) {
+        long n = Long.parseLong(x.substring(0, x.length() - 2));
+        return Duration.ofNanos(TimeUnit.valueOf(unit[1]).toNanos(n));
+      }
+    }
+    if (x.endsWith("s")) return Duration.ofSeconds(Long.parseLong(x.substring(0, x.length() - 1)));
+    throw new IllegalArgumentException("Duration needs a unit (ns, us, ms or s): " + x);
+  }
+}
@@ -0,0 +1,398 @@
+package io.causallabs.stub;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speaks the impression server protocol that CausalClient expects, for load and fault testing
+ * without a real impression server. /features requests are answered from the configured gates and
+ * outputs, in Smile when the client asks for it, and a batch of sessions sent as an array is
+ * answered with an array of responses. /impression requests, which record the values a client
+ * served from memory, are checked and counted. /signal and /external are accepted and dropped.
+ * Responses can be delayed by a latency distribution, and a fraction of them replaced by faults.
+ * Any path prefix is accepted, so the url can be passed to CausalClient.init as is.
+ *
+ * <p>Run it in process with {@link #start(StubOptions)}, or standalone with {@link #main}.
+ */
+public class StubImpressionServer implements Closeable {
+
+  /**
+   * Start a stub server. The JDK http server holds small responses back by about 40ms unless the
+   * JVM was started with -Dsun.net.httpserver.nodelay=true, which this leaves to the caller since
+   * it applies to every JDK http server in the JVM. {@link #main} sets it.
+   *
+   * @param options
+   * @return the running server
+   * @throws IOException if the port can't be bound
+   */
+  public static StubImpressionServer start(StubOptions options) throws IOException {
+    return new StubImpressionServer(options);
+  }
+
+  /**
+   * @return the port the server listens on
+   */
+  public int port() {
+    return m_server.getAddress().getPort();
+  }
+
+  /**
+   * @return a url to pass to CausalClient.init
+   */
+  public String url() {
+    return "http://localhost:" + port() + "/iserver";
+  }
+
+  /**
+   * @param endpoint features, impression, signal or external
+   * @return the number of requests received for the endpoint
+   */
+  public long requests(String endpoint) {
+    LongAdder ret = m_requests.get(endpoint);
+    return ret == null ? 0 : ret.sum();
+  }
+
+  /**
+   * @return the number of impressions recorded by /impression requests
+   */
+  public long impressions() {
+    return m_impressions.sum();
+  }
+
+  /**
+   * @return the number of request body bytes received, over all endpoints
+   */
+  public long requestBytes() {
+    return m_requestBytes.sum();
+  }
+
+  /**
+   * @return the number of response body bytes sent, over all endpoints
+   */
+  public long responseBytes() {
+    return m_responseBytes.sum();
+  }
+
+  /**
+   * @param fault
+   * @return the number of times the fault was injected
+   */
+  public long faults(Fault fault) {
+    return m_faults.get(fault.ordinal());
+  }
+
+  /** Stop listening and drop responses that are still delayed. */
+  @Override
+  public void close() {
+    m_server.stop(0);
+    m_timer.shutdownNow();
+    m_executor.shutdownNow();
+  }
+
+  private StubImpressionServer(StubOptions options) throws IOException {
+    m_options = options;
+    m_random = new Random(options.m_seed);
+    m_executor = Executors.newFixedThreadPool(options.m_threads);
+    m_timer = new ScheduledThreadPoolExecutor(1);
+    m_timer.setRemoveOnCancelPolicy(true);
+    m_server = HttpServer.create(new InetSocketAddress(options.m_port), 0);
+    m_server.setExecutor(m_executor);
+    m_server.createContext("/", this::receive);
+    m_server.start();
+  }
+
+  private void receive(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    String endpoint = path.substring(path.lastIndexOf('/') + 1);
+    byte[] body = readAll(exchange.getRequestBody());
+    m_requests.computeIfAbsent(endpoint, k -> new LongAdder()).increment();
+    m_requestBytes.add(body.length);
+    Fault fault = drawFault();
+    if (fault != null) m_faults.incrementAndGet(fault.ordinal());
+    long delay = m_options.m_latency.nextNanos(m_random);
+    Runnable respond = () -> respond(exchange, endpoint, body, fault);
+    if (delay <= 0) respond.run();
+    else m_timer.schedule(() -> m_executor.execute(respond), delay, TimeUnit.NANOSECONDS);
+  }
+
+  private Fault drawFault() {
+    if (m_options.m_faults.isEmpty()) return null;
+    double x = m_random.nextDouble();
+    for (Map.Entry<Fault, Double> e : m_options.m_faults.entrySet()) {
+      x -= e.getValue();
+      if (x < 0) return e.getKey();
+    }
+    return null;
+  }
+
+  private void respond(HttpExchange exchange, String endpoint, byte[] body, Fault fault) {
+    try {
+      if (fault == Fault.RESET) {
+        // closing an exchange before its response has started drops the connection
+        exchange.getResponseBody().close();
+        exchange.close();
+        return;
+      }
+      if (fault != null && fault.status() != 200) {
+        send(exchange, fault.status(), "text/plain", "Stub " + fault.name().toLowerCase());
+        return;
+      }
+      if (endpoint.equals("impression")) {
+        String error = impressions(body);
+        if (error != null) send(exchange, 400, "text/plain", error);
+        else {
+          exchange.sendResponseHeaders(200, -1);
+          exchange.close();
+        }
+        return;
+      }
+      if (!endpoint.equals("features")) {
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+        return;
+      }
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      String accept = exchange.getRequestHeaders().getFirst("Accept");
+      boolean smileIn = contentType != null && contentType.startsWith(SMILE);
+      boolean smileOut = accept != null && accept.contains(SMILE);
+      if (fault == Fault.MALFORMED) {
+        send(exchange, 200, JSON, "{\"session\":{},\"impressions\":[{\"_impressionId\" 42}");
+        return;
+      }
+      byte[] out;
+      try {
+        out = features(smileIn ? m_smileMapper : m_mapper, body, smileOut);
+      } catch (IOException e) {
+        send(exchange, 400, "text/plain", "Couldn't parse request: " + e.getMessage());
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", smileOut ? SMILE : JSON);
+      exchange.sendResponseHeaders(200, out.length);
+      OutputStream stream = exchange.getResponseBody();
+      if (fault == Fault.TRUNCATED) {
+        m_responseBytes.add(out.length / 2);
+        stream.write(out, 0, out.length / 2);
+        stream.flush();
+        // closing short of the content length drops the connection
+        exchange.close();
+        return;
+      }
+      m_responseBytes.add(out.length);
+      stream.write(out);
+      exchange.close();
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Error responding to " + endpoint, e);
+      exchange.close();
+    }
+  }
+
+  private byte[] features(ObjectMapper in, byte[] body, boolean smileOut) throws IOException {
+    JsonNode request = in.readTree(body);
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    JsonFactory factory = smileOut ? m_smileMapper.getFactory() : m_mapper.getFactory();
+    JsonGenerator gen = factory.createGenerator(ret);
+    if (request.isArray()) {
+      // a batch: one response per session, or {code, message} for a session that can't be answered
+      gen.writeStartArray();
+      for (JsonNode session : request) {
+        if (!session.path("reqs").isArray()) {
+          gen.writeStartObject();
+          gen.writeNumberField("code", 400);
+          gen.writeStringField("message", "Missing reqs");
+          gen.writeEndObject();
+          continue;
+        }
+        features(gen, session);
+      }
+      gen.writeEndArray();
+    } else {
+      features(gen, request);
+    }
+    gen.close();
+    return ret.toByteArray();
+  }
+
+  private void features(JsonGenerator gen, JsonNode request) throws IOException {
+    String impressionId = request.path("impressionId").asText(UUID.randomUUID().toString());
+    gen.writeStartObject();
+    gen.writeObjectFieldStart("session");
+    for (Map.Entry<String, Object> e : m_options.m_sessionOutputs.entrySet())
+      gen.writeObjectField(e.getKey(), e.getValue());
+    gen.writeEndObject();
+    gen.writeArrayFieldStart("impressions");
+    for (JsonNode req : request.path("reqs")) {
+      String name = req.path("name").asText();
+      Gate gate = m_options.m_gates.getOrDefault(name, m_options.m_defaultGate);
+      if (gate != Gate.ON) {
+        gen.writeString(gate.name());
+        continue;
+      }
+      gen.writeStartObject();
+      gen.writeStringField("_impressionId", impressionId);
+      Map<String, Object> outputs = m_options.m_outputs.get(name);
+      if (outputs != null) {
+        for (Map.Entry<String, Object> e : outputs.entrySet())
+          gen.writeObjectField(e.getKey(), e.getValue());
+      }
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+    gen.writeEndObject();
+  }
+
+  // count the impressions in an /impression request, an array of {args, impressionId, reqs,
+  // impressions} with the values served for each request. Returns why it was refused, or null.
+  private String impressions(byte[] body) {
+    JsonNode request;
+    try {
+      request = m_mapper.readTree(body);
+    } catch (IOException e) {
+      return "Couldn't parse request: " + e.getMessage();
+    }
+    if (!request.isArray()) return "Expecting an array of impressions";
+    for (JsonNode impression : request) {
+      if (!impression.path("impressionId").isTextual()) return "Missing impressionId";
+      JsonNode reqs = impression.path("reqs");
+      JsonNode values = impression.path("impressions");
+      if (!reqs.isArray() || !values.isArray() || reqs.size() != values.size())
+        return "Expecting a served value for each request";
+    }
+    m_impressions.add(request.size());
+    return null;
+  }
+
+  private void send(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    m_responseBytes.add(bytes.length);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+    exchange.close();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    for (int n; (n = in.read(buf)) > 0; ) ret.write(buf, 0, n);
+    return ret.toByteArray();
+  }
+
+  /**
+   * Run a stub server until the process is killed. Options:
+   *
+   * <pre>
+   * --port 8080                 port to listen on, default 8080
+   * --threads 4                 threads writing responses
+   * --latency lognormal:5ms-50ms  none, fixed:5ms, uniform:1ms-10ms, exp:5ms or lognormal:median-p99
+   * --fault server_error:0.01   inject a fault into a fraction of exchanges, repeatable
+   * --gate Feature=OFF          answer a feature with ON, OFF or UNKNOWN, repeatable
+   * --default-gate UNKNOWN      how to answer other features
+   * --output Feature.field=json a value for a feature's output, repeatable
+   * --seed 42                   seed for latencies and faults
+   * </pre>
+   *
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    // the JDK server otherwise holds small responses back waiting for an ack, adding about 40ms.
+    // It's read once, when the first server starts. This process is only the stub, so it's ours
+    // to set, unlike when the stub is started inside someone else's JVM.
+    if (System.getProperty(NODELAY) == null) System.setProperty(NODELAY, "true");
+    StubOptions.Builder options = StubOptions.builder().port(8080);
+    ObjectMapper mapper = new ObjectMapper();
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--port":
+          options.port(Integer.parseInt(value));
+          break;
+        case "--threads":
+          options.threads(Integer.parseInt(value));
+          break;
+        case "--latency":
+          options.latency(Latency.parse(value));
+          break;
+        case "--fault":
+          {
+            int colon = value.lastIndexOf(':');
+            options.fault(
+                Fault.valueOf(value.substring(0, colon).toUpperCase()),
+                Double.parseDouble(value.substring(colon + 1)));
+            break;
+          }
+        case "--gate":
+          {
+            int eq = value.indexOf('=');
+            options.gate(value.substring(0, eq), Gate.valueOf(value.substring(eq + 1)));
+            break;
+          }
+        case "--default-gate":
+          options.defaultGate(Gate.valueOf(value));
+          break;
+        case "--output":
+          {
+            int dot = value.indexOf('.');
+            int eq = value.indexOf('=');
+            options.output(
+                value.substring(0, dot),
+                value.substring(dot + 1, eq),
+                mapper.readValue(value.substring(eq + 1), Object.class));
+            break;
+          }
+        case "--seed":
+          options.seed(Long.parseLong(value));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    StubImpressionServer server = start(options.build());
+    Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    System.out.println("Stub impression server listening on " + server.url());
+  }
+
+  static final String JSON = "application/json; charset=UTF-8";
+  private static final String NODELAY = "sun.net.httpserver.nodelay";
+  static final String SMILE = "application/x-jackson-smile";
+  private static final Logger logger = LoggerFactory.getLogger(StubImpressionServer.class);
+
+  private final StubOptions m_options;
+  private final Random m_random;
+  private final HttpServer m_server;
+  private final ExecutorService m_executor;
+  private final ScheduledThreadPoolExecutor m_timer;
+  private final ObjectMapper m_mapper = new ObjectMapper();
+  private final ObjectMapper m_smileMapper = new ObjectMapper(new SmileFactory());
+  private final ConcurrentHashMap<String, LongAdder> m_requests = new ConcurrentHashMap<>();
+  private final AtomicLongArray m_faults = new AtomicLongArray(Fault.values().length);
+  private final LongAdder m_impressions = new LongAdder();
+  private final LongAdder m_requestBytes = new LongAdder();
+  private final LongAdder m_responseBytes = new LongAdder();
+}
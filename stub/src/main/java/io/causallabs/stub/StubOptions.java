@@ -0,0 +1,154 @@
+package io.causallabs.stub;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Options for a {@link StubImpressionServer}. */
+public class StubOptions {
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public static class Builder {
+
+    /**
+     * Port to listen on. 0, the default, picks a free one.
+     *
+     * @param x
+     * @return
+     */
+    public Builder port(int x) {
+      m_obj.m_port = x;
+      return this;
+    }
+
+    /**
+     * Threads that read requests and write responses. Delayed responses don't hold a thread.
+     *
+     * @param x
+     * @return
+     */
+    public Builder threads(int x) {
+      if (x < 1) throw new IllegalArgumentException("threads must be positive");
+      m_obj.m_threads = x;
+      return this;
+    }
+
+    /**
+     * How long to wait before responding.
+     *
+     * @param x
+     * @return
+     */
+    public Builder latency(Latency x) {
+      m_obj.m_latency = x;
+      return this;
+    }
+
+    /**
+     * Inject a fault into a fraction of the exchanges, on every endpoint. Faults are exclusive, so
+     * their probabilities may add up to at most 1.
+     *
+     * @param fault
+     * @param probability
+     * @return
+     */
+    public Builder fault(Fault fault, double probability) {
+      if (probability < 0 || probability > 1)
+        throw new IllegalArgumentException("probability must be between 0 and 1");
+      m_obj.m_faults.put(fault, probability);
+      double total = 0;
+      for (double p : m_obj.m_faults.values()) total += p;
+      if (total > 1) throw new IllegalArgumentException("fault probabilities add up to over 1");
+      return this;
+    }
+
+    /**
+     * How to answer requests for a feature.
+     *
+     * @param feature
+     * @param gate
+     * @return
+     */
+    public Builder gate(String feature, Gate gate) {
+      m_obj.m_gates.put(feature, gate);
+      return this;
+    }
+
+    /**
+     * How to answer requests for features without their own gate. ON by default.
+     *
+     * @param x
+     * @return
+     */
+    public Builder defaultGate(Gate x) {
+      m_obj.m_defaultGate = x;
+      return this;
+    }
+
+    /**
+     * A value to return for an output of a feature. Features without outputs are answered with just
+     * their impression id.
+     *
+     * @param feature
+     * @param field
+     * @param value anything Jackson can serialize
+     * @return
+     */
+    public Builder output(String feature, String field, Object value) {
+      m_obj.m_outputs.computeIfAbsent(feature, k -> new LinkedHashMap<>()).put(field, value);
+      return this;
+    }
+
+    /**
+     * A value to return for an output of the session.
+     *
+     * @param field
+     * @param value anything Jackson can serialize
+     * @return
+     */
+    public Builder sessionOutput(String field, Object value) {
+      m_obj.m_sessionOutputs.put(field, value);
+      return this;
+    }
+
+    /**
+     * Seed for the random numbers behind latencies and faults, so a single threaded run can be
+     * reproduced.
+     *
+     * @param x
+     * @return
+     */
+    public Builder seed(long x) {
+      m_obj.m_seed = x;
+      return this;
+    }
+
+    public StubOptions build() {
+      return m_obj;
+    }
+
+    private Builder() {
+      m_obj = new StubOptions();
+    }
+
+    StubOptions m_obj;
+  }
+
+  int m_port = 0;
+  int m_threads = 4;
+  Latency m_latency = Latency.none();
+  final Map<Fault, Double> m_faults = new EnumMap<>(Fault.class);
+  final Map<String, Gate> m_gates = new HashMap<>();
+  Gate m_defaultGate = Gate.ON;
+  final Map<String, Map<String, Object>> m_outputs = new HashMap<>();
+  final Map<String, Object> m_sessionOutputs = new LinkedHashMap<>();
+  long m_seed = System.nanoTime();
+
+  private StubOptions() {}
+
+  public static StubOptions DEFAULTS = new StubOptions();
+}